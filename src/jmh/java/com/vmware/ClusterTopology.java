@@ -0,0 +1,64 @@
+/*
+ * Copyright © 2018-2021 VMware, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: BSD-2
+ */
+
+package com.vmware;
+
+import java.util.Collections;
+import java.util.List;
+
+/*
+ * Builds synthetic clusters for the benchmarks. Nodes are spread round-robin over NUM_REGIONS regions with
+ * AZS_PER_REGION availability zones each, and databases cycle through the different constraint scopes
+ * supported by addDatabase().
+ */
+final class ClusterTopology {
+    static final int NUM_REGIONS = 3;
+    static final int AZS_PER_REGION = 3;
+
+    private ClusterTopology() {
+    }
+
+    static String region(final int nodeId) {
+        return "region-" + (nodeId % NUM_REGIONS);
+    }
+
+    static String az(final int nodeId) {
+        return region(nodeId) + "-az-" + ((nodeId / NUM_REGIONS) % AZS_PER_REGION);
+    }
+
+    static void addNodes(final ReplicaPlacement placement, final int numNodes) {
+        for (int nodeId = 0; nodeId < numNodes; nodeId++) {
+            placement.addNodeWithAttributes(nodeId, List.of("region=" + region(nodeId), "az=" + az(nodeId)),
+                                            Collections.emptyList(), List.of(nodeId % 2 == 0 ? "ssd" : "hdd"));
+        }
+    }
+
+    static String databaseName(final int i) {
+        return "db-" + i;
+    }
+
+    /*
+     * A quarter of the databases use the defaults, a quarter use array-scoped constraints, a quarter use
+     * per-replica constraints and the rest prohibit a region.
+     */
+    static String constraintsFor(final int i) {
+        switch (i % 4) {
+            case 1:
+                return "[\"+region=" + "region-" + (i % NUM_REGIONS) + "\"]";
+            case 2:
+                return "{'[\"+region=region-0\"]': 2, '[\"+region=region-1\"]': 1}";
+            case 3:
+                return "[\"-region=" + "region-" + (i % NUM_REGIONS) + "\"]";
+            default:
+                return "";
+        }
+    }
+
+    static void addDatabases(final ReplicaPlacement placement, final int numDatabases) {
+        for (int i = 0; i < numDatabases; i++) {
+            placement.addDatabase(databaseName(i), 3, constraintsFor(i));
+        }
+    }
+}
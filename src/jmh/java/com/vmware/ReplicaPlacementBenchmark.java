@@ -0,0 +1,200 @@
+/*
+ * Copyright © 2018-2021 VMware, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: BSD-2
+ */
+
+package com.vmware;
+
+import com.vmware.generated.tables.records.ReplicaRecord;
+import org.jooq.Record;
+import org.jooq.Result;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Latency of the main ReplicaPlacement entry points on synthetic clusters (see ClusterTopology).
+ * Every operation mutates the placement state, so each invocation gets a freshly built cluster and the
+ * benchmarks run in single-shot mode. Run with "-prof gc" to also report allocation rates, and narrow
+ * the parameter space with "-p numNodes=... -p numDatabases=...". Benchmarks that trade placement quality
+ * for speed also report the quality of their result as secondary metrics (see PlacementQuality).
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class ReplicaPlacementBenchmark {
+
+    @State(Scope.Thread)
+    public static class ClusterState {
+        @Param({"10", "100", "1000", "5000"})
+        public int numNodes;
+
+        @Param({"100", "1000", "10000"})
+        public int numDatabases;
+
+        ReplicaPlacement placement;
+
+        @TearDown(Level.Invocation)
+        public void close() {
+            placement.close();
+        }
+    }
+
+    /*
+     * Nodes only, system ranges not yet created
+     */
+    public static class EmptyCluster extends ClusterState {
+        @Setup(Level.Invocation)
+        public void setup() {
+            placement = ReplicaPlacement.init();
+            ClusterTopology.addNodes(placement, numNodes);
+        }
+    }
+
+    /*
+     * Bootstrapped cluster with numDatabases databases waiting to be placed
+     */
+    public static class PendingCluster extends ClusterState {
+        @Setup(Level.Invocation)
+        public void setup() {
+            placement = ReplicaPlacement.init();
+            ClusterTopology.addNodes(placement, numNodes);
+            placement.bootstrap();
+            ClusterTopology.addDatabases(placement, numDatabases);
+        }
+    }
+
+    /*
+     * Fully placed cluster where every tenth database is hot enough to overload the nodes it lives on
+     */
+    public static class PlacedCluster extends ClusterState {
+        int qpsThreshold;
+
+        @Setup(Level.Invocation)
+        public void setup() {
+            placement = ReplicaPlacement.init();
+            ClusterTopology.addNodes(placement, numNodes);
+            placement.bootstrap();
+            ClusterTopology.addDatabases(placement, numDatabases);
+            placement.placeReplicas();
+            for (int i = 0; i < numDatabases; i += 10) {
+                placement.updateQpsForDb(ClusterTopology.databaseName(i), 100);
+            }
+            final double averageLoad = placement.qpsPerNode().stream()
+                    .mapToInt(r -> r.get(1, BigDecimal.class).intValue())
+                    .average()
+                    .orElse(0);
+            qpsThreshold = (int) (averageLoad * 1.2) + 1;
+        }
+    }
+
+    /*
+     * How well a placement follows the soft policies, measured after each invocation outside of the timed
+     * region. Lower is better for every counter.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class PlacementQuality {
+        public long maxNodeQps; // Load of the busiest node (distribute_by_qps)
+        public long nodeQpsSpread; // Load of the busiest node minus that of the idlest one
+        public long rangesSharingAnAz; // Ranges with two replicas in the same AZ (spread_replicas_azs)
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            maxNodeQps = 0;
+            nodeQpsSpread = 0;
+            rangesSharingAnAz = 0;
+        }
+
+        @TearDown(Level.Invocation)
+        public void measure(final PendingCluster cluster) {
+            final ReplicaPlacement placement = cluster.placement;
+            int max = 0;
+            int min = Integer.MAX_VALUE;
+            int loadedNodes = 0;
+            for (final Record r: placement.qpsPerNode()) {
+                final int qps = r.get(1, BigDecimal.class).intValue();
+                max = Math.max(max, qps);
+                min = Math.min(min, qps);
+                loadedNodes++;
+            }
+            maxNodeQps += max;
+            nodeQpsSpread += loadedNodes < cluster.numNodes ? max : max - min;
+
+            final Map<Integer, Set<String>> azsPerRange = new HashMap<>();
+            final Map<Integer, Integer> replicasPerRange = new HashMap<>();
+            for (final ReplicaRecord replica: placement.getReplicaState()) {
+                if (replica.getCurrentNode() != null) {
+                    azsPerRange.computeIfAbsent(replica.getRangeId(), k -> new HashSet<>())
+                               .add(ClusterTopology.az(replica.getCurrentNode()));
+                    replicasPerRange.merge(replica.getRangeId(), 1, Integer::sum);
+                }
+            }
+            azsPerRange.forEach((rangeId, azs) -> {
+                if (azs.size() < replicasPerRange.get(rangeId)) {
+                    rangesSharingAnAz++;
+                }
+            });
+        }
+    }
+
+    @Benchmark
+    public void bootstrap(final EmptyCluster state) {
+        state.placement.bootstrap();
+    }
+
+    @Benchmark
+    public Result<? extends Record> placeReplicas(final PendingCluster state, final PlacementQuality quality) {
+        return state.placement.placeReplicas();
+    }
+
+    @Benchmark
+    public Result<? extends Record> placeReplicasGreedy(final PendingCluster state,
+                                                        final PlacementQuality quality) {
+        state.placement.enableGreedyPlacement();
+        return state.placement.placeReplicas();
+    }
+
+    @Benchmark
+    public Result<? extends Record> placeReplicasHierarchical(final PendingCluster state,
+                                                              final PlacementQuality quality) {
+        state.placement.enableHierarchicalPlacement();
+        return state.placement.placeReplicas();
+    }
+
+    @Benchmark
+    public Result<? extends Record> placeReplicasWindowed(final PendingCluster state) {
+        state.placement.enableWindowedPlacement(500, 1000);
+        return state.placement.placeReplicas();
+    }
+
+    @Benchmark
+    public Result<? extends Record> migrateReplicasOnOverloadedNodes(final PlacedCluster state) {
+        return state.placement.migrateReplicasOnOverloadedNodes(state.qpsThreshold);
+    }
+
+    @Benchmark
+    public void editDatabase(final PlacedCluster state) {
+        state.placement.editDatabase(ClusterTopology.databaseName(0), 5, "[\"+ssd\"]");
+    }
+}
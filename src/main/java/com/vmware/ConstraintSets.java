@@ -0,0 +1,171 @@
+/*
+ * Copyright © 2018-2021 VMware, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: BSD-2
+ */
+
+package com.vmware;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.vmware.generated.Tables;
+import com.vmware.generated.tables.records.ConstraintSetDomainRecord;
+import com.vmware.generated.tables.records.ConstraintSetRecord;
+import com.vmware.generated.tables.records.ReplicaConstraintRecord;
+import org.jooq.DSLContext;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.jooq.impl.DSL.using;
+
+/*
+ * Interns lists of replica constraints (e.g., ["+ssd", "-region=east"]). Each distinct list is stored once,
+ * in the constraint_set and replica_constraint tables, and replicas reference it by ID. The candidate nodes
+ * of each constraint set are kept in constraint_set_domain, which only needs to be recomputed when a set is
+ * created or node labels change.
+ */
+class ConstraintSets {
+    private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().create();
+    private final DSLContext conn;
+    private final NodeLabelIndex nodeLabelIndex;
+    private final Map<List<String>, Integer> idsByConstraints = new HashMap<>();
+    private final Map<Integer, List<ReplicaConstraintRecord>> constraintsById = new HashMap<>();
+    private final Map<Integer, BitSet> candidateNodesById = new HashMap<>();
+    private int nextId = 1;
+
+    ConstraintSets(final DSLContext conn, final NodeLabelIndex nodeLabelIndex) {
+        this.conn = conn;
+        this.nodeLabelIndex = nodeLabelIndex;
+    }
+
+    /*
+     * Returns the ID of the constraint set for the given constraints, creating it on first use. Replicas
+     * without any constraints do not need a set, in which case this returns null.
+     */
+    Integer intern(final List<String> constraints) {
+        if (constraints.isEmpty()) {
+            return null;
+        }
+        final List<String> canonical = constraints.stream()
+                .map(String::trim)
+                .distinct()
+                .sorted()
+                .collect(Collectors.toUnmodifiableList());
+        final Integer existingId = idsByConstraints.get(canonical);
+        if (existingId != null) {
+            return existingId;
+        }
+        final int id = nextId++;
+        final ConstraintSetRecord constraintSetRecord = new ConstraintSetRecord();
+        constraintSetRecord.setId(id);
+        constraintSetRecord.setConstraints(GSON.toJson(canonical));
+        final List<ReplicaConstraintRecord> replicaConstraintRecords = new ArrayList<>(canonical.size());
+        canonical.stream().filter(e -> e.startsWith("+"))
+                .map(l -> ReplicaPlacement.toKeyValuePair(l.substring(1), "="))
+                .forEach(kvPair -> replicaConstraintRecords.add(newReplicaConstraintRecord(id, "required", kvPair)));
+        canonical.stream().filter(e -> e.startsWith("-"))
+                .map(l -> ReplicaPlacement.toKeyValuePair(l.substring(1), "="))
+                .forEach(kvPair -> replicaConstraintRecords.add(newReplicaConstraintRecord(id, "prohibited",
+                                                                                           kvPair)));
+        conn.transaction(configuration -> {
+            final DSLContext tx = using(configuration);
+            tx.executeInsert(constraintSetRecord);
+            tx.batchInsert(replicaConstraintRecords).execute();
+        });
+        idsByConstraints.put(canonical, id);
+        constraintsById.put(id, replicaConstraintRecords);
+        conn.executeInsert(domainRecord(id));
+        return id;
+    }
+
+    /*
+     * Reload all constraint sets from the constraint_set and replica_constraint tables, e.g., after restoring
+     * a snapshot, and recompute their domains
+     */
+    void reload() {
+        idsByConstraints.clear();
+        constraintsById.clear();
+        final Map<Integer, List<ReplicaConstraintRecord>> constraints = conn.selectFrom(Tables.REPLICA_CONSTRAINT)
+                .fetchGroups(Tables.REPLICA_CONSTRAINT.CONSTRAINT_SET_ID, ReplicaConstraintRecord.class);
+        for (final ConstraintSetRecord constraintSet: conn.selectFrom(Tables.CONSTRAINT_SET).fetch()) {
+            final int id = constraintSet.getId();
+            idsByConstraints.put(List.of(GSON.fromJson(constraintSet.getConstraints(), String[].class)), id);
+            constraintsById.put(id, constraints.getOrDefault(id, List.of()));
+            nextId = Math.max(nextId, id + 1);
+        }
+        refreshDomains();
+    }
+
+    /*
+     * Recompute constraint_set_domain for all constraint sets. Needs to run whenever node labels change.
+     */
+    void refreshDomains() {
+        candidateNodesById.clear();
+        final List<ConstraintSetDomainRecord> records = new ArrayList<>(constraintsById.size());
+        constraintsById.keySet().forEach(id -> records.add(domainRecord(id)));
+        conn.transaction(configuration -> {
+            final DSLContext tx = using(configuration);
+            tx.deleteFrom(Tables.CONSTRAINT_SET_DOMAIN).execute();
+            tx.batchInsert(records).execute();
+        });
+    }
+
+    /*
+     * The nodes that replicas with the given constraint set may be placed on: nodes that match at least one
+     * of the set's required constraints on every label key, and none of its prohibited constraints.
+     * A null constraint set allows every node. The returned set must not be modified.
+     */
+    BitSet candidateNodes(final Integer constraintSetId) {
+        if (constraintSetId == null) {
+            return nodeLabelIndex.allNodes();
+        }
+        return candidateNodesById.computeIfAbsent(constraintSetId, id -> {
+            final BitSet candidates = (BitSet) nodeLabelIndex.allNodes().clone();
+            matchingNodes(constraintsById.get(id)).forEach((typeAndKey, nodes) -> {
+                if (typeAndKey.get(0).equals("required")) {
+                    candidates.and(nodes);
+                } else {
+                    candidates.andNot(nodes);
+                }
+            });
+            return candidates;
+        });
+    }
+
+    private ConstraintSetDomainRecord domainRecord(final int constraintSetId) {
+        final ConstraintSetDomainRecord record = new ConstraintSetDomainRecord();
+        record.setConstraintSetId(constraintSetId);
+        record.setNodeIdList(NodeLabelIndex.toNodeIdArray(candidateNodes(constraintSetId)));
+        return record;
+    }
+
+    /*
+     * The nodes matching each (type, label key) pair of a constraint set. The node sets of constraints on
+     * the same label key are merged, so that, e.g., ["+region=east", "+region=west"] allows either region.
+     */
+    private Map<List<String>, BitSet> matchingNodes(final List<ReplicaConstraintRecord> constraints) {
+        final Map<List<String>, BitSet> matchingNodes = new LinkedHashMap<>();
+        for (final ReplicaConstraintRecord constraint: constraints) {
+            final BitSet nodes = nodeLabelIndex.nodesMatching(constraint.getLabelKey(), constraint.getLabelValue());
+            matchingNodes.computeIfAbsent(List.of(constraint.getType(), constraint.getLabelKey()),
+                                          k -> new BitSet())
+                         .or(nodes);
+        }
+        return matchingNodes;
+    }
+
+    private static ReplicaConstraintRecord newReplicaConstraintRecord(final int constraintSetId, final String type,
+                                                                      final ReplicaPlacement.KVPair kvPair) {
+        final ReplicaConstraintRecord replicaConstraintRecord = new ReplicaConstraintRecord();
+        replicaConstraintRecord.setConstraintSetId(constraintSetId);
+        replicaConstraintRecord.setType(type);
+        replicaConstraintRecord.setLabelKey(kvPair.key);
+        replicaConstraintRecord.setLabelValue(kvPair.value);
+        return replicaConstraintRecord;
+    }
+}
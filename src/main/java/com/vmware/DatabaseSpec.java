@@ -0,0 +1,48 @@
+/*
+ * Copyright © 2018-2021 VMware, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: BSD-2
+ */
+
+package com.vmware;
+
+/*
+ * Arguments of ReplicaPlacement.addDatabase() for bulk ingestion through ReplicaPlacement.addDatabases()
+ */
+public class DatabaseSpec {
+    private final String name;
+    private final int numReplicas;
+    private final String constraintsJson;
+    private final String leasePreferencesJson;
+
+    public DatabaseSpec(final String name) {
+        this(name, ReplicaPlacement.DEFAULT_NUM_REPLICAS, "");
+    }
+
+    public DatabaseSpec(final String name, final int numReplicas, final String constraintsJson) {
+        this(name, numReplicas, constraintsJson, "");
+    }
+
+    public DatabaseSpec(final String name, final int numReplicas, final String constraintsJson,
+                        final String leasePreferencesJson) {
+        this.name = name;
+        this.numReplicas = numReplicas;
+        this.constraintsJson = constraintsJson;
+        this.leasePreferencesJson = leasePreferencesJson;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getNumReplicas() {
+        return numReplicas;
+    }
+
+    public String getConstraintsJson() {
+        return constraintsJson;
+    }
+
+    public String getLeasePreferencesJson() {
+        return leasePreferencesJson;
+    }
+}
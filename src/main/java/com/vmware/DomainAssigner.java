@@ -0,0 +1,198 @@
+/*
+ * Copyright © 2018-2021 VMware, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: BSD-2
+ */
+
+package com.vmware;
+
+import com.vmware.generated.tables.records.ReplicaRecord;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/*
+ * First stage of hierarchical placement: assigns every pending replica to a failure domain (an AZ, and with
+ * it a region) instead of a node. Replicas are assigned one at a time to the AZ that
+ *   1. lies in the region holding the fewest replicas of the range so far,
+ *   2. holds the fewest replicas of the range so far,
+ *   3. has the least qps per node,
+ * among the AZs with room for the replica: more of its candidate nodes than replicas of the range already
+ * in the AZ. Running replicas stay in the AZ of their current node, and migrating replicas only count the
+ * nodes they may move to as candidates.
+ *
+ * The result is one partition per AZ, with the replicas assigned to it and the AZ's nodes, which the second
+ * stage solves independently. Ranges with a replica that fits no AZ are returned in a separate partition over
+ * all their candidate nodes. That partition shares nodes with the AZ partitions, so it may only be solved once
+ * their solutions are committed.
+ */
+final class DomainAssigner {
+
+    private DomainAssigner() {
+    }
+
+    static final class Assignment {
+        final List<RangePartitioner.Partition> azs = new ArrayList<>(); // Only AZs with replicas to place
+        final RangePartitioner.Partition unassigned = new RangePartitioner.Partition();
+    }
+
+    /*
+     * @param pendingReplicas all replicas of the pending ranges
+     * @param candidateNodes the nodes a replica with a given constraint set may be placed on
+     * @param nodeLoad the current load of every node, which is not modified
+     * @param allNodes all nodes in the cluster
+     * @param nodesPerRegion the nodes in each region
+     * @param nodesPerAz the nodes in each AZ. Nodes without an AZ form an AZ of their own.
+     * @param overloadedNodes the nodes that migrating replicas may not move to
+     */
+    static Assignment assign(final List<ReplicaRecord> pendingReplicas, final Function<Integer, BitSet> candidateNodes,
+                             final NodeLoad nodeLoad, final BitSet allNodes, final Map<String, BitSet> nodesPerRegion,
+                             final Map<String, BitSet> nodesPerAz, final BitSet overloadedNodes) {
+        final List<BitSet> azs = new ArrayList<>(nodesPerAz.values());
+        final BitSet unlabelled = (BitSet) allNodes.clone();
+        azs.forEach(unlabelled::andNot);
+        if (!unlabelled.isEmpty()) {
+            azs.add(unlabelled);
+        }
+        final int[] azOf = new int[allNodes.length()];
+        final int[] regionOfAz = new int[azs.size()];
+        final long[] qpsPerAz = new long[azs.size()];
+        final int[] nodesInAz = new int[azs.size()];
+        final List<BitSet> regions = new ArrayList<>(nodesPerRegion.values());
+        for (int az = 0; az < azs.size(); az++) {
+            final BitSet nodes = azs.get(az);
+            nodesInAz[az] = nodes.cardinality();
+            for (int node = nodes.nextSetBit(0); node >= 0; node = nodes.nextSetBit(node + 1)) {
+                azOf[node] = az;
+                qpsPerAz[az] += nodeLoad.qps(node);
+            }
+            regionOfAz[az] = regions.size() + az; // Unless found below, the AZ is a region of its own
+            for (int region = 0; region < regions.size(); region++) {
+                if (regions.get(region).get(nodes.nextSetBit(0))) {
+                    regionOfAz[az] = region;
+                    break;
+                }
+            }
+        }
+
+        final Map<Integer, List<ReplicaRecord>> replicasPerRange = new LinkedHashMap<>();
+        pendingReplicas.forEach(r -> replicasPerRange.computeIfAbsent(r.getRangeId(), k -> new ArrayList<>())
+                                                     .add(r));
+        final Map<Integer, int[]> candidatesPerAz = new HashMap<>(); // By constraint set, null for none
+        final List<RangePartitioner.Partition> partitions = new ArrayList<>(azs.size());
+        for (final BitSet nodes: azs) {
+            final RangePartitioner.Partition partition = new RangePartitioner.Partition();
+            partition.nodes.or(nodes);
+            partitions.add(partition);
+        }
+        final Assignment assignment = new Assignment();
+        final RangePartitioner.Partition unassigned = assignment.unassigned;
+        final int[] replicasPerAz = new int[azs.size()];
+        final int[] replicasPerRegion = new int[regions.size() + azs.size()];
+
+        for (final Map.Entry<Integer, List<ReplicaRecord>> entry: replicasPerRange.entrySet()) {
+            final List<ReplicaRecord> range = entry.getValue();
+            Arrays.fill(replicasPerAz, 0);
+            Arrays.fill(replicasPerRegion, 0);
+            for (final ReplicaRecord replica: range) {
+                if (isRunning(replica)) {
+                    replicasPerAz[azOf[replica.getCurrentNode()]]++;
+                    replicasPerRegion[regionOfAz[azOf[replica.getCurrentNode()]]]++;
+                }
+            }
+            final int[] azOfReplica = new int[range.size()];
+            boolean assigned = true;
+            for (int i = 0; i < range.size(); i++) {
+                final ReplicaRecord replica = range.get(i);
+                if (isRunning(replica)) {
+                    azOfReplica[i] = azOf[replica.getCurrentNode()];
+                    continue;
+                }
+                final int[] candidates;
+                if (replica.getCurrentNode() == null) {
+                    candidates = candidatesPerAz.computeIfAbsent(replica.getConstraintSetId(),
+                            id -> candidatesPerAz(azs, candidateNodes.apply(id)));
+                } else {
+                    final BitSet destinations = (BitSet) candidateNodes.apply(replica.getConstraintSetId()).clone();
+                    destinations.clear(replica.getCurrentNode());
+                    destinations.andNot(overloadedNodes);
+                    candidates = candidatesPerAz(azs, destinations);
+                }
+                int best = -1;
+                for (int az = 0; az < azs.size(); az++) {
+                    if (candidates[az] > replicasPerAz[az]
+                            && (best < 0 || compare(az, best, regionOfAz, replicasPerRegion, replicasPerAz,
+                                                    qpsPerAz, nodesInAz) < 0)) {
+                        best = az;
+                    }
+                }
+                if (best < 0) {
+                    assigned = false;
+                    break;
+                }
+                azOfReplica[i] = best;
+                replicasPerAz[best]++;
+                replicasPerRegion[regionOfAz[best]]++;
+            }
+
+            if (!assigned) {
+                unassigned.rangeIds.add(entry.getKey());
+                unassigned.replicas.addAll(range);
+                range.forEach(r -> {
+                    unassigned.nodes.or(candidateNodes.apply(r.getConstraintSetId()));
+                    if (r.getCurrentNode() != null) {
+                        unassigned.nodes.set(r.getCurrentNode());
+                    }
+                });
+                continue;
+            }
+            for (int i = 0; i < range.size(); i++) {
+                final ReplicaRecord replica = range.get(i);
+                final RangePartitioner.Partition partition = partitions.get(azOfReplica[i]);
+                if (partition.rangeIds.isEmpty()
+                        || !partition.rangeIds.get(partition.rangeIds.size() - 1).equals(entry.getKey())) {
+                    partition.rangeIds.add(entry.getKey());
+                }
+                partition.replicas.add(replica);
+                if (!isRunning(replica)) {
+                    qpsPerAz[azOfReplica[i]] += replica.getQps() == null ? 0 : replica.getQps();
+                }
+            }
+        }
+
+        partitions.stream().filter(p -> !p.rangeIds.isEmpty()).forEach(assignment.azs::add);
+        return assignment;
+    }
+
+    private static int[] candidatesPerAz(final List<BitSet> azs, final BitSet candidates) {
+        final int[] counts = new int[azs.size()];
+        for (int az = 0; az < azs.size(); az++) {
+            final BitSet nodes = (BitSet) azs.get(az).clone();
+            nodes.and(candidates);
+            counts[az] = nodes.cardinality();
+        }
+        return counts;
+    }
+
+    private static boolean isRunning(final ReplicaRecord replica) {
+        return replica.getStatus().equals("running") && replica.getCurrentNode() != null;
+    }
+
+    private static int compare(final int az, final int other, final int[] regionOfAz, final int[] replicasPerRegion,
+                               final int[] replicasPerAz, final long[] qpsPerAz, final int[] nodesInAz) {
+        int result = Integer.compare(replicasPerRegion[regionOfAz[az]], replicasPerRegion[regionOfAz[other]]);
+        if (result == 0) {
+            result = Integer.compare(replicasPerAz[az], replicasPerAz[other]);
+        }
+        if (result == 0) {
+            // Compare qps per node without dividing
+            result = Long.compare(qpsPerAz[az] * nodesInAz[other], qpsPerAz[other] * nodesInAz[az]);
+        }
+        return result;
+    }
+}
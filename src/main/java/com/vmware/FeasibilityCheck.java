@@ -0,0 +1,151 @@
+/*
+ * Copyright © 2018-2021 VMware, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: BSD-2
+ */
+
+package com.vmware;
+
+import com.vmware.generated.tables.records.ReplicaRecord;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/*
+ * Finds pending ranges that cannot be placed before they reach the solver. Each replica's domain is
+ * narrowed to the nodes the hard constraints allow:
+ *   - running replicas stay on their current node (do_not_reassign),
+ *   - migrating replicas move to a node other than their current one that is not overloaded
+ *     (move_migrating_replicas),
+ *   - every replica is restricted to the candidate nodes of its constraint set
+ *     (node_affinity_anti_affinity),
+ *   - and replicas being placed are restricted to nodes with enough capacity left for their load in every
+ *     dimension (qps_capacity, disk_capacity and write_capacity). Replicas are checked one at a time, so
+ *     several replicas that only fit on a node separately are not caught here.
+ * A range is feasible if its replicas can then be assigned to pairwise distinct nodes (distribute_across_nodes),
+ * which is a bipartite matching between replicas and nodes. Ranges are small, so a simple augmenting path
+ * search is enough.
+ */
+final class FeasibilityCheck {
+
+    private FeasibilityCheck() {
+    }
+
+    /*
+     * @param pendingReplicas all replicas of the pending ranges
+     * @param candidateNodes the nodes a replica with a given constraint set may be placed on
+     * @param overloadedNodes the nodes that migrating replicas may not move to
+     * @param nodeLoad the current load and capacity of every node
+     * @return the reason each infeasible range cannot be placed, by range ID
+     */
+    static Map<Integer, String> infeasibleRanges(final List<ReplicaRecord> pendingReplicas,
+                                                 final Function<Integer, BitSet> candidateNodes,
+                                                 final BitSet overloadedNodes, final NodeLoad nodeLoad) {
+        final Map<Integer, List<ReplicaRecord>> replicasPerRange = new LinkedHashMap<>();
+        pendingReplicas.forEach(r -> replicasPerRange.computeIfAbsent(r.getRangeId(), k -> new ArrayList<>())
+                                                     .add(r));
+        final Map<Integer, String> infeasible = new LinkedHashMap<>();
+        final NodeLoad capacities = nodeLoad.hasCapacities() ? nodeLoad : null; // null if every node is unlimited
+        replicasPerRange.forEach((rangeId, replicas) -> {
+            final String reason = check(replicas, candidateNodes, overloadedNodes, capacities);
+            if (reason != null) {
+                infeasible.put(rangeId, reason);
+            }
+        });
+        return infeasible;
+    }
+
+    /*
+     * @return why the replicas of a range cannot be placed, or null if they can
+     */
+    private static String check(final List<ReplicaRecord> replicas, final Function<Integer, BitSet> candidateNodes,
+                                final BitSet overloadedNodes, final NodeLoad capacities) {
+        final List<BitSet> domains = new ArrayList<>(replicas.size());
+        final BitSet allowedNodes = new BitSet();
+        for (final ReplicaRecord replica: replicas) {
+            final BitSet domain = (BitSet) candidateNodes.apply(replica.getConstraintSetId()).clone();
+            final Integer currentNode = replica.getCurrentNode();
+            if (replica.getStatus().equals("running") && currentNode != null) {
+                final boolean allowed = domain.get(currentNode);
+                domain.clear();
+                domain.set(currentNode, allowed);
+            } else {
+                if (replica.getStatus().equals("migrating") && currentNode != null) {
+                    domain.clear(currentNode);
+                    domain.andNot(overloadedNodes);
+                }
+                if (capacities != null && !domain.isEmpty()) {
+                    removeNodesWithoutHeadroom(domain, replica, capacities);
+                    if (domain.isEmpty()) {
+                        return String.format("No node that satisfies the constraints of replica %d has capacity " +
+                                             "left for its load", replica.getId());
+                    }
+                }
+            }
+            if (domain.isEmpty()) {
+                return String.format("No node satisfies the constraints of replica %d (status: %s, " +
+                                     "constraint set: %s)", replica.getId(), replica.getStatus(),
+                                     replica.getConstraintSetId());
+            }
+            domains.add(domain);
+            allowedNodes.or(domain);
+        }
+        if (allowedNodes.cardinality() < replicas.size()) {
+            return String.format("%d replicas need distinct nodes, but only %d nodes satisfy their constraints",
+                                 replicas.size(), allowedNodes.cardinality());
+        }
+        final int matched = maximumMatching(domains, allowedNodes.length());
+        if (matched < replicas.size()) {
+            return String.format("Only %d of %d replicas can be placed on distinct nodes that satisfy their " +
+                                 "constraints", matched, replicas.size());
+        }
+        return null;
+    }
+
+    private static void removeNodesWithoutHeadroom(final BitSet domain, final ReplicaRecord replica,
+                                                   final NodeLoad nodeLoad) {
+        for (int node = domain.nextSetBit(0); node >= 0; node = domain.nextSetBit(node + 1)) {
+            for (final LoadDimension dimension: LoadDimension.values()) {
+                if (dimension.of(replica) > nodeLoad.headroom(dimension, node)) {
+                    domain.clear(node);
+                    break;
+                }
+            }
+        }
+    }
+
+    /*
+     * The size of a maximum matching between replicas and the nodes in their domains
+     */
+    private static int maximumMatching(final List<BitSet> domains, final int numNodes) {
+        final int[] replicaOnNode = new int[numNodes];
+        Arrays.fill(replicaOnNode, -1);
+        int matched = 0;
+        for (int replica = 0; replica < domains.size(); replica++) {
+            if (augment(replica, domains, replicaOnNode, new BitSet(numNodes))) {
+                matched++;
+            }
+        }
+        return matched;
+    }
+
+    private static boolean augment(final int replica, final List<BitSet> domains, final int[] replicaOnNode,
+                                   final BitSet visited) {
+        final BitSet domain = domains.get(replica);
+        for (int node = domain.nextSetBit(0); node >= 0; node = domain.nextSetBit(node + 1)) {
+            if (visited.get(node)) {
+                continue;
+            }
+            visited.set(node);
+            if (replicaOnNode[node] < 0 || augment(replicaOnNode[node], domains, replicaOnNode, visited)) {
+                replicaOnNode[node] = replica;
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright © 2018-2021 VMware, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: BSD-2
+ */
+
+package com.vmware;
+
+import com.vmware.generated.tables.records.ReplicaRecord;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Places ranges without replica constraints or lease preferences in memory, as a cheap alternative to solving
+ * them with the model. Replicas are placed one at a time, each on the node that best follows the default
+ * policies:
+ *   1. a region holding the fewest replicas of the range so far (spread_replicas_regions),
+ *   2. then an AZ holding the fewest replicas of the range so far (spread_replicas_azs),
+ *   3. for the range's leaseholder, then the node holding the fewest leases (distribute_lease_count),
+ *   4. then the node with the least qps and then the fewest replicas (distribute_by_qps, use_more_nodes).
+ * The hard constraints are the same as the model's: replicas of a range go to distinct nodes, running
+ * replicas stay where they are, migrating replicas leave their node for one that is not overloaded, and
+ * replicas only go to nodes with enough capacity left for their load in every dimension.
+ * A range that cannot be placed this way is left for the solver.
+ *
+ * Each replica scans every node once, so placing R replicas on N nodes takes O(R * N) time.
+ */
+final class GreedyPlacer {
+    private static final int NO_LABEL = -1;
+    private static final LoadDimension[] DIMENSIONS = LoadDimension.values();
+
+    private GreedyPlacer() {
+    }
+
+    /*
+     * @param ranges the replicas of each range to place, none of which may have a constraint set or a lease
+     *               constraint set
+     * @param nodeLoad the current load of every node, which is not modified
+     * @param leasesPerNode the number of leases on each node, which is not modified
+     * @param allNodes all nodes in the cluster
+     * @param nodesPerRegion the nodes in each region
+     * @param nodesPerAz the nodes in each AZ
+     * @param overloadedNodes the nodes that migrating replicas may not move to
+     * @return the node of every replica of the ranges that could be placed, by replica ID
+     */
+    static Map<Integer, Integer> place(final Collection<List<ReplicaRecord>> ranges, final NodeLoad nodeLoad,
+                                       final Map<Integer, Integer> leasesPerNode, final BitSet allNodes,
+                                       final Map<String, BitSet> nodesPerRegion, final Map<String, BitSet> nodesPerAz,
+                                       final BitSet overloadedNodes) {
+        final int numNodes = allNodes.length();
+        final int[] regionOf = labelIndexes(nodesPerRegion, numNodes);
+        final int[] azOf = labelIndexes(nodesPerAz, numNodes);
+        final int[][] load = new int[DIMENSIONS.length][numNodes];
+        final int[][] capacity = new int[DIMENSIONS.length][numNodes];
+        final int[] replicas = new int[numNodes];
+        final int[] leases = new int[numNodes];
+        for (int node = allNodes.nextSetBit(0); node >= 0; node = allNodes.nextSetBit(node + 1)) {
+            for (final LoadDimension dimension: DIMENSIONS) {
+                load[dimension.ordinal()][node] = nodeLoad.load(dimension, node);
+                capacity[dimension.ordinal()][node] = nodeLoad.capacity(dimension, node);
+            }
+            replicas[node] = nodeLoad.replicas(node);
+            leases[node] = leasesPerNode.getOrDefault(node, 0);
+        }
+        final int[] qps = load[LoadDimension.QPS.ordinal()];
+
+        final Map<Integer, Integer> placement = new HashMap<>();
+        final int[] replicasPerRegion = new int[nodesPerRegion.size()];
+        final int[] replicasPerAz = new int[nodesPerAz.size()];
+        for (final List<ReplicaRecord> range: ranges) {
+            Arrays.fill(replicasPerRegion, 0);
+            Arrays.fill(replicasPerAz, 0);
+            final BitSet usedNodes = new BitSet(numNodes);
+            final List<ReplicaRecord> toPlace = new ArrayList<>(range.size());
+            for (final ReplicaRecord replica: range) {
+                final Integer currentNode = replica.getCurrentNode();
+                if (currentNode == null) {
+                    toPlace.add(replica);
+                } else if (replica.getStatus().equals("running")) {
+                    usedNodes.set(currentNode);
+                    count(currentNode, regionOf, azOf, replicasPerRegion, replicasPerAz);
+                } else {
+                    // Migrating replicas may not stay, and no other replica of the range may take their node
+                    usedNodes.set(currentNode);
+                    toPlace.add(replica);
+                }
+            }
+
+            final int[] chosen = new int[toPlace.size()];
+            boolean placed = true;
+            final int[][] demand = new int[toPlace.size()][];
+            for (int i = 0; i < toPlace.size(); i++) {
+                final boolean migrating = toPlace.get(i).getCurrentNode() != null;
+                demand[i] = demand(toPlace.get(i));
+                final BitSet candidates = nodesWithHeadroom(allNodes, demand[i], load, capacity);
+                final int node = bestNode(candidates, usedNodes, migrating ? overloadedNodes : null, regionOf, azOf,
+                                          replicasPerRegion, replicasPerAz,
+                                          toPlace.get(i).getLeaseholder() ? leases : null, qps, replicas);
+                if (node < 0) {
+                    placed = false;
+                    break;
+                }
+                chosen[i] = node;
+                usedNodes.set(node);
+                count(node, regionOf, azOf, replicasPerRegion, replicasPerAz);
+            }
+            if (!placed) {
+                continue;
+            }
+
+            // Commit the range, so that later ranges see its load
+            for (final ReplicaRecord replica: range) {
+                if (replica.getCurrentNode() != null && replica.getStatus().equals("running")) {
+                    placement.put(replica.getId(), replica.getCurrentNode());
+                }
+            }
+            for (int i = 0; i < toPlace.size(); i++) {
+                final ReplicaRecord replica = toPlace.get(i);
+                for (int d = 0; d < DIMENSIONS.length; d++) {
+                    if (replica.getCurrentNode() != null) {
+                        load[d][replica.getCurrentNode()] -= demand[i][d];
+                    }
+                    load[d][chosen[i]] += demand[i][d];
+                }
+                if (replica.getCurrentNode() != null) {
+                    replicas[replica.getCurrentNode()]--;
+                }
+                replicas[chosen[i]]++;
+                if (replica.getLeaseholder()) {
+                    if (replica.getCurrentNode() != null) {
+                        leases[replica.getCurrentNode()]--;
+                    }
+                    leases[chosen[i]]++;
+                }
+                placement.put(replica.getId(), chosen[i]);
+            }
+        }
+        return placement;
+    }
+
+    private static int[] demand(final ReplicaRecord replica) {
+        final int[] demand = new int[DIMENSIONS.length];
+        for (final LoadDimension dimension: DIMENSIONS) {
+            demand[dimension.ordinal()] = dimension.of(replica);
+        }
+        return demand;
+    }
+
+    /*
+     * The nodes with enough capacity left for a replica's load in every dimension. Replicas of the same range
+     * placed before it are not counted, as they go to other nodes.
+     */
+    private static BitSet nodesWithHeadroom(final BitSet allNodes, final int[] demand, final int[][] load,
+                                            final int[][] capacity) {
+        final BitSet nodes = (BitSet) allNodes.clone();
+        for (int node = allNodes.nextSetBit(0); node >= 0; node = allNodes.nextSetBit(node + 1)) {
+            for (int d = 0; d < DIMENSIONS.length; d++) {
+                if (capacity[d][node] != NodeLoad.UNLIMITED && capacity[d][node] - load[d][node] < demand[d]) {
+                    nodes.clear(node);
+                    break;
+                }
+            }
+        }
+        return nodes;
+    }
+
+    /*
+     * @param leases the leases on each node if the replica is the leaseholder, or null otherwise
+     * @return the best node for the next replica of a range, or -1 if there is none
+     */
+    private static int bestNode(final BitSet allNodes, final BitSet usedNodes, final BitSet excludedNodes,
+                                final int[] regionOf, final int[] azOf, final int[] replicasPerRegion,
+                                final int[] replicasPerAz, final int[] leases, final int[] qps,
+                                final int[] replicas) {
+        int best = -1;
+        for (int node = allNodes.nextSetBit(0); node >= 0; node = allNodes.nextSetBit(node + 1)) {
+            if (usedNodes.get(node) || (excludedNodes != null && excludedNodes.get(node))) {
+                continue;
+            }
+            if (best < 0 || compare(node, best, regionOf, azOf, replicasPerRegion, replicasPerAz, leases, qps,
+                                    replicas) < 0) {
+                best = node;
+            }
+        }
+        return best;
+    }
+
+    private static int compare(final int node, final int other, final int[] regionOf, final int[] azOf,
+                               final int[] replicasPerRegion, final int[] replicasPerAz, final int[] leases,
+                               final int[] qps, final int[] replicas) {
+        int result = Integer.compare(countOf(regionOf[node], replicasPerRegion),
+                                     countOf(regionOf[other], replicasPerRegion));
+        if (result == 0) {
+            result = Integer.compare(countOf(azOf[node], replicasPerAz), countOf(azOf[other], replicasPerAz));
+        }
+        if (result == 0 && leases != null) {
+            result = Integer.compare(leases[node], leases[other]);
+        }
+        if (result == 0) {
+            result = Integer.compare(qps[node], qps[other]);
+        }
+        if (result == 0) {
+            result = Integer.compare(replicas[node], replicas[other]);
+        }
+        return result;
+    }
+
+    /*
+     * A node without the label counts as being alone in a region (or AZ) that holds no replicas yet
+     */
+    private static int countOf(final int labelIndex, final int[] replicasPerLabel) {
+        return labelIndex == NO_LABEL ? 0 : replicasPerLabel[labelIndex];
+    }
+
+    private static void count(final int node, final int[] regionOf, final int[] azOf,
+                              final int[] replicasPerRegion, final int[] replicasPerAz) {
+        if (regionOf[node] != NO_LABEL) {
+            replicasPerRegion[regionOf[node]]++;
+        }
+        if (azOf[node] != NO_LABEL) {
+            replicasPerAz[azOf[node]]++;
+        }
+    }
+
+    /*
+     * The index of each node's label value, or NO_LABEL for nodes without one
+     */
+    private static int[] labelIndexes(final Map<String, BitSet> nodesPerValue, final int numNodes) {
+        final int[] indexes = new int[numNodes];
+        Arrays.fill(indexes, NO_LABEL);
+        int index = 0;
+        for (final BitSet nodes: nodesPerValue.values()) {
+            for (int node = nodes.nextSetBit(0); node >= 0 && node < numNodes; node = nodes.nextSetBit(node + 1)) {
+                indexes[node] = index;
+            }
+            index++;
+        }
+        return indexes;
+    }
+}
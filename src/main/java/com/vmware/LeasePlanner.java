@@ -0,0 +1,106 @@
+/*
+ * Copyright © 2018-2021 VMware, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: BSD-2
+ */
+
+package com.vmware;
+
+import com.vmware.generated.tables.records.ReplicaRecord;
+
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/*
+ * Chooses the leaseholder of every range among its running replicas, without moving any replica. A range's
+ * lease goes to a replica on a node matching the earliest lease preference of its database that any of its
+ * replicas match (every node, if there are none), as in CockroachDB. Among those, the lease goes to the node
+ * holding the fewest leases so far, then serving the least leaseholder qps.
+ *
+ * A lease already on a preferred node only moves if that takes two or more leases off its node relative to the
+ * target, so that repeated rebalancing settles instead of moving leases back and forth. Ranges without a
+ * running replica keep their leaseholder, or get their first replica as leaseholder if they have none, and the
+ * solver places that replica according to the lease preferences.
+ */
+final class LeasePlanner {
+
+    private LeasePlanner() {
+    }
+
+    /*
+     * @param replicasPerRange the replicas of every range to plan
+     * @param leasePreferences the nodes matching each lease preference of a range, in order, by range ID
+     * @param leasesPerNode the number of leases on each node, across all ranges, which is updated
+     * @param leaseQpsPerNode the qps of the leaseholders on each node, across all ranges, which is updated
+     * @return the new leaseholder replica of every range whose leaseholder changes, by range ID
+     */
+    static Map<Integer, Integer> plan(final Map<Integer, List<ReplicaRecord>> replicasPerRange,
+                                      final Function<Integer, List<BitSet>> leasePreferences,
+                                      final Map<Integer, Integer> leasesPerNode,
+                                      final Map<Integer, Integer> leaseQpsPerNode) {
+        final Map<Integer, Integer> newLeaseholders = new HashMap<>();
+        final Comparator<ReplicaRecord> byLeaseLoad = Comparator
+                .comparingInt((ReplicaRecord r) -> leasesPerNode.getOrDefault(r.getCurrentNode(), 0))
+                .thenComparingInt(r -> leaseQpsPerNode.getOrDefault(r.getCurrentNode(), 0))
+                .thenComparingInt(ReplicaRecord::getId);
+        for (final Map.Entry<Integer, List<ReplicaRecord>> entry: replicasPerRange.entrySet()) {
+            final List<ReplicaRecord> replicas = entry.getValue();
+            final ReplicaRecord leaseholder = replicas.stream().filter(ReplicaRecord::getLeaseholder).findFirst()
+                                                      .orElse(null);
+            final List<ReplicaRecord> running = replicas.stream().filter(LeasePlanner::isRunning)
+                                                        .collect(Collectors.toList());
+            if (running.isEmpty()) {
+                if (leaseholder == null) {
+                    replicas.stream().min(Comparator.comparingInt(ReplicaRecord::getId))
+                            .ifPresent(r -> newLeaseholders.put(entry.getKey(), r.getId()));
+                }
+                continue;
+            }
+
+            final List<BitSet> preferences = leasePreferences.apply(entry.getKey());
+            final int bestRank = running.stream().mapToInt(r -> rank(r, preferences)).min().getAsInt();
+            final ReplicaRecord target = running.stream().filter(r -> rank(r, preferences) == bestRank)
+                                                .min(byLeaseLoad).get();
+            if (target == leaseholder) {
+                continue;
+            }
+            if (leaseholder != null && isRunning(leaseholder) && rank(leaseholder, preferences) == bestRank
+                && leasesPerNode.getOrDefault(leaseholder.getCurrentNode(), 0)
+                   - leasesPerNode.getOrDefault(target.getCurrentNode(), 0) < 2) {
+                continue;
+            }
+            if (leaseholder != null && leaseholder.getCurrentNode() != null) {
+                leasesPerNode.merge(leaseholder.getCurrentNode(), -1, Integer::sum);
+                leaseQpsPerNode.merge(leaseholder.getCurrentNode(), -qps(leaseholder), Integer::sum);
+            }
+            leasesPerNode.merge(target.getCurrentNode(), 1, Integer::sum);
+            leaseQpsPerNode.merge(target.getCurrentNode(), qps(target), Integer::sum);
+            newLeaseholders.put(entry.getKey(), target.getId());
+        }
+        return newLeaseholders;
+    }
+
+    /*
+     * The index of the first lease preference the replica's node matches, or the number of preferences
+     */
+    private static int rank(final ReplicaRecord replica, final List<BitSet> preferences) {
+        for (int i = 0; i < preferences.size(); i++) {
+            if (preferences.get(i).get(replica.getCurrentNode())) {
+                return i;
+            }
+        }
+        return preferences.size();
+    }
+
+    private static boolean isRunning(final ReplicaRecord replica) {
+        return replica.getStatus().equals("running") && replica.getCurrentNode() != null;
+    }
+
+    private static int qps(final ReplicaRecord replica) {
+        return replica.getQps() == null ? 0 : replica.getQps();
+    }
+}
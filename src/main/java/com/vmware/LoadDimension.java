@@ -0,0 +1,41 @@
+/*
+ * Copyright © 2018-2021 VMware, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: BSD-2
+ */
+
+package com.vmware;
+
+import com.vmware.generated.Tables;
+import com.vmware.generated.tables.records.NodeRecord;
+import com.vmware.generated.tables.records.ReplicaRecord;
+import org.jooq.Record;
+import org.jooq.TableField;
+
+/*
+ * The dimensions of the load a replica puts on its node. Each one is a column of the replica table, with a
+ * capacity and a headroom column in the node table.
+ */
+public enum LoadDimension {
+    QPS(Tables.REPLICA.QPS, Tables.NODE.QPS_CAPACITY, Tables.NODE.QPS_HEADROOM),
+    DISK_MB(Tables.REPLICA.DISK_MB, Tables.NODE.DISK_CAPACITY_MB, Tables.NODE.DISK_HEADROOM_MB),
+    WRITE_KBPS(Tables.REPLICA.WRITE_KBPS, Tables.NODE.WRITE_CAPACITY_KBPS, Tables.NODE.WRITE_HEADROOM_KBPS);
+
+    final TableField<ReplicaRecord, Integer> load;
+    final TableField<NodeRecord, Integer> capacity;
+    final TableField<NodeRecord, Integer> headroom;
+
+    LoadDimension(final TableField<ReplicaRecord, Integer> load, final TableField<NodeRecord, Integer> capacity,
+                  final TableField<NodeRecord, Integer> headroom) {
+        this.load = load;
+        this.capacity = capacity;
+        this.headroom = headroom;
+    }
+
+    /*
+     * The load of a replica in this dimension, from a replica or pending_replicas record
+     */
+    int of(final Record replica) {
+        final Integer value = replica.get(load.getName(), Integer.class);
+        return value == null ? 0 : value;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright © 2018-2021 VMware, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: BSD-2
+ */
+
+package com.vmware;
+
+import com.vmware.generated.tables.records.ReplicaRecord;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/*
+ * Chooses which replicas to move off overloaded nodes. Rather than re-placing everything on an overloaded
+ * node, only the heaviest replicas are picked, and only until the node's load drops below the qps threshold
+ * and within its capacity in every dimension (see NodeLoad.limit()). Replicas are weighed in the dimension
+ * the node is most overloaded in, so a node short on disk sheds its largest replicas rather than its hottest.
+ * At most one replica per range is picked in a round, and only replicas that have somewhere else to go:
+ * a node they may be placed on that does not already hold a replica of the same range, and that has room
+ * for the replica within its limit in every dimension.
+ */
+final class MigrationPlanner {
+
+    private MigrationPlanner() {
+    }
+
+    /*
+     * @param nodeLoad the current load of every node
+     * @param replicasOnOverloadedNodes the running replicas on nodes whose load is at least qpsThreshold, or
+     *                                  over capacity
+     * @param nodesPerRange the nodes holding a replica of each range in replicasOnOverloadedNodes
+     * @param candidateNodes the nodes a replica with a given constraint set may be placed on
+     * @param maxMoves the maximum number of replicas to pick, across all nodes
+     * @return the IDs of the replicas to migrate
+     */
+    static List<Integer> plan(final NodeLoad nodeLoad,
+                              final List<ReplicaRecord> replicasOnOverloadedNodes,
+                              final Map<Integer, BitSet> nodesPerRange,
+                              final Function<Integer, BitSet> candidateNodes,
+                              final int qpsThreshold, final int maxMoves) {
+        final BitSet overloadedNodes = nodeLoad.overloadedNodes(qpsThreshold);
+        final Map<Integer, List<ReplicaRecord>> replicasPerNode = replicasOnOverloadedNodes.stream()
+                .collect(Collectors.groupingBy(ReplicaRecord::getCurrentNode));
+
+        // Relieve the most overloaded nodes first, in case the budget runs out
+        final List<Integer> nodesByLoad = overloadedNodes.stream().boxed()
+                .sorted(Comparator.comparingDouble((Integer node) -> overload(nodeLoad, node, qpsThreshold))
+                                  .reversed())
+                .collect(Collectors.toList());
+        final List<Integer> picked = new ArrayList<>();
+        final Set<Integer> pickedRanges = new HashSet<>();
+        for (final int node: nodesByLoad) {
+            final LoadDimension dimension = mostOverloadedDimension(nodeLoad, node, qpsThreshold);
+            final int[] remainingLoad = new int[LoadDimension.values().length];
+            for (final LoadDimension d: LoadDimension.values()) {
+                remainingLoad[d.ordinal()] = nodeLoad.load(d, node);
+            }
+            final List<ReplicaRecord> replicas = new ArrayList<>(replicasPerNode.getOrDefault(node, List.of()));
+            replicas.sort(Comparator.comparingInt(dimension::of).reversed());
+            for (final ReplicaRecord replica: replicas) {
+                if (picked.size() >= maxMoves) {
+                    return picked;
+                }
+                if (withinLimits(nodeLoad, node, remainingLoad, qpsThreshold)) {
+                    break;
+                }
+                if (pickedRanges.contains(replica.getRangeId())) {
+                    continue;
+                }
+                final BitSet alternatives = (BitSet) candidateNodes.apply(replica.getConstraintSetId()).clone();
+                alternatives.andNot(nodesPerRange.get(replica.getRangeId()));
+                alternatives.andNot(overloadedNodes);
+                for (int n = alternatives.nextSetBit(0); n >= 0; n = alternatives.nextSetBit(n + 1)) {
+                    if (!fits(nodeLoad, n, replica, qpsThreshold)) {
+                        alternatives.clear(n);
+                    }
+                }
+                if (alternatives.isEmpty()) {
+                    continue;
+                }
+                picked.add(replica.getId());
+                pickedRanges.add(replica.getRangeId());
+                for (final LoadDimension d: LoadDimension.values()) {
+                    remainingLoad[d.ordinal()] -= d.of(replica);
+                }
+            }
+        }
+        return picked;
+    }
+
+    private static boolean withinLimits(final NodeLoad nodeLoad, final int node, final int[] remainingLoad,
+                                        final int qpsThreshold) {
+        for (final LoadDimension dimension: LoadDimension.values()) {
+            if (remainingLoad[dimension.ordinal()] > nodeLoad.limit(dimension, node, qpsThreshold)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Whether node can take on replica without going over its limit in any dimension
+     */
+    private static boolean fits(final NodeLoad nodeLoad, final int node, final ReplicaRecord replica,
+                                final int qpsThreshold) {
+        for (final LoadDimension dimension: LoadDimension.values()) {
+            if ((long) nodeLoad.load(dimension, node) + dimension.of(replica)
+                    > nodeLoad.limit(dimension, node, qpsThreshold)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static LoadDimension mostOverloadedDimension(final NodeLoad nodeLoad, final int node,
+                                                         final int qpsThreshold) {
+        LoadDimension most = LoadDimension.QPS;
+        for (final LoadDimension dimension: LoadDimension.values()) {
+            if (overload(nodeLoad, node, dimension, qpsThreshold) > overload(nodeLoad, node, most, qpsThreshold)) {
+                most = dimension;
+            }
+        }
+        return most;
+    }
+
+    private static double overload(final NodeLoad nodeLoad, final int node, final int qpsThreshold) {
+        return overload(nodeLoad, node, mostOverloadedDimension(nodeLoad, node, qpsThreshold), qpsThreshold);
+    }
+
+    /*
+     * The load of a node in a dimension relative to its limit, which is above 1 if the node is overloaded
+     */
+    private static double overload(final NodeLoad nodeLoad, final int node, final LoadDimension dimension,
+                                   final int qpsThreshold) {
+        final int limit = nodeLoad.limit(dimension, node, qpsThreshold);
+        final int load = nodeLoad.load(dimension, node);
+        if (limit <= 0) {
+            return load > 0 ? Double.POSITIVE_INFINITY : 0;
+        }
+        return (double) load / limit;
+    }
+}
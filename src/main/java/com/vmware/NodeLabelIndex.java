@@ -0,0 +1,84 @@
+/*
+ * Copyright © 2018-2021 VMware, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: BSD-2
+ */
+
+package com.vmware;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * In-memory index from node labels to the set of nodes carrying them, kept in sync with the node_label table.
+ * Node sets are bitsets indexed by node ID, so matching a replica constraint against the cluster is a
+ * hash lookup instead of a join over node_label.
+ */
+class NodeLabelIndex {
+    private static final BitSet NO_NODES = new BitSet();
+    private final BitSet allNodes = new BitSet();
+    private final Map<String, BitSet> nodesByKey = new HashMap<>();
+    private final Map<String, Map<String, BitSet>> nodesByKeyValue = new HashMap<>();
+
+    void addNode(final int nodeId) {
+        allNodes.set(nodeId);
+    }
+
+    /*
+     * Remove a node and its labels. Label keys and values left without nodes are dropped.
+     */
+    void removeNode(final int nodeId) {
+        allNodes.clear(nodeId);
+        nodesByKey.values().forEach(nodes -> nodes.clear(nodeId));
+        nodesByKey.values().removeIf(BitSet::isEmpty);
+        for (final Map<String, BitSet> byValue: nodesByKeyValue.values()) {
+            byValue.values().forEach(nodes -> nodes.clear(nodeId));
+            byValue.values().removeIf(BitSet::isEmpty);
+        }
+        nodesByKeyValue.values().removeIf(Map::isEmpty);
+    }
+
+    /*
+     * All nodes in the cluster. The returned set must not be modified.
+     */
+    BitSet allNodes() {
+        return allNodes;
+    }
+
+    void addLabel(final int nodeId, final String labelKey, final String labelValue) {
+        nodesByKey.computeIfAbsent(labelKey, k -> new BitSet()).set(nodeId);
+        if (labelValue != null) {
+            nodesByKeyValue.computeIfAbsent(labelKey, k -> new HashMap<>())
+                           .computeIfAbsent(labelValue, v -> new BitSet())
+                           .set(nodeId);
+        }
+    }
+
+    /*
+     * Nodes matching a replica constraint on labelKey. A null labelValue matches every node that has the
+     * key, regardless of its value. The returned set must not be modified.
+     */
+    BitSet nodesMatching(final String labelKey, final String labelValue) {
+        if (labelValue == null) {
+            return nodesByKey.getOrDefault(labelKey, NO_NODES);
+        }
+        final Map<String, BitSet> byValue = nodesByKeyValue.get(labelKey);
+        return byValue == null ? NO_NODES : byValue.getOrDefault(labelValue, NO_NODES);
+    }
+
+    /*
+     * The nodes carrying each value of labelKey. The returned map must not be modified.
+     */
+    Map<String, BitSet> nodesByValue(final String labelKey) {
+        return nodesByKeyValue.getOrDefault(labelKey, Map.of());
+    }
+
+    static Integer[] toNodeIdArray(final BitSet nodes) {
+        final Integer[] nodeIds = new Integer[nodes.cardinality()];
+        int i = 0;
+        for (int nodeId = nodes.nextSetBit(0); nodeId >= 0; nodeId = nodes.nextSetBit(nodeId + 1)) {
+            nodeIds[i++] = nodeId;
+        }
+        return nodeIds;
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright © 2018-2021 VMware, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: BSD-2
+ */
+
+package com.vmware;
+
+import org.jooq.Record;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/*
+ * Per-node load counters, kept in sync with the replica table as replicas are placed, moved and have their
+ * load updated, along with the capacity of every node in each load dimension. Counters live in arrays indexed
+ * by dimension and node ID, so reading the load of every node is O(nodes) and does not touch the database.
+ */
+class NodeLoad {
+    static final int UNLIMITED = Integer.MAX_VALUE;
+    private static final LoadDimension[] DIMENSIONS = LoadDimension.values();
+    private final int[][] load = new int[DIMENSIONS.length][64];
+    private final int[][] capacity = newCapacities(64);
+    private int[] replicas = new int[64];
+    private int maxNodeId = -1;
+
+    /*
+     * A replica (a replica or pending_replicas record) was placed on nodeId
+     */
+    void addReplica(final int nodeId, final Record replica) {
+        ensureCapacity(nodeId);
+        for (final LoadDimension dimension: DIMENSIONS) {
+            load[dimension.ordinal()][nodeId] += dimension.of(replica);
+        }
+        replicas[nodeId]++;
+    }
+
+    /*
+     * A replica was moved away from nodeId
+     */
+    void removeReplica(final int nodeId, final Record replica) {
+        for (final LoadDimension dimension: DIMENSIONS) {
+            load[dimension.ordinal()][nodeId] -= dimension.of(replica);
+        }
+        replicas[nodeId]--;
+    }
+
+    /*
+     * The load of a replica on nodeId changed by delta
+     */
+    void updateLoad(final int nodeId, final LoadDimension dimension, final int delta) {
+        load[dimension.ordinal()][nodeId] += delta;
+    }
+
+    /*
+     * Set the capacity of nodeId in a dimension, or UNLIMITED
+     */
+    void setCapacity(final int nodeId, final LoadDimension dimension, final int nodeCapacity) {
+        ensureCapacity(nodeId);
+        capacity[dimension.ordinal()][nodeId] = nodeCapacity;
+    }
+
+    /*
+     * Forget the capacities of a node that left the cluster
+     */
+    void removeNode(final int nodeId) {
+        if (nodeId <= maxNodeId) {
+            for (final int[] nodeCapacities: capacity) {
+                nodeCapacities[nodeId] = UNLIMITED;
+            }
+        }
+    }
+
+    int qps(final int nodeId) {
+        return load(LoadDimension.QPS, nodeId);
+    }
+
+    int load(final LoadDimension dimension, final int nodeId) {
+        return nodeId <= maxNodeId ? load[dimension.ordinal()][nodeId] : 0;
+    }
+
+    int capacity(final LoadDimension dimension, final int nodeId) {
+        return nodeId <= maxNodeId ? capacity[dimension.ordinal()][nodeId] : UNLIMITED;
+    }
+
+    /*
+     * The capacity of nodeId left in a dimension, which is never negative, or UNLIMITED
+     */
+    int headroom(final LoadDimension dimension, final int nodeId) {
+        final int nodeCapacity = capacity(dimension, nodeId);
+        return nodeCapacity == UNLIMITED ? UNLIMITED : Math.max(0, nodeCapacity - load(dimension, nodeId));
+    }
+
+    /*
+     * Whether some node has a capacity in any dimension
+     */
+    boolean hasCapacities() {
+        for (final int[] nodeCapacities: capacity) {
+            for (int nodeId = 0; nodeId <= maxNodeId; nodeId++) {
+                if (nodeCapacities[nodeId] != UNLIMITED) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    int replicas(final int nodeId) {
+        return nodeId <= maxNodeId ? replicas[nodeId] : 0;
+    }
+
+    boolean hasReplicas(final int nodeId) {
+        return nodeId <= maxNodeId && replicas[nodeId] > 0;
+    }
+
+    int maxNodeId() {
+        return maxNodeId;
+    }
+
+    /*
+     * Whether any node serving replicas has at least qpsThreshold load, or is over its capacity in any dimension
+     */
+    boolean anyOverloaded(final int qpsThreshold) {
+        for (int nodeId = 0; nodeId <= maxNodeId; nodeId++) {
+            if (isOverloaded(nodeId, qpsThreshold)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    BitSet overloadedNodes(final int qpsThreshold) {
+        final BitSet overloaded = new BitSet(maxNodeId + 1);
+        for (int nodeId = 0; nodeId <= maxNodeId; nodeId++) {
+            if (isOverloaded(nodeId, qpsThreshold)) {
+                overloaded.set(nodeId);
+            }
+        }
+        return overloaded;
+    }
+
+    /*
+     * The most load nodeId may carry in a dimension without being overloaded
+     */
+    int limit(final LoadDimension dimension, final int nodeId, final int qpsThreshold) {
+        final int nodeCapacity = capacity(dimension, nodeId);
+        return dimension == LoadDimension.QPS ? Math.min(qpsThreshold - 1, nodeCapacity) : nodeCapacity;
+    }
+
+    private boolean isOverloaded(final int nodeId, final int qpsThreshold) {
+        if (replicas[nodeId] == 0) {
+            return false;
+        }
+        for (final LoadDimension dimension: DIMENSIONS) {
+            if (load[dimension.ordinal()][nodeId] > limit(dimension, nodeId, qpsThreshold)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void ensureCapacity(final int nodeId) {
+        if (nodeId >= replicas.length) {
+            final int length = Math.max(nodeId + 1, replicas.length * 2);
+            for (int i = 0; i < DIMENSIONS.length; i++) {
+                load[i] = Arrays.copyOf(load[i], length);
+                final int oldLength = capacity[i].length;
+                capacity[i] = Arrays.copyOf(capacity[i], length);
+                Arrays.fill(capacity[i], oldLength, length, UNLIMITED);
+            }
+            replicas = Arrays.copyOf(replicas, length);
+        }
+        maxNodeId = Math.max(maxNodeId, nodeId);
+    }
+
+    private static int[][] newCapacities(final int length) {
+        final int[][] capacities = new int[DIMENSIONS.length][length];
+        for (final int[] nodeCapacities: capacities) {
+            Arrays.fill(nodeCapacities, UNLIMITED);
+        }
+        return capacities;
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright © 2018-2021 VMware, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: BSD-2
+ */
+
+package com.vmware;
+
+import java.util.List;
+
+/*
+ * Arguments of ReplicaPlacement.addNodeWithAttributes() for bulk ingestion through ReplicaPlacement.addNodes()
+ */
+public class NodeSpec {
+    private final int nodeId;
+    private final List<String> localityLabels;
+    private final List<String> nodeCapabilityLabels;
+    private final List<String> storeCapabilityLabels;
+
+    public NodeSpec(final int nodeId, final List<String> localityLabels, final List<String> nodeCapabilityLabels,
+                    final List<String> storeCapabilityLabels) {
+        this.nodeId = nodeId;
+        this.localityLabels = localityLabels;
+        this.nodeCapabilityLabels = nodeCapabilityLabels;
+        this.storeCapabilityLabels = storeCapabilityLabels;
+    }
+
+    public int getNodeId() {
+        return nodeId;
+    }
+
+    public List<String> getLocalityLabels() {
+        return localityLabels;
+    }
+
+    public List<String> getNodeCapabilityLabels() {
+        return nodeCapabilityLabels;
+    }
+
+    public List<String> getStoreCapabilityLabels() {
+        return storeCapabilityLabels;
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright © 2018-2021 VMware, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: BSD-2
+ */
+
+package com.vmware;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Latency histograms for every placement phase, and counters for what each solve did. Recording is
+ * lock-free. When disabled, timing a phase costs one volatile read and no calls to System.nanoTime().
+ * The live values are exposed over JMX, and snapshot() copies them for callers of ReplicaPlacement.
+ *
+ * Usage:
+ *   final long start = metrics.start();
+ *   ...
+ *   metrics.stop(Phase.SOLVE, start);
+ */
+public class PlacementMetrics implements PlacementMetricsMXBean {
+    public enum Phase {
+        SCHEMA_SETUP,
+        MODEL_BUILD,
+        FEASIBILITY_CHECK, // Fetching pending replicas and rejecting the ranges that cannot be placed
+        GREEDY_PLACEMENT,
+        PARTITION,
+        SOLVE, // Includes the evaluation of the policy views by the model
+        WRITE_BACK,
+        MIGRATION_PLANNING,
+        TELEMETRY_FLUSH,
+        LEASE_REBALANCE // Choosing and writing new leaseholders
+    }
+
+    private static final long NOT_RECORDING = 0;
+    private volatile boolean enabled = true;
+    private final Histogram[] histograms = new Histogram[Phase.values().length];
+    private final LongAdder solves = new LongAdder();
+    private final LongAdder failedSolves = new LongAdder();
+    private final LongAdder rangesSolved = new LongAdder();
+    private final LongAdder replicasSolved = new LongAdder();
+    private final LongAdder rowsWritten = new LongAdder();
+    private final LongAdder replicasMigrated = new LongAdder();
+    private final LongAdder rangesSplit = new LongAdder();
+    private final LongAdder rangesMerged = new LongAdder();
+    private final LongAdder leasesTransferred = new LongAdder();
+
+    PlacementMetrics() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new Histogram();
+        }
+    }
+
+    long start() {
+        return enabled ? System.nanoTime() : NOT_RECORDING;
+    }
+
+    void stop(final Phase phase, final long start) {
+        if (start != NOT_RECORDING) {
+            histograms[phase.ordinal()].record(System.nanoTime() - start);
+        }
+    }
+
+    void solved(final int ranges, final int replicas) {
+        if (enabled) {
+            solves.increment();
+            rangesSolved.add(ranges);
+            replicasSolved.add(replicas);
+        }
+    }
+
+    void solveFailed() {
+        if (enabled) {
+            failedSolves.increment();
+        }
+    }
+
+    void rowsWritten(final int rows) {
+        if (enabled) {
+            rowsWritten.add(rows);
+        }
+    }
+
+    void replicasMigrated(final int replicas) {
+        if (enabled) {
+            replicasMigrated.add(replicas);
+        }
+    }
+
+    void rangesSplit(final int ranges) {
+        if (enabled) {
+            rangesSplit.add(ranges);
+        }
+    }
+
+    void rangesMerged(final int ranges) {
+        if (enabled) {
+            rangesMerged.add(ranges);
+        }
+    }
+
+    void leasesTransferred(final int leases) {
+        if (enabled) {
+            leasesTransferred.add(leases);
+        }
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(final boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @Override
+    public long getSolves() {
+        return solves.sum();
+    }
+
+    @Override
+    public long getFailedSolves() {
+        return failedSolves.sum();
+    }
+
+    @Override
+    public long getRangesSolved() {
+        return rangesSolved.sum();
+    }
+
+    @Override
+    public long getReplicasSolved() {
+        return replicasSolved.sum();
+    }
+
+    @Override
+    public long getRowsWritten() {
+        return rowsWritten.sum();
+    }
+
+    @Override
+    public long getReplicasMigrated() {
+        return replicasMigrated.sum();
+    }
+
+    @Override
+    public long getRangesSplit() {
+        return rangesSplit.sum();
+    }
+
+    @Override
+    public long getRangesMerged() {
+        return rangesMerged.sum();
+    }
+
+    @Override
+    public long getLeasesTransferred() {
+        return leasesTransferred.sum();
+    }
+
+    @Override
+    public List<PhaseStats> getPhases() {
+        final List<PhaseStats> phases = new ArrayList<>(histograms.length);
+        for (final Phase phase: Phase.values()) {
+            phases.add(histograms[phase.ordinal()].stats(phase));
+        }
+        return Collections.unmodifiableList(phases);
+    }
+
+    public PhaseStats getPhase(final Phase phase) {
+        return histograms[phase.ordinal()].stats(phase);
+    }
+
+    /*
+     * Copy of the current values. Each value is read once, so values recorded while the copy is taken may
+     * be included in some values and not in others.
+     */
+    Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /*
+     * Immutable copy of the counters and phase latencies at one point in time (see ReplicaPlacement.getMetrics())
+     */
+    public static final class Snapshot {
+        private final long solves;
+        private final long failedSolves;
+        private final long rangesSolved;
+        private final long replicasSolved;
+        private final long rowsWritten;
+        private final long replicasMigrated;
+        private final long rangesSplit;
+        private final long rangesMerged;
+        private final long leasesTransferred;
+        private final List<PhaseStats> phases;
+
+        private Snapshot(final PlacementMetrics metrics) {
+            this.solves = metrics.getSolves();
+            this.failedSolves = metrics.getFailedSolves();
+            this.rangesSolved = metrics.getRangesSolved();
+            this.replicasSolved = metrics.getReplicasSolved();
+            this.rowsWritten = metrics.getRowsWritten();
+            this.replicasMigrated = metrics.getReplicasMigrated();
+            this.rangesSplit = metrics.getRangesSplit();
+            this.rangesMerged = metrics.getRangesMerged();
+            this.leasesTransferred = metrics.getLeasesTransferred();
+            this.phases = metrics.getPhases();
+        }
+
+        public long getSolves() {
+            return solves;
+        }
+
+        public long getFailedSolves() {
+            return failedSolves;
+        }
+
+        public long getRangesSolved() {
+            return rangesSolved;
+        }
+
+        public long getReplicasSolved() {
+            return replicasSolved;
+        }
+
+        public long getRowsWritten() {
+            return rowsWritten;
+        }
+
+        public long getReplicasMigrated() {
+            return replicasMigrated;
+        }
+
+        public long getRangesSplit() {
+            return rangesSplit;
+        }
+
+        public long getRangesMerged() {
+            return rangesMerged;
+        }
+
+        public long getLeasesTransferred() {
+            return leasesTransferred;
+        }
+
+        /*
+         * The stats of every phase, in the order of Phase
+         */
+        public List<PhaseStats> getPhases() {
+            return phases;
+        }
+
+        public PhaseStats getPhase(final Phase phase) {
+            return phases.get(phase.ordinal());
+        }
+    }
+
+    /*
+     * Latency distribution of one phase. Percentiles are upper bounds, accurate to within a factor of two.
+     */
+    public static class PhaseStats {
+        private final String name;
+        private final long count;
+        private final long meanMicros;
+        private final long p50Micros;
+        private final long p99Micros;
+        private final long maxMicros;
+
+        PhaseStats(final String name, final long count, final long meanMicros, final long p50Micros,
+                   final long p99Micros, final long maxMicros) {
+            this.name = name;
+            this.count = count;
+            this.meanMicros = meanMicros;
+            this.p50Micros = p50Micros;
+            this.p99Micros = p99Micros;
+            this.maxMicros = maxMicros;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMeanMicros() {
+            return meanMicros;
+        }
+
+        public long getP50Micros() {
+            return p50Micros;
+        }
+
+        public long getP99Micros() {
+            return p99Micros;
+        }
+
+        public long getMaxMicros() {
+            return maxMicros;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: count=%d mean=%dus p50<=%dus p99<=%dus max=%dus", name, count, meanMicros,
+                                 p50Micros, p99Micros, maxMicros);
+        }
+    }
+
+    /*
+     * Histogram with power-of-two microsecond buckets: bucket i counts durations in [2^i, 2^(i+1)) us
+     */
+    private static final class Histogram {
+        private static final int NUM_BUCKETS = 40;
+        private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalMicros = new LongAdder();
+        private final AtomicLong maxMicros = new AtomicLong();
+
+        void record(final long nanos) {
+            final long micros = Math.max(1, nanos / 1000);
+            final int bucket = Math.min(NUM_BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros));
+            buckets.incrementAndGet(bucket);
+            count.increment();
+            totalMicros.add(micros);
+            maxMicros.accumulateAndGet(micros, Math::max);
+        }
+
+        PhaseStats stats(final Phase phase) {
+            final long n = count.sum();
+            return new PhaseStats(phase.name(), n, n == 0 ? 0 : totalMicros.sum() / n, percentile(n, 0.5),
+                                  percentile(n, 0.99), maxMicros.get());
+        }
+
+        private long percentile(final long n, final double quantile) {
+            final long rank = (long) Math.ceil(n * quantile);
+            long seen = 0;
+            for (int i = 0; i < NUM_BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank && seen > 0) {
+                    return Math.min(1L << (i + 1), maxMicros.get());
+                }
+            }
+            return 0;
+        }
+    }
+}
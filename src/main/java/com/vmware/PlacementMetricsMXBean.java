@@ -0,0 +1,37 @@
+/*
+ * Copyright © 2018-2021 VMware, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: BSD-2
+ */
+
+package com.vmware;
+
+import java.util.List;
+
+/*
+ * JMX view of PlacementMetrics. See ReplicaPlacement.registerMetricsMBean().
+ */
+public interface PlacementMetricsMXBean {
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    long getSolves();
+
+    long getFailedSolves();
+
+    long getRangesSolved();
+
+    long getReplicasSolved();
+
+    long getRowsWritten();
+
+    long getReplicasMigrated();
+
+    long getRangesSplit();
+
+    long getRangesMerged();
+
+    long getLeasesTransferred();
+
+    List<PlacementMetrics.PhaseStats> getPhases();
+}
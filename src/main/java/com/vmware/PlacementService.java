@@ -0,0 +1,358 @@
+/*
+ * Copyright © 2018-2021 VMware, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: BSD-2
+ */
+
+package com.vmware;
+
+import com.vmware.generated.Tables;
+import com.vmware.generated.tables.records.PendingRangeRecord;
+import com.vmware.generated.tables.records.ReplicaRecord;
+import org.jooq.Result;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/*
+ * Thread-safe facade over ReplicaPlacement. All state changes run on a single background writer thread.
+ * Callers on any thread submit requests (adding nodes and databases, editing databases, etc.) and get a
+ * future back. The writer groups every request that arrives within a short debounce window after the
+ * first one: consecutive new databases are inserted in one transaction, and placement runs once for the
+ * whole group. Each future then completes with the result of its own request, for example the placement
+ * of a new database's replicas. Futures complete on the common fork-join pool, never on the writer, whether
+ * they succeed, fail or are cancelled.
+ *
+ * Between requests, the writer periodically flushes qps telemetry and checks node load. Migration starts
+ * once some node reaches the migrateAboveQps watermark. Migration rounds then keep going until every node
+ * is below the lower settledBelowQps watermark, so nodes hovering around a single threshold do not cause
+ * the service to flap between migrating and idling.
+ */
+public class PlacementService implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(PlacementService.class);
+    public static final long DEFAULT_DEBOUNCE_MILLIS = 50;
+    public static final long DEFAULT_LOAD_CHECK_INTERVAL_MILLIS = 1000;
+    private static final Request<Void> WAKE_UP = new Request<>(null, p -> { }, p -> null);
+    private final ReplicaPlacement placement;
+    private final long debounceMillis;
+    private final long loadCheckIntervalMillis;
+    private final int migrateAboveQps;
+    private final int settledBelowQps;
+    private final BlockingQueue<Request<?>> requests = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private final Object submitLock = new Object(); // Orders submit() against close()
+    private volatile boolean running = true;
+    private boolean migrating = false;
+
+    public PlacementService(final ReplicaPlacement placement, final int migrateAboveQps, final int settledBelowQps) {
+        this(placement, migrateAboveQps, settledBelowQps, DEFAULT_DEBOUNCE_MILLIS,
+             DEFAULT_LOAD_CHECK_INTERVAL_MILLIS);
+    }
+
+    /*
+     * @param placement the placement state, which must not be used directly once the service is started
+     * @param migrateAboveQps node load at which migration starts
+     * @param settledBelowQps node load that every node has to be below for migration to stop
+     * @param debounceMillis how long to wait for more requests before running placement
+     * @param loadCheckIntervalMillis how often telemetry is flushed and node load is checked
+     */
+    public PlacementService(final ReplicaPlacement placement, final int migrateAboveQps, final int settledBelowQps,
+                            final long debounceMillis, final long loadCheckIntervalMillis) {
+        if (settledBelowQps > migrateAboveQps) {
+            throw new IllegalArgumentException("settledBelowQps must not be above migrateAboveQps");
+        }
+        this.placement = placement;
+        this.migrateAboveQps = migrateAboveQps;
+        this.settledBelowQps = settledBelowQps;
+        this.debounceMillis = debounceMillis;
+        this.loadCheckIntervalMillis = loadCheckIntervalMillis;
+        this.writer = new Thread(this::run, "placement-writer");
+        this.writer.setDaemon(true);
+    }
+
+    public void start() {
+        writer.start();
+    }
+
+    /*
+     * Stop the writer thread once the requests it is currently running (if any) are done. Requests still
+     * in the queue are cancelled. If the calling thread is interrupted while waiting, it stops waiting and
+     * keeps its interrupt status.
+     */
+    @Override
+    public void close() {
+        synchronized (submitLock) {
+            running = false;
+        }
+        requests.add(WAKE_UP);
+        try {
+            writer.join();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        final List<Request<?>> dropped = new ArrayList<>();
+        requests.drainTo(dropped);
+        dropped.forEach(Request::cancel);
+    }
+
+    public CompletableFuture<Void> addNodeWithAttributes(final int nodeId, final List<String> localityLabels,
+                                                         final List<String> nodeCapabilityLabels,
+                                                         final List<String> storeCapabilityLabels) {
+        return submit(null, p -> p.addNodeWithAttributes(nodeId, localityLabels, nodeCapabilityLabels,
+                                                         storeCapabilityLabels), p -> null);
+    }
+
+    /*
+     * Completes with the replicas of the new database once they are placed, or fails if some range of the
+     * database cannot be placed given the current nodes
+     */
+    public CompletableFuture<Result<ReplicaRecord>> addDatabase(final String name, final int numReplicas,
+                                                                final String constraintsJson) {
+        return submit(new DatabaseSpec(name, numReplicas, constraintsJson), p -> { },
+                      p -> placedReplicas(p, name));
+    }
+
+    /*
+     * Completes with the replicas of the database once any new ones are placed, or fails like addDatabase()
+     */
+    public CompletableFuture<Result<ReplicaRecord>> editDatabase(final String name, final int numReplicas,
+                                                                 final String constraintsJson) {
+        return submit(null, p -> p.editDatabase(name, numReplicas, constraintsJson),
+                      p -> placedReplicas(p, name));
+    }
+
+    public CompletableFuture<Void> setLeasePreferences(final String name, final String leasePreferencesJson) {
+        return submit(null, p -> p.setLeasePreferences(name, leasePreferencesJson), p -> null);
+    }
+
+    /*
+     * Completes with the number of ranges whose lease moved
+     */
+    public CompletableFuture<Integer> rebalanceLeases() {
+        return submit(ReplicaPlacement::rebalanceLeases);
+    }
+
+    public CompletableFuture<Void> updateQpsForDb(final String database, final int value) {
+        return submit(null, p -> p.updateQpsForDb(database, value), p -> null);
+    }
+
+    /*
+     * Telemetry is buffered in a thread-safe way, so samples bypass the request queue
+     */
+    public void recordReplicaQps(final int replicaId, final double qps) {
+        placement.recordReplicaQps(replicaId, qps);
+    }
+
+    public void recordRangeQps(final int rangeId, final double qps) {
+        placement.recordRangeQps(rangeId, qps);
+    }
+
+    /*
+     * Run an arbitrary function on the writer thread. The future completes with its return value once
+     * placement has run for the group of requests it was part of.
+     */
+    public <T> CompletableFuture<T> submit(final Function<ReplicaPlacement, T> function) {
+        final List<T> value = new ArrayList<>(1);
+        return submit(null, p -> value.add(function.apply(p)), p -> value.get(0));
+    }
+
+    private <T> CompletableFuture<T> submit(final DatabaseSpec newDatabase,
+                                            final Consumer<ReplicaPlacement> mutation,
+                                            final Function<ReplicaPlacement, T> result) {
+        final Request<T> request = new Request<>(newDatabase, mutation, result);
+        // Either close() has not started yet and will find the request in the queue, or it is rejected here
+        synchronized (submitLock) {
+            if (!running) {
+                throw new IllegalStateException("Placement service is closed");
+            }
+            requests.add(request);
+        }
+        return request.future;
+    }
+
+    private static Result<ReplicaRecord> placedReplicas(final ReplicaPlacement placement, final String database) {
+        final Result<ReplicaRecord> replicas = placement.getReplicaRangesForDb(database);
+        final Set<Integer> rangeIds = replicas.intoSet(Tables.REPLICA.RANGE_ID);
+        for (final PendingRangeRecord rejected: placement.getRejectedRanges()) {
+            if (rangeIds.contains(rejected.getRangeId())) {
+                throw new IllegalStateException(String.format("Range %d of database %s cannot be placed: %s",
+                                                              rejected.getRangeId(), database,
+                                                              rejected.getRejectionReason()));
+            }
+        }
+        return replicas;
+    }
+
+    private void run() {
+        long nextLoadCheck = System.currentTimeMillis() + loadCheckIntervalMillis;
+        while (running) {
+            try {
+                final Request<?> first =
+                        requests.poll(Math.max(0, nextLoadCheck - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                if (!running) {
+                    if (first != null) {
+                        first.cancel();
+                    }
+                    return;
+                }
+                if (first != null) {
+                    applyRequests(first);
+                }
+                if (System.currentTimeMillis() >= nextLoadCheck) {
+                    checkLoad();
+                    nextLoadCheck = System.currentTimeMillis() + loadCheckIntervalMillis;
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (final RuntimeException e) {
+                LOG.error("Placement service iteration failed", e);
+            }
+        }
+    }
+
+    /*
+     * Apply first and every request that arrives during the debounce window after it, place all new
+     * replicas in one solve, and then complete each request's future. Every request taken off the queue
+     * gets its future completed, even if the batch fails unexpectedly.
+     */
+    private void applyRequests(final Request<?> first) throws InterruptedException {
+        final List<Request<?>> batch = new ArrayList<>();
+        batch.add(first);
+        try {
+            applyBatch(batch);
+        } catch (final InterruptedException | RuntimeException e) {
+            batch.forEach(r -> r.fail(e));
+            throw e;
+        }
+    }
+
+    private void applyBatch(final List<Request<?>> batch) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + debounceMillis;
+        long remaining;
+        while ((remaining = deadline - System.currentTimeMillis()) > 0) {
+            final Request<?> next = requests.poll(remaining, TimeUnit.MILLISECONDS);
+            if (next == null) {
+                break;
+            }
+            batch.add(next);
+        }
+        requests.drainTo(batch);
+
+        final List<Request<?>> applied = new ArrayList<>(batch.size());
+        final List<Request<?>> newDatabases = new ArrayList<>();
+        for (final Request<?> request: batch) {
+            if (request.newDatabase != null) {
+                newDatabases.add(request);
+                continue;
+            }
+            // Keep requests in order, e.g., a database has to be added before it is edited
+            insertDatabases(newDatabases, applied);
+            try {
+                request.mutation.accept(placement);
+                applied.add(request);
+            } catch (final RuntimeException e) {
+                request.fail(e);
+            }
+        }
+        insertDatabases(newDatabases, applied);
+        LOG.debug("Applied {} of {} requests", applied.size(), batch.size());
+
+        try {
+            placement.placeReplicas();
+        } catch (final RuntimeException e) {
+            applied.forEach(r -> r.fail(e));
+            return;
+        }
+        applied.forEach(r -> r.complete(placement));
+    }
+
+    /*
+     * Insert the databases of a group of addDatabase requests in one transaction. If that fails, each
+     * database is inserted on its own, so that only the requests at fault fail.
+     */
+    private void insertDatabases(final List<Request<?>> newDatabases, final List<Request<?>> applied) {
+        if (newDatabases.isEmpty()) {
+            return;
+        }
+        try {
+            placement.insertDatabases(newDatabases.stream().map(r -> r.newDatabase).collect(Collectors.toList()));
+            applied.addAll(newDatabases);
+        } catch (final RuntimeException e) {
+            if (newDatabases.size() == 1) {
+                newDatabases.get(0).fail(e);
+            } else {
+                for (final Request<?> request: newDatabases) {
+                    insertDatabases(new ArrayList<>(List.of(request)), applied);
+                }
+            }
+        }
+        newDatabases.clear();
+    }
+
+    private void checkLoad() {
+        placement.flushQpsTelemetry();
+        if (!migrating && placement.hasOverloadedNodes(migrateAboveQps)) {
+            LOG.info("Node load reached {} qps, starting migration", migrateAboveQps);
+            migrating = true;
+        }
+        if (migrating) {
+            placement.migrateReplicasOnOverloadedNodes(settledBelowQps);
+            if (!placement.hasOverloadedNodes(settledBelowQps)) {
+                LOG.info("All nodes below {} qps, stopping migration", settledBelowQps);
+                migrating = false;
+            }
+        }
+    }
+
+    private static final class Request<T> {
+        final DatabaseSpec newDatabase; // Set for addDatabase requests, which are inserted in groups
+        final Consumer<ReplicaPlacement> mutation;
+        final Function<ReplicaPlacement, T> result; // Evaluated after placement
+        final CompletableFuture<T> future = new CompletableFuture<>();
+
+        Request(final DatabaseSpec newDatabase, final Consumer<ReplicaPlacement> mutation,
+                final Function<ReplicaPlacement, T> result) {
+            this.newDatabase = newDatabase;
+            this.mutation = mutation;
+            this.result = result;
+        }
+
+        void complete(final ReplicaPlacement placement) {
+            final T value;
+            try {
+                value = result.apply(placement);
+            } catch (final RuntimeException e) {
+                fail(e);
+                return;
+            }
+            completeAsync(() -> future.complete(value));
+        }
+
+        void fail(final Throwable e) {
+            completeAsync(() -> future.completeExceptionally(e));
+        }
+
+        void cancel() {
+            completeAsync(() -> future.cancel(false));
+        }
+
+        /*
+         * Dependent stages run on the thread that completes their future. Completing it on the common pool
+         * keeps them off the writer, which they could otherwise block, or deadlock by waiting on a request.
+         */
+        private static void completeAsync(final Runnable completion) {
+            ForkJoinPool.commonPool().execute(completion);
+        }
+    }
+}
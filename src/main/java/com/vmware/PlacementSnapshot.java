@@ -0,0 +1,214 @@
+/*
+ * Copyright © 2018-2021 VMware, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: BSD-2
+ */
+
+package com.vmware;
+
+import com.vmware.generated.Tables;
+import org.jooq.Cursor;
+import org.jooq.DSLContext;
+import org.jooq.Field;
+import org.jooq.Record;
+import org.jooq.Table;
+import org.jooq.TableRecord;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.jooq.impl.DSL.using;
+
+/*
+ * Binary snapshot of the placement state, so that a ReplicaPlacement can start from a file instead of
+ * replaying every node and database through the public API.
+ *
+ * Layout (big-endian, as written by DataOutputStream):
+ *   int MAGIC, int VERSION
+ *   for each table in TABLES:
+ *     int column count, then each column name as a string
+ *     for each row: byte ROW, then each value as a null flag byte followed by the value if not null
+ *     byte END
+ * Strings are an int byte length followed by UTF-8 bytes. Columns are matched by name when loading, so
+ * snapshots stay readable after columns are added to the schema: missing columns take their defaults.
+ *
+ * Snapshots are written while streaming over the tables, to a temporary file that only replaces the target
+ * once it is complete and synced, so a failed write leaves the previous snapshot intact. They are read from a
+ * memory-mapped file, which limits them to 2GB. Derived state (constraint_set_domain, and the in-memory
+ * indexes of ReplicaPlacement) is not stored, and has to be rebuilt after loading.
+ */
+final class PlacementSnapshot {
+    private static final int MAGIC = 0x44434d53; // "DCMS"
+    private static final int VERSION = 1;
+    private static final byte ROW = 1;
+    private static final byte END = 0;
+
+    // In foreign key order
+    private static final List<Table<? extends TableRecord<?>>> TABLES = List.of(
+            Tables.NODE, Tables.NODE_LABEL, Tables.CONSTRAINT_SET, Tables.REPLICA_CONSTRAINT, Tables.DATABASE,
+            Tables.RANGE, Tables.PENDING_RANGE, Tables.REPLICA);
+
+    private PlacementSnapshot() {
+    }
+
+    static void write(final DSLContext conn, final Path file) throws IOException {
+        final Path target = file.toAbsolutePath();
+        final Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            try (final FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+                 final DataOutputStream out = new DataOutputStream(
+                         new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16))) {
+                writeTables(conn, out);
+                out.flush();
+                channel.force(true);
+            }
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static void writeTables(final DSLContext conn, final DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        for (final Table<? extends TableRecord<?>> table: TABLES) {
+            final Field<?>[] fields = table.fields();
+            out.writeInt(fields.length);
+            for (final Field<?> field: fields) {
+                writeString(out, field.getName());
+            }
+            try (final Cursor<? extends Record> cursor = conn.selectFrom(table).fetchLazy()) {
+                for (final Record record: cursor) {
+                    out.writeByte(ROW);
+                    for (final Field<?> field: fields) {
+                        writeValue(out, field, record.get(field));
+                    }
+                }
+            }
+            out.writeByte(END);
+        }
+    }
+
+    /*
+     * Insert the rows of a snapshot into conn, whose tables must be empty, in a single transaction
+     */
+    static void read(final DSLContext conn, final Path file) throws IOException {
+        final MappedByteBuffer in;
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        final List<List<TableRecord<?>>> rows;
+        try {
+            rows = readTables(in, file);
+        } catch (final BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+            throw new IOException("Truncated or corrupt placement snapshot: " + file, e);
+        }
+        conn.transaction(configuration -> {
+            final DSLContext tx = using(configuration);
+            for (final List<TableRecord<?>> records: rows) {
+                if (!records.isEmpty()) {
+                    tx.batchInsert(records).execute();
+                }
+            }
+        });
+    }
+
+    /*
+     * @return the rows of every table in TABLES, in order
+     */
+    private static List<List<TableRecord<?>>> readTables(final ByteBuffer in, final Path file) throws IOException {
+        if (in.getInt() != MAGIC) {
+            throw new IOException("Not a placement snapshot: " + file);
+        }
+        final int version = in.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported placement snapshot version " + version + ": " + file);
+        }
+        final List<List<TableRecord<?>>> rows = new ArrayList<>(TABLES.size());
+        for (final Table<? extends TableRecord<?>> table: TABLES) {
+            final Field<?>[] fields = new Field<?>[in.getInt()];
+            for (int i = 0; i < fields.length; i++) {
+                final String name = readString(in);
+                fields[i] = table.field(name);
+                if (fields[i] == null) {
+                    throw new IOException("Unknown column " + table.getName() + "." + name + " in " + file);
+                }
+            }
+            final List<TableRecord<?>> records = new ArrayList<>();
+            while (in.get() == ROW) {
+                final TableRecord<?> record = table.newRecord();
+                for (final Field<?> field: fields) {
+                    readValue(in, record, field);
+                }
+                records.add(record);
+            }
+            rows.add(records);
+        }
+        return rows;
+    }
+
+    private static void writeValue(final DataOutputStream out, final Field<?> field, final Object value)
+            throws IOException {
+        out.writeBoolean(value == null);
+        if (value == null) {
+            return;
+        }
+        final Class<?> type = field.getType();
+        if (type == Integer.class) {
+            out.writeInt((Integer) value);
+        } else if (type == Long.class) {
+            out.writeLong((Long) value);
+        } else if (type == Boolean.class) {
+            out.writeBoolean((Boolean) value);
+        } else if (type == String.class) {
+            writeString(out, (String) value);
+        } else {
+            throw new IllegalArgumentException("Unsupported column type " + type + " of " + field);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void readValue(final ByteBuffer in, final Record record, final Field<?> field) {
+        final boolean isNull = in.get() != 0;
+        final Class<?> type = field.getType();
+        final Object value;
+        if (isNull) {
+            value = null;
+        } else if (type == Integer.class) {
+            value = in.getInt();
+        } else if (type == Long.class) {
+            value = in.getLong();
+        } else if (type == Boolean.class) {
+            value = in.get() != 0;
+        } else if (type == String.class) {
+            value = readString(in);
+        } else {
+            throw new IllegalArgumentException("Unsupported column type " + type + " of " + field);
+        }
+        record.set((Field<Object>) field, value);
+    }
+
+    private static void writeString(final DataOutputStream out, final String value) throws IOException {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(final ByteBuffer in) {
+        final byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -19,15 +19,15 @@ public class Policies {
     }
 
     /*
-     * Enforce the affinity/anti-affinities computed in the replica_to_node_constraint_matching view
+     * Enforce the affinity/anti-affinities by restricting replicas to the candidate nodes precomputed for
+     * their constraint set in the constraint_set_domain table
      */
     private static List<String> nodeAffinityAndAntiAffinity() {
         return List.of("CREATE VIEW node_affinity_anti_affinity AS " +
                 "SELECT * FROM pending_replicas r " +
-                "JOIN replica_to_node_constraint_matching rncm ON " +
-                " r.id = rncm.replica_id " +
-                "CHECK (type != 'required' OR contains(rncm.node_id_list, r.controllable__node) = true)" +
-                "AND (type != 'prohibited' OR contains(rncm.node_id_list, r.controllable__node) = false)");
+                "JOIN constraint_set_domain csd ON " +
+                " r.constraint_set_id = csd.constraint_set_id " +
+                "CHECK contains(csd.node_id_list, r.controllable__node) = true");
     }
 
     /*
@@ -92,6 +92,34 @@ public class Policies {
         return List.of(doNotReassignReplicas);
     }
 
+    /*
+     * Replicas picked for migration off an overloaded node must move to a node that is not overloaded
+     */
+    private static List<String> moveMigratingReplicas() {
+        final String moveMigratingReplicas = "CREATE VIEW move_migrating_replicas AS " +
+                                             "SELECT * " +
+                                             "FROM pending_replicas " +
+                                             "WHERE status = 'migrating' " +
+                                             "CHECK current_node != controllable__node " +
+                                             "AND controllable__node IN " +
+                                             "    (SELECT node.id FROM node WHERE node.overloaded = false)";
+        return List.of(moveMigratingReplicas);
+    }
+
+    /*
+     * Prefer the node a replica was assigned to by a pooled solve that failed for other partitions, and so
+     * was not committed (see SolverPool.PartialSolutionException). Retrying then leans towards what the
+     * successful partitions found. Nothing else sets a hint.
+     */
+    private static List<String> preferHintedNodes() {
+        final String preferHintedNodes = "CREATE VIEW prefer_hinted_nodes AS " +
+                                         "SELECT * " +
+                                         "FROM pending_replicas " +
+                                         "WHERE hint_node >= 0 " +
+                                         "MAXIMIZE controllable__node = hint_node";
+        return List.of(preferHintedNodes);
+    }
+
     /*
      * Never assign two replicas to the same node
      */
@@ -121,6 +149,101 @@ public class Policies {
         return List.of(computeIncidentLoad, distributeByQps);
     }
 
+    /*
+     * The replicas placed on a node must fit within the capacity it has left in every load dimension. Running
+     * replicas are already accounted for in the headroom columns, so only the replicas being placed count.
+     */
+    private static List<String> respectNodeCapacity() {
+        final String qpsCapacity = "CREATE VIEW qps_capacity AS " +
+                                   "SELECT * FROM pending_replicas r " +
+                                   "JOIN node n ON r.controllable__node = n.id " +
+                                   "WHERE r.status != 'running' " +
+                                   "GROUP BY n.id, n.qps_headroom " +
+                                   "CHECK sum(r.qps) <= n.qps_headroom";
+        final String diskCapacity = "CREATE VIEW disk_capacity AS " +
+                                    "SELECT * FROM pending_replicas r " +
+                                    "JOIN node n ON r.controllable__node = n.id " +
+                                    "WHERE r.status != 'running' " +
+                                    "GROUP BY n.id, n.disk_headroom_mb " +
+                                    "CHECK sum(r.disk_mb) <= n.disk_headroom_mb";
+        final String writeCapacity = "CREATE VIEW write_capacity AS " +
+                                     "SELECT * FROM pending_replicas r " +
+                                     "JOIN node n ON r.controllable__node = n.id " +
+                                     "WHERE r.status != 'running' " +
+                                     "GROUP BY n.id, n.write_headroom_kbps " +
+                                     "CHECK sum(r.write_kbps) <= n.write_headroom_kbps";
+        return List.of(qpsCapacity, diskCapacity, writeCapacity);
+    }
+
+    /*
+     * Prefer nodes using less disk
+     */
+    private static List<String> distributeByDisk() {
+        final String computeIncidentDisk = "CREATE VIEW compute_incident_disk AS " +
+                                           "SELECT sum(disk_mb) as incident_disk " +
+                                           "FROM pending_replicas " +
+                                           "JOIN node " +
+                                           "   ON controllable__node = node.id " +
+                                           "GROUP BY node.id";
+        final String distributeByDisk = "CREATE VIEW distribute_by_disk AS " +
+                                        "SELECT * " +
+                                        "FROM compute_incident_disk " +
+                                        "MAXIMIZE min(incident_disk)";
+        return List.of(computeIncidentDisk, distributeByDisk);
+    }
+
+    /*
+     * Prefer nodes with less write throughput
+     */
+    private static List<String> distributeByWrites() {
+        final String computeIncidentWrites = "CREATE VIEW compute_incident_writes AS " +
+                                             "SELECT sum(write_kbps) as incident_writes " +
+                                             "FROM pending_replicas " +
+                                             "JOIN node " +
+                                             "   ON controllable__node = node.id " +
+                                             "GROUP BY node.id";
+        final String distributeByWrites = "CREATE VIEW distribute_by_writes AS " +
+                                          "SELECT * " +
+                                          "FROM compute_incident_writes " +
+                                          "MAXIMIZE min(incident_writes)";
+        return List.of(computeIncidentWrites, distributeByWrites);
+    }
+
+    /*
+     * Place leaseholders on nodes matching the first lease preference of their database
+     */
+    private static List<String> preferLeaseLocalities() {
+        final String preferLeaseLocalities = "CREATE VIEW prefer_lease_localities AS " +
+                                             "SELECT * FROM pending_replicas r " +
+                                             "JOIN constraint_set_domain csd ON " +
+                                             " r.lease_constraint_set_id = csd.constraint_set_id " +
+                                             "WHERE r.leaseholder = true " +
+                                             "MAXIMIZE contains(csd.node_id_list, r.controllable__node) = true";
+        return List.of(preferLeaseLocalities);
+    }
+
+    /*
+     * Spread leaseholders, and the reads they serve, evenly across nodes
+     */
+    private static List<String> distributeLeases() {
+        final String computeLeasesPerNode = "CREATE VIEW compute_leases_per_node AS " +
+                                            "SELECT count(*) as leases, sum(qps) as lease_load " +
+                                            "FROM pending_replicas " +
+                                            "JOIN node " +
+                                            "   ON controllable__node = node.id " +
+                                            "WHERE leaseholder = true " +
+                                            "GROUP BY node.id";
+        final String distributeLeaseCount = "CREATE VIEW distribute_lease_count AS " +
+                                            "SELECT * " +
+                                            "FROM compute_leases_per_node " +
+                                            "MAXIMIZE min(leases)";
+        final String distributeLeaseQps = "CREATE VIEW distribute_lease_qps AS " +
+                                          "SELECT * " +
+                                          "FROM compute_leases_per_node " +
+                                          "MAXIMIZE min(lease_load)";
+        return List.of(computeLeasesPerNode, distributeLeaseCount, distributeLeaseQps);
+    }
+
     public static List<String> defaultPolicies() {
         final List<String> policies = new ArrayList<>();
         policies.addAll(nodeDomain());
@@ -130,7 +253,14 @@ public class Policies {
         policies.addAll(useMoreNodes());
         policies.addAll(distributeAcrossDistinctNodes());
         policies.addAll(doNotReassignReplicas());
+        policies.addAll(moveMigratingReplicas());
+        policies.addAll(respectNodeCapacity());
         policies.addAll(distributeByQps());
+        policies.addAll(distributeByDisk());
+        policies.addAll(distributeByWrites());
+        policies.addAll(preferLeaseLocalities());
+        policies.addAll(distributeLeases());
+        policies.addAll(preferHintedNodes());
         return policies;
     }
 }
@@ -0,0 +1,107 @@
+/*
+ * Copyright © 2018-2021 VMware, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: BSD-2
+ */
+
+package com.vmware;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/*
+ * Buffers qps samples reported for individual replicas or whole ranges. Samples may be recorded from any
+ * thread without locking. Each replica or range keeps an exponentially weighted moving average of its
+ * samples, and the averages that changed since the last drain are periodically written to the replica
+ * table in one batch (see ReplicaPlacement.flushQpsTelemetry()).
+ */
+class QpsTelemetry {
+    static final double DEFAULT_SMOOTHING_FACTOR = 0.3;
+    private final double alpha;
+    private final Map<Integer, Ewma> replicaQps = new ConcurrentHashMap<>();
+    private final Map<Integer, Ewma> rangeQps = new ConcurrentHashMap<>();
+
+    /*
+     * @param alpha the weight of a new sample in the moving average, between 0 (exclusive) and 1
+     */
+    QpsTelemetry(final double alpha) {
+        if (!(alpha > 0 && alpha <= 1)) {
+            throw new IllegalArgumentException("Smoothing factor must be in (0, 1]: " + alpha);
+        }
+        this.alpha = alpha;
+    }
+
+    void recordReplicaQps(final int replicaId, final double qps) {
+        record(replicaQps, replicaId, qps);
+    }
+
+    void recordRangeQps(final int rangeId, final double qps) {
+        record(rangeQps, rangeId, qps);
+    }
+
+    /*
+     * Pass the smoothed qps of every replica with new samples since the last drain to consumer
+     */
+    void drainReplicaQps(final BiConsumer<Integer, Integer> consumer) {
+        drain(replicaQps, consumer);
+    }
+
+    /*
+     * Pass the smoothed qps of every range with new samples since the last drain to consumer
+     */
+    void drainRangeQps(final BiConsumer<Integer, Integer> consumer) {
+        drain(rangeQps, consumer);
+    }
+
+    /*
+     * Stop tracking replicas or ranges that no longer exist
+     */
+    void forgetReplica(final int replicaId) {
+        replicaQps.remove(replicaId);
+    }
+
+    void forgetRange(final int rangeId) {
+        rangeQps.remove(rangeId);
+    }
+
+    private void record(final Map<Integer, Ewma> averages, final int id, final double qps) {
+        Ewma average = averages.get(id);
+        if (average == null) {
+            average = averages.computeIfAbsent(id, k -> new Ewma());
+        }
+        average.update(qps, alpha);
+    }
+
+    private static void drain(final Map<Integer, Ewma> averages, final BiConsumer<Integer, Integer> consumer) {
+        averages.forEach((id, average) -> {
+            if (average.dirty) {
+                // Clear the flag before reading, so that a concurrent sample is at worst flushed twice
+                average.dirty = false;
+                consumer.accept(id, (int) Math.round(average.value()));
+            }
+        });
+    }
+
+    private static final class Ewma {
+        private static final long UNSET = Double.doubleToRawLongBits(Double.NaN);
+        private final AtomicLong bits = new AtomicLong(UNSET);
+        private volatile boolean dirty = false;
+
+        void update(final double sample, final double alpha) {
+            long previousBits;
+            long nextBits;
+            do {
+                previousBits = bits.get();
+                final double previous = Double.longBitsToDouble(previousBits);
+                final double next = Double.isNaN(previous) ? sample : previous + alpha * (sample - previous);
+                nextBits = Double.doubleToRawLongBits(next);
+            } while (!bits.compareAndSet(previousBits, nextBits));
+            dirty = true;
+        }
+
+        double value() {
+            return Double.longBitsToDouble(bits.get());
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright © 2018-2021 VMware, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: BSD-2
+ */
+
+package com.vmware;
+
+import com.vmware.generated.tables.records.ReplicaRecord;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/*
+ * Splits pending ranges into groups that can be placed independently. Two ranges interact if any of
+ * their replicas may be placed on a common node (their candidate node sets overlap), since all policies
+ * either apply per range or per node. Ranges are therefore grouped into connected components of the
+ * "shares a candidate node" relation, and each component can be solved on its own.
+ */
+final class RangePartitioner {
+
+    private RangePartitioner() {
+    }
+
+    static final class Partition {
+        final List<Integer> rangeIds = new ArrayList<>();
+        final List<ReplicaRecord> replicas = new ArrayList<>(); // The replicas of rangeIds to solve for
+        final BitSet nodes = new BitSet();
+    }
+
+    /*
+     * @param pendingReplicas all replicas of the pending ranges
+     * @param candidateNodes the nodes a replica with a given constraint set may be placed on
+     * @param allNodes all nodes in the cluster
+     */
+    static List<Partition> partition(final List<ReplicaRecord> pendingReplicas,
+                                     final Function<Integer, BitSet> candidateNodes, final BitSet allNodes) {
+        // Nodes that each range may use. Running replicas keep their current node.
+        final Map<Integer, BitSet> nodesPerRange = new LinkedHashMap<>();
+        final Map<Integer, List<ReplicaRecord>> replicasPerRange = new HashMap<>();
+        for (final ReplicaRecord replica: pendingReplicas) {
+            replicasPerRange.computeIfAbsent(replica.getRangeId(), r -> new ArrayList<>()).add(replica);
+            final BitSet nodes = nodesPerRange.computeIfAbsent(replica.getRangeId(), r -> new BitSet());
+            if (replica.getStatus().equals("running") && replica.getCurrentNode() != null) {
+                nodes.set(replica.getCurrentNode());
+            } else {
+                nodes.or(candidateNodes.apply(replica.getConstraintSetId()));
+            }
+        }
+
+        // Ranges that may use any node (the common case) interact with everything else
+        final int numNodes = allNodes.cardinality();
+        if (nodesPerRange.values().stream().anyMatch(nodes -> nodes.cardinality() == numNodes)) {
+            final Partition partition = new Partition();
+            partition.rangeIds.addAll(nodesPerRange.keySet());
+            partition.replicas.addAll(pendingReplicas);
+            partition.nodes.or(allNodes);
+            return List.of(partition);
+        }
+
+        // Union-find over distinct node sets, connecting sets that share a node
+        final Map<BitSet, Integer> distinctNodeSets = new LinkedHashMap<>();
+        nodesPerRange.values().forEach(nodes -> distinctNodeSets.putIfAbsent(nodes, distinctNodeSets.size()));
+        final int[] parent = new int[distinctNodeSets.size()];
+        for (int i = 0; i < parent.length; i++) {
+            parent[i] = i;
+        }
+        final Map<Integer, Integer> nodeOwner = new HashMap<>();
+        distinctNodeSets.forEach((nodes, setIndex) -> {
+            for (int node = nodes.nextSetBit(0); node >= 0; node = nodes.nextSetBit(node + 1)) {
+                final Integer owner = nodeOwner.putIfAbsent(node, setIndex);
+                if (owner != null) {
+                    parent[find(parent, owner)] = find(parent, setIndex);
+                }
+            }
+        });
+
+        final Map<Integer, Partition> partitions = new LinkedHashMap<>();
+        nodesPerRange.forEach((rangeId, nodes) -> {
+            final int root = find(parent, distinctNodeSets.get(nodes));
+            final Partition partition = partitions.computeIfAbsent(root, r -> new Partition());
+            partition.rangeIds.add(rangeId);
+            partition.replicas.addAll(replicasPerRange.get(rangeId));
+            partition.nodes.or(nodes);
+        });
+        return new ArrayList<>(partitions.values());
+    }
+
+    private static int find(final int[] parent, final int i) {
+        int root = i;
+        while (parent[root] != root) {
+            root = parent[root];
+        }
+        // Path compression
+        int current = i;
+        while (parent[current] != root) {
+            final int next = parent[current];
+            parent[current] = root;
+            current = next;
+        }
+        return root;
+    }
+}
@@ -7,44 +7,161 @@ import com.google.gson.JsonParser;
 import com.vmware.dcm.Model;
 import com.vmware.generated.Tables;
 import com.vmware.generated.tables.records.DatabaseRecord;
+import com.vmware.generated.tables.records.NodeLabelRecord;
+import com.vmware.generated.tables.records.NodeRecord;
+import com.vmware.generated.tables.records.PendingRangeRecord;
 import com.vmware.generated.tables.records.RangeRecord;
 import com.vmware.generated.tables.records.ReplicaRecord;
+import org.jooq.BatchBindStep;
+import org.jooq.Condition;
 import org.jooq.DSLContext;
+import org.jooq.Field;
 import org.jooq.Record;
 import org.jooq.Record2;
 import org.jooq.Result;
 import org.jooq.Table;
+import org.jooq.TableField;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
 import java.math.BigDecimal;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
 import java.util.stream.Collectors;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import static org.jooq.impl.DSL.count;
+import static org.jooq.impl.DSL.field;
+import static org.jooq.impl.DSL.max;
+import static org.jooq.impl.DSL.noCondition;
+import static org.jooq.impl.DSL.select;
+import static org.jooq.impl.DSL.selectDistinct;
 import static org.jooq.impl.DSL.sum;
 import static org.jooq.impl.DSL.using;
 
-public class ReplicaPlacement {
-    private static final int DEFAULT_NUM_REPLICAS = 3;
+public class ReplicaPlacement implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(ReplicaPlacement.class);
+    static final int DEFAULT_NUM_REPLICAS = 3;
     private static final int DEFAULT_QPS = 10;
+    private static final int DEFAULT_MAX_MOVES_PER_ROUND = 64;
     private static final Integer AUTOGENERATED_KEY = null;
     private final DSLContext conn;
     private final Model model;
+    private final NodeLabelIndex nodeLabelIndex = new NodeLabelIndex();
+    private final NodeLoad nodeLoad = new NodeLoad();
+    private final PlacementMetrics metrics = new PlacementMetrics();
+    private final QpsTelemetry qpsTelemetry = new QpsTelemetry(QpsTelemetry.DEFAULT_SMOOTHING_FACTOR);
+    private final ConstraintSets constraintSets;
+    private final Map<List<Object>, List<Integer>> constraintSetsByZoneConfig = new HashMap<>();
+    private final Map<String, List<Integer>> constraintSetsByLeasePreferences = new HashMap<>();
+    private final SolverPool solverPool;
+    private final SolverOptions solverOptions;
+    private int windowSize = 0; // 0 disables windowed placement
+    private boolean greedyPlacement = false;
+    private boolean hierarchicalPlacement = false;
+    private int splitAboveQps = 0; // 0 disables load-based splitting
+    private long targetWindowMillis;
 
-    private ReplicaPlacement(final List<String> constraints) {
+    private ReplicaPlacement(final List<String> constraints, final SolverOptions solverOptions) {
+        this.solverOptions = solverOptions;
+        long start = metrics.start();
         conn = setup();
-        model = Model.build(conn, constraints);
+        metrics.stop(PlacementMetrics.Phase.SCHEMA_SETUP, start);
+        start = metrics.start();
+        model = solverOptions.buildModel(conn, constraints);
+        metrics.stop(PlacementMetrics.Phase.MODEL_BUILD, start);
+        constraintSets = new ConstraintSets(conn, nodeLabelIndex);
+        solverPool = new SolverPool(constraints, solverOptions);
     }
 
     public static ReplicaPlacement init() {
-        return new ReplicaPlacement(Policies.defaultPolicies());
+        return init(SolverOptions.defaults());
+    }
+
+    public static ReplicaPlacement init(final SolverOptions solverOptions) {
+        return new ReplicaPlacement(Policies.defaultPolicies(), solverOptions);
+    }
+
+    /*
+     * Start from a snapshot written by saveSnapshot(), instead of adding every node and database again.
+     * Replicas keep the nodes they were placed on, and ranges that were pending are still pending.
+     */
+    public static ReplicaPlacement fromSnapshot(final Path file) throws IOException {
+        return fromSnapshot(file, SolverOptions.defaults());
+    }
+
+    public static ReplicaPlacement fromSnapshot(final Path file, final SolverOptions solverOptions)
+            throws IOException {
+        final ReplicaPlacement placement = new ReplicaPlacement(Policies.defaultPolicies(), solverOptions);
+        final long start = System.nanoTime();
+        try {
+            PlacementSnapshot.read(placement.conn, file);
+        } catch (final IOException | RuntimeException e) {
+            placement.close();
+            throw e;
+        }
+        placement.rebuildIndexes();
+        LOG.info("Restored snapshot {} in {}ms", file, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return placement;
+    }
+
+    /*
+     * Stop the solver pool's threads and drop the in-memory databases of the pool and of this instance, which
+     * cannot be used afterwards
+     */
+    @Override
+    public void close() {
+        solverPool.close();
+        conn.close();
+    }
+
+    /*
+     * Write the nodes, databases, ranges and replicas to a compact binary file (see PlacementSnapshot)
+     */
+    public void saveSnapshot(final Path file) throws IOException {
+        PlacementSnapshot.write(conn, file);
+    }
+
+    /*
+     * Rebuild the in-memory state derived from the tables
+     */
+    private void rebuildIndexes() {
+        conn.select(Tables.NODE.ID).from(Tables.NODE).forEach(r -> nodeLabelIndex.addNode(r.value1()));
+        conn.selectFrom(Tables.NODE_LABEL)
+            .forEach(l -> nodeLabelIndex.addLabel(l.getId(), l.getLabelKey(), l.getLabelValue()));
+        constraintSets.reload();
+        conn.selectFrom(Tables.REPLICA)
+            .where(Tables.REPLICA.CURRENT_NODE.isNotNull())
+            .forEach(r -> nodeLoad.addReplica(r.getCurrentNode(), r));
+        for (final NodeRecord node: conn.selectFrom(Tables.NODE)) {
+            for (final LoadDimension dimension: LoadDimension.values()) {
+                final Integer capacity = node.get(dimension.capacity);
+                nodeLoad.setCapacity(node.getId(), dimension, capacity == null ? NodeLoad.UNLIMITED : capacity);
+            }
+        }
     }
 
     public void bootstrap() {
@@ -56,13 +173,182 @@ public class ReplicaPlacement {
         placeReplicas();
     }
 
+    /*
+     * Set the qps of a database, spread across its ranges (see updateLoadForDb())
+     */
     public void updateQpsForDb(final String database, final int value) {
-        final int rangeId = conn.select(Tables.DATABASE.ID).from(Tables.DATABASE)
-                                .where(Tables.DATABASE.NAME.eq(database)).fetch(Tables.DATABASE.ID).get(0);
-        conn.update(Tables.REPLICA)
-            .set(Tables.REPLICA.QPS, value)
-            .where(Tables.REPLICA.RANGE_ID.eq(rangeId))
-            .execute();
+        updateLoadForDb(database, LoadDimension.QPS, value);
+    }
+
+    /*
+     * Set the load of a database in one dimension. The load is spread across the database's ranges in
+     * proportion to their current load in that dimension (evenly, if none has any), and every replica of a
+     * range gets the range's share. Reporting the same load again therefore leaves ranges as they are, even
+     * after load-based splitting. Disk usage is in MB and write throughput in KB/s.
+     */
+    public void updateLoadForDb(final String database, final LoadDimension dimension, final int value) {
+        final int databaseId = conn.select(Tables.DATABASE.ID).from(Tables.DATABASE)
+                                   .where(Tables.DATABASE.NAME.eq(database)).fetch(Tables.DATABASE.ID).get(0);
+        final Result<ReplicaRecord> replicas = conn.selectFrom(Tables.REPLICA)
+                .where(Tables.REPLICA.RANGE_ID.in(select(Tables.RANGE.ID).from(Tables.RANGE)
+                                                          .where(Tables.RANGE.DATABASE_ID.eq(databaseId))))
+                .fetch();
+        final Map<Integer, Integer> loadPerRange = shareLoad(replicas.intoGroups(Tables.REPLICA.RANGE_ID),
+                                                             dimension, value);
+        updateLoad(replicas, dimension, r -> loadPerRange.get(r.getRangeId()));
+        if (dimension == LoadDimension.QPS) {
+            splitHotRanges(loadPerRange.keySet());
+        }
+    }
+
+    /*
+     * Split a load across ranges in proportion to the average load of their replicas. Shares are rounded
+     * cumulatively, in range ID order, so that they add up to the load exactly.
+     *
+     * @return the share of every range, by range ID
+     */
+    private static Map<Integer, Integer> shareLoad(final Map<Integer, Result<ReplicaRecord>> replicasPerRange,
+                                                   final LoadDimension dimension, final int load) {
+        final List<Integer> rangeIds = new ArrayList<>(replicasPerRange.keySet());
+        Collections.sort(rangeIds);
+        final double[] weights = new double[rangeIds.size()];
+        double totalWeight = 0;
+        for (int i = 0; i < rangeIds.size(); i++) {
+            weights[i] = replicasPerRange.get(rangeIds.get(i)).stream().mapToInt(dimension::of).average()
+                                         .orElse(0);
+            totalWeight += weights[i];
+        }
+        if (totalWeight == 0) {
+            Arrays.fill(weights, 1);
+            totalWeight = weights.length;
+        }
+        final Map<Integer, Integer> shares = new HashMap<>();
+        double cumulativeWeight = 0;
+        int shared = 0;
+        for (int i = 0; i < rangeIds.size(); i++) {
+            cumulativeWeight += weights[i];
+            final int sharedSoFar = (int) Math.round(load * cumulativeWeight / totalWeight);
+            shares.put(rangeIds.get(i), sharedSoFar - shared);
+            shared = sharedSoFar;
+        }
+        return shares;
+    }
+
+    /*
+     * Set the load of every replica of a range in one dimension
+     */
+    public void updateRangeLoad(final int rangeId, final LoadDimension dimension, final int value) {
+        final Result<ReplicaRecord> replicas = conn.selectFrom(Tables.REPLICA)
+                .where(Tables.REPLICA.RANGE_ID.eq(rangeId))
+                .fetch();
+        if (replicas.isEmpty()) {
+            throw new IllegalArgumentException("Range " + rangeId + " does not exist");
+        }
+        updateLoad(replicas, dimension, r -> value);
+        if (dimension == LoadDimension.QPS) {
+            splitHotRanges(List.of(rangeId));
+        }
+    }
+
+    /*
+     * Record a qps sample for a single replica. Safe to call from any thread at a high rate: samples are
+     * smoothed in memory and only written to the database by flushQpsTelemetry().
+     */
+    public void recordReplicaQps(final int replicaId, final double qps) {
+        qpsTelemetry.recordReplicaQps(replicaId, qps);
+    }
+
+    /*
+     * Record a qps sample that applies to every replica of a range. Same as recordReplicaQps() otherwise.
+     */
+    public void recordRangeQps(final int rangeId, final double qps) {
+        qpsTelemetry.recordRangeQps(rangeId, qps);
+    }
+
+    /*
+     * Write the smoothed qps of every replica and range with new samples to the replica table, using a single
+     * batched update. Samples for a replica take precedence over samples for its range.
+     *
+     * @return the number of replicas whose qps changed
+     */
+    public int flushQpsTelemetry() {
+        final long start = metrics.start();
+        final int updated = flushQpsTelemetryInternal();
+        metrics.stop(PlacementMetrics.Phase.TELEMETRY_FLUSH, start);
+        return updated;
+    }
+
+    private int flushQpsTelemetryInternal() {
+        final Map<Integer, Integer> qpsPerReplica = new HashMap<>();
+        final Map<Integer, Integer> qpsPerRange = new HashMap<>();
+        qpsTelemetry.drainReplicaQps(qpsPerReplica::put);
+        qpsTelemetry.drainRangeQps(qpsPerRange::put);
+        if (qpsPerReplica.isEmpty() && qpsPerRange.isEmpty()) {
+            return 0;
+        }
+        final Result<ReplicaRecord> replicas = conn.selectFrom(Tables.REPLICA)
+                .where(Tables.REPLICA.ID.in(qpsPerReplica.keySet()))
+                .or(Tables.REPLICA.RANGE_ID.in(qpsPerRange.keySet()))
+                .fetch();
+
+        // Stop tracking replicas and ranges that no longer exist
+        final Set<Integer> replicaIds = replicas.intoSet(Tables.REPLICA.ID);
+        final Set<Integer> rangeIds = replicas.intoSet(Tables.REPLICA.RANGE_ID);
+        qpsPerReplica.keySet().stream().filter(id -> !replicaIds.contains(id)).forEach(qpsTelemetry::forgetReplica);
+        qpsPerRange.keySet().stream().filter(id -> !rangeIds.contains(id)).forEach(qpsTelemetry::forgetRange);
+
+        final int updated = updateQps(replicas, r -> qpsPerReplica.getOrDefault(r.getId(),
+                qpsPerRange.getOrDefault(r.getRangeId(), qpsOrZero(r.getQps()))));
+        splitHotRanges(rangeIds);
+        return updated;
+    }
+
+    /*
+     * Set the qps of the given replicas to newQps, keeping the per-node load counters in sync
+     */
+    private int updateQps(final Result<ReplicaRecord> replicas, final ToIntFunction<ReplicaRecord> newQps) {
+        return updateLoad(replicas, LoadDimension.QPS, newQps);
+    }
+
+    /*
+     * Set the load of the given replicas in one dimension to newLoad, keeping the per-node load counters in sync
+     */
+    private int updateLoad(final Result<ReplicaRecord> replicas, final LoadDimension dimension,
+                           final ToIntFunction<ReplicaRecord> newLoad) {
+        final Map<Integer, Integer> deltaPerNode = new HashMap<>();
+        final int changed = writeLoad(conn, replicas, dimension, newLoad, deltaPerNode);
+        deltaPerNode.forEach((node, delta) -> nodeLoad.updateLoad(node, dimension, delta));
+        return changed;
+    }
+
+    /*
+     * Write the new load of the given replicas in one dimension using ctx, and add the resulting change in load
+     * of every node to deltaPerNode, without applying it to the per-node load counters
+     *
+     * @return the number of replicas whose load changed
+     */
+    private int writeLoad(final DSLContext ctx, final Result<ReplicaRecord> replicas, final LoadDimension dimension,
+                          final ToIntFunction<ReplicaRecord> newLoad, final Map<Integer, Integer> deltaPerNode) {
+        final BatchBindStep update = ctx.batch(ctx.update(Tables.REPLICA)
+                .set(dimension.load, (Integer) null)
+                .where(Tables.REPLICA.ID.eq((Integer) null)));
+        int changed = 0;
+        for (final ReplicaRecord replica: replicas) {
+            final int oldLoad = dimension.of(replica);
+            final int load = newLoad.applyAsInt(replica);
+            if (load != oldLoad) {
+                update.bind(load, replica.getId());
+                changed++;
+                if (replica.getCurrentNode() != null) {
+                    deltaPerNode.merge(replica.getCurrentNode(), load - oldLoad, Integer::sum);
+                }
+            }
+        }
+        if (changed > 0) {
+            update.execute();
+            metrics.rowsWritten(changed);
+        }
+        return changed;
     }
 
     /*
@@ -73,15 +359,127 @@ public class ReplicaPlacement {
     public void addNodeWithAttributes(final int nodeId, final List<String> localityLabels,
                                       final List<String> nodeCapabilityLabels,
                                       final List<String> storeCapabilityLabels) {
-        conn.insertInto(Tables.NODE)
-                .values(nodeId)
-                .execute();
-        localityLabels.stream().map(l -> toKeyValuePair(l, "="))
-                     .forEach(kvPair -> addNodeLabel(nodeId, kvPair.key, kvPair.value));
-        nodeCapabilityLabels.stream().map(l -> toKeyValuePair(l, ":"))
-                     .forEach(kvPair -> addNodeLabel(nodeId, kvPair.key, kvPair.value));
-        storeCapabilityLabels.stream().map(l -> toKeyValuePair(l, ":"))
-                     .forEach(kvPair -> addNodeLabel(nodeId, kvPair.key, kvPair.value));
+        addNodes(List.of(new NodeSpec(nodeId, localityLabels, nodeCapabilityLabels, storeCapabilityLabels)));
+    }
+
+    /*
+     * Bulk variant of addNodeWithAttributes(). All nodes and their labels are written using two batched
+     * inserts within a single transaction.
+     */
+    public void addNodes(final Collection<NodeSpec> nodes) {
+        final List<NodeRecord> nodeRecords = new ArrayList<>(nodes.size());
+        final List<NodeLabelRecord> nodeLabelRecords = new ArrayList<>();
+        for (final NodeSpec node: nodes) {
+            final int nodeId = node.getNodeId();
+            final NodeRecord nodeRecord = new NodeRecord();
+            nodeRecord.setId(nodeId);
+            nodeRecords.add(nodeRecord);
+            node.getLocalityLabels().stream().map(l -> toKeyValuePair(l, "="))
+                    .forEach(kvPair -> nodeLabelRecords.add(newNodeLabelRecord(nodeId, kvPair)));
+            node.getNodeCapabilityLabels().stream().map(l -> toKeyValuePair(l, ":"))
+                    .forEach(kvPair -> nodeLabelRecords.add(newNodeLabelRecord(nodeId, kvPair)));
+            node.getStoreCapabilityLabels().stream().map(l -> toKeyValuePair(l, ":"))
+                    .forEach(kvPair -> nodeLabelRecords.add(newNodeLabelRecord(nodeId, kvPair)));
+        }
+        conn.transaction(configuration -> {
+            final DSLContext tx = using(configuration);
+            tx.batchInsert(nodeRecords).execute();
+            tx.batchInsert(nodeLabelRecords).execute();
+        });
+        // The index only learns about the nodes once they exist, so a failed insert leaves it unchanged
+        nodeRecords.forEach(n -> nodeLabelIndex.addNode(n.getId()));
+        nodeLabelRecords.forEach(l -> nodeLabelIndex.addLabel(l.getId(), l.getLabelKey(), l.getLabelValue()));
+        constraintSets.refreshDomains();
+    }
+
+    /*
+     * Remove a node that left the cluster. The replicas it held are lost with it, so they become pending again
+     * and are placed elsewhere by the next call to placeReplicas(), along with the rest of their ranges.
+     */
+    public void removeNode(final int nodeId) {
+        if (!nodeLabelIndex.allNodes().get(nodeId)) {
+            throw new IllegalArgumentException("Node " + nodeId + " does not exist");
+        }
+        final Result<ReplicaRecord> lostReplicas = conn.selectFrom(Tables.REPLICA)
+                .where(Tables.REPLICA.CURRENT_NODE.eq(nodeId))
+                .fetch();
+        conn.transaction(configuration -> {
+            final DSLContext tx = using(configuration);
+            tx.update(Tables.REPLICA)
+              .set(Tables.REPLICA.STATUS, "pending")
+              .set(Tables.REPLICA.CURRENT_NODE, (Integer) null)
+              .set(Tables.REPLICA.LEASEHOLDER, false)
+              .where(Tables.REPLICA.CURRENT_NODE.eq(nodeId))
+              .execute();
+            tx.update(Tables.REPLICA)
+              .set(Tables.REPLICA.HINT_NODE, -1)
+              .where(Tables.REPLICA.HINT_NODE.eq(nodeId))
+              .execute();
+            markRangesPending(tx, Tables.REPLICA.ID.in(lostReplicas.intoSet(Tables.REPLICA.ID)));
+            tx.deleteFrom(Tables.NODE).where(Tables.NODE.ID.eq(nodeId)).execute();
+        });
+        lostReplicas.forEach(r -> nodeLoad.removeReplica(nodeId, r));
+        nodeLoad.removeNode(nodeId);
+        nodeLabelIndex.removeNode(nodeId);
+        constraintSets.refreshDomains();
+
+        // Leases held by the node move to the surviving replicas of their ranges
+        final Set<Integer> lostLeases = lostReplicas.stream().filter(ReplicaRecord::getLeaseholder)
+                                                    .map(ReplicaRecord::getRangeId).collect(Collectors.toSet());
+        if (!lostLeases.isEmpty()) {
+            transferLeases(Tables.REPLICA.RANGE_ID.in(lostLeases));
+        }
+        LOG.info("Removed node {}, {} replicas to re-place", nodeId, lostReplicas.size());
+    }
+
+    /*
+     * Set the capacity of a node in one dimension, or remove it if capacity is null. The replicas placed on
+     * the node from then on have to fit within it, and a node whose replicas exceed it counts as overloaded
+     * (see hasOverloadedNodes()).
+     */
+    public void setNodeCapacity(final int nodeId, final LoadDimension dimension, final Integer capacity) {
+        if (!nodeLabelIndex.allNodes().get(nodeId)) {
+            throw new IllegalArgumentException("Node " + nodeId + " does not exist");
+        }
+        if (capacity != null && capacity < 0) {
+            throw new IllegalArgumentException("Capacity cannot be negative");
+        }
+        conn.update(Tables.NODE)
+            .set(dimension.capacity, capacity)
+            .set(dimension.headroom, NodeLoad.UNLIMITED)
+            .where(Tables.NODE.ID.eq(nodeId))
+            .execute();
+        nodeLoad.setCapacity(nodeId, dimension, capacity == null ? NodeLoad.UNLIMITED : capacity);
+    }
+
+    /*
+     * Set the lease preferences of a database, in CockroachDB's zone configuration syntax as JSON: a list of
+     * constraint lists in order of preference, e.g., [["+region=us-east"], ["+region=us-west"]], or "" for
+     * none. Leases move to the preferred replicas right away (see rebalanceLeases()), while replicas stay where
+     * they are. Leaseholders placed from then on favor nodes matching the first preference.
+     */
+    public void setLeasePreferences(final String name, final String leasePreferencesJson) {
+        final Integer databaseId = conn.select(Tables.DATABASE.ID).from(Tables.DATABASE)
+                                       .where(Tables.DATABASE.NAME.eq(name))
+                                       .fetchOne(Tables.DATABASE.ID);
+        if (databaseId == null) {
+            throw new IllegalArgumentException("Database named " + name + " does not exist");
+        }
+        final Integer leaseConstraintSetId = firstOrNull(leaseConstraintSets(leasePreferencesJson));
+        final Condition ofDatabase = Tables.REPLICA.RANGE_ID.in(
+                select(Tables.RANGE.ID).from(Tables.RANGE).where(Tables.RANGE.DATABASE_ID.eq(databaseId)));
+        conn.transaction(configuration -> {
+            final DSLContext tx = using(configuration);
+            tx.update(Tables.DATABASE)
+              .set(Tables.DATABASE.LEASE_PREFERENCES, leasePreferencesJson)
+              .where(Tables.DATABASE.ID.eq(databaseId))
+              .execute();
+            tx.update(Tables.REPLICA)
+              .set(Tables.REPLICA.LEASE_CONSTRAINT_SET_ID, leaseConstraintSetId)
+              .where(ofDatabase)
+              .execute();
+        });
+        transferLeases(ofDatabase);
     }
 
     public Result<ReplicaRecord> getReplicaRangesForDb(final String name) {
@@ -102,88 +500,226 @@ public class ReplicaPlacement {
     }
 
     /*
-     * Edit a database to a new set of  num_replicas and constraints
+     * Edit a database to a new set of num_replicas and constraints. Replication may grow or shrink. The replicas
+     * of all ranges are planned in memory (see ReplicationPlanner) and rewritten with a few set-based
+     * statements in one transaction. Only ranges that gain replicas, or whose replicas no longer satisfy their
+     * constraints, are marked pending for the next placement.
      */
     public void editDatabase(final String name, final int numReplicas, final String constraintsJson) {
+        if (numReplicas < 1) {
+            throw new IllegalArgumentException("A database needs at least one replica");
+        }
         final DatabaseRecord databaseRecord = conn.selectFrom(Tables.DATABASE).where(Tables.DATABASE.NAME.eq(name))
                                                   .fetchOne();
-        assert databaseRecord != null : "Database named " + name + " does not exist";
-        final int oldNumReplicas = databaseRecord.getNumReplicas();
-        final String oldConstraints = databaseRecord.getPlacementConstraints();
-        final List<List<String>> allConstraints = parseJsonConstraints(numReplicas, constraintsJson);
-
-        Result<RangeRecord> ranges = conn.select(Tables.RANGE.asterisk())
-                .from(Tables.RANGE)
-                .join(Tables.DATABASE)
-                .on(Tables.RANGE.DATABASE_ID.eq(Tables.DATABASE.ID))
-                .where(Tables.DATABASE.NAME.eq(name))
-                .fetchInto(Tables.RANGE);
-        if (oldNumReplicas != numReplicas) {
-            assert numReplicas > oldNumReplicas;
-            for (int i = oldNumReplicas; i < numReplicas; i++) {
-                // Add new replicas for each range
-                ranges.forEach(r -> addReplica(r.getId()));
-            }
+        if (databaseRecord == null) {
+            throw new IllegalArgumentException("Database named " + name + " does not exist");
         }
-        ranges.forEach(r -> conn.deleteFrom(Tables.REPLICA_CONSTRAINT)
-                .where(Tables.REPLICA_CONSTRAINT.RANGE_ID.eq(r.getId()))
-                .execute());
-        ranges.forEach(r -> {
-            final Result<ReplicaRecord> replicaRecords = conn.selectFrom(Tables.REPLICA)
-                    .where(Tables.REPLICA.RANGE_ID.eq(r.getId()))
-                    .fetch();
-            for (int i = 0; i < replicaRecords.size(); i++) {
-                    final ReplicaRecord replicaRecord = replicaRecords.get(i);
-                    if (allConstraints.size() > i) {
-                        configureReplicaConstraints(replicaRecord, allConstraints.get(i));
-                    } else {
-                        configureReplicaConstraints(replicaRecord, Collections.emptyList());
-                    }
+        final List<Integer> replicaConstraintSets = replicaConstraintSets(numReplicas, constraintsJson);
+        final Map<Integer, List<ReplicaRecord>> replicasPerRange = conn.selectFrom(Tables.REPLICA)
+                .where(Tables.REPLICA.RANGE_ID.in(select(Tables.RANGE.ID).from(Tables.RANGE)
+                                                          .where(Tables.RANGE.DATABASE_ID.eq(databaseRecord.getId()))))
+                .orderBy(Tables.REPLICA.ID)
+                .fetchGroups(Tables.REPLICA.RANGE_ID, ReplicaRecord.class);
+        final ReplicationPlanner.Plan plan = ReplicationPlanner.plan(replicasPerRange, replicaConstraintSets,
+                                                                     constraintSets::candidateNodes, nodeLoad);
+        final Integer leaseConstraintSetId = firstOrNull(leaseConstraintSets(databaseRecord.getLeasePreferences()));
+        final List<ReplicaRecord> newReplicas = new ArrayList<>();
+        plan.newReplicas.forEach((rangeId, rangeConstraintSets) -> {
+            // New replicas will serve as much load as the existing ones
+            final List<ReplicaRecord> rangeReplicas = replicasPerRange.get(rangeId);
+            for (final Integer constraintSetId: rangeConstraintSets) {
+                final ReplicaRecord replica = newReplicaRecord(rangeId, constraintSetId);
+                replica.setLeaseConstraintSetId(leaseConstraintSetId);
+                for (final LoadDimension dimension: LoadDimension.values()) {
+                    replica.set(dimension.load, rangeReplicas.stream().mapToInt(dimension::of).max()
+                            .orElse(dimension == LoadDimension.QPS ? DEFAULT_QPS : 0));
                 }
+                newReplicas.add(replica);
+            }
+        });
+
+        conn.transaction(configuration -> {
+            final DSLContext tx = using(configuration);
+            tx.update(Tables.DATABASE)
+              .set(Tables.DATABASE.NUM_REPLICAS, numReplicas)
+              .set(Tables.DATABASE.PLACEMENT_CONSTRAINTS, constraintsJson)
+              .where(Tables.DATABASE.ID.eq(databaseRecord.getId()))
+              .execute();
+            if (!plan.constraintSetOfReplica.isEmpty()) {
+                final BatchBindStep update = tx.batch(tx.update(Tables.REPLICA)
+                        .set(Tables.REPLICA.CONSTRAINT_SET_ID, (Integer) null)
+                        .where(Tables.REPLICA.ID.eq((Integer) null)));
+                plan.constraintSetOfReplica.forEach((replicaId, constraintSetId) ->
+                        update.bind(constraintSetId, replicaId));
+                update.execute();
+            }
+            tx.update(Tables.REPLICA)
+              .set(Tables.REPLICA.STATUS, "migrating")
+              .where(Tables.REPLICA.ID.in(plan.migratingReplicas))
+              .execute();
+            tx.deleteFrom(Tables.REPLICA)
+              .where(Tables.REPLICA.ID.in(plan.droppedReplicas.stream().map(ReplicaRecord::getId)
+                                              .collect(Collectors.toList())))
+              .execute();
+            if (!newReplicas.isEmpty()) {
+                tx.batchInsert(newReplicas).execute();
+            }
+            markRangesPending(tx, Tables.REPLICA.RANGE_ID.in(plan.rangesToPlace));
+        });
+        metrics.rowsWritten(1 + plan.constraintSetOfReplica.size() + plan.migratingReplicas.size()
+                            + plan.droppedReplicas.size() + newReplicas.size());
+        for (final ReplicaRecord replica: plan.droppedReplicas) {
+            if (replica.getCurrentNode() != null) {
+                nodeLoad.removeReplica(replica.getCurrentNode(), replica);
             }
-        );
+            qpsTelemetry.forgetReplica(replica.getId());
+        }
+        final Set<Integer> droppedLeases = plan.droppedReplicas.stream().filter(ReplicaRecord::getLeaseholder)
+                                                               .map(ReplicaRecord::getRangeId)
+                                                               .collect(Collectors.toSet());
+        if (!droppedLeases.isEmpty()) {
+            transferLeases(Tables.REPLICA.RANGE_ID.in(droppedLeases));
+        }
+        LOG.info("Edited database {}: {} replicas added, {} dropped, {} migrating, {} ranges to place", name,
+                 newReplicas.size(), plan.droppedReplicas.size(), plan.migratingReplicas.size(),
+                 plan.rangesToPlace.size());
     }
 
     /*
      * Create a database with specified num_replicas and constraints. The database will be mapped
-     * to a single range by default.
+     * to a single range by default, which splitRange() or load-based splitting divide further.
      */
     public void addDatabase(final String name, final int numReplicas, final String constraintsJson) {
+        addDatabase(name, numReplicas, constraintsJson, "");
+    }
+
+    /*
+     * Same as addDatabase(), with lease preferences for the leaseholders of its ranges (see
+     * setLeasePreferences())
+     */
+    public void addDatabase(final String name, final int numReplicas, final String constraintsJson,
+                            final String leasePreferencesJson) {
+        leaseConstraintSets(leasePreferencesJson);
         final DatabaseRecord databaseRecord = conn.newRecord(Tables.DATABASE);
         databaseRecord.setName(name);
         databaseRecord.setNumReplicas(numReplicas);
         databaseRecord.setPlacementConstraints(constraintsJson);
+        databaseRecord.setLeasePreferences(leasePreferencesJson);
         databaseRecord.store();
 
         // Start with only 1 range
         final RangeRecord rangeRecord = conn.newRecord(Tables.RANGE);
         rangeRecord.setDatabaseId(databaseRecord.getId());
         rangeRecord.store();
-        printState();
         addReplicasUsingConstraints(rangeRecord, numReplicas, constraintsJson);
     }
 
+    /*
+     * Bulk variant of addDatabase(). Identifiers for the new databases, ranges and replicas are allocated
+     * upfront so that every table is written using a single batched insert, all within one transaction.
+     * Placement is run once at the end for all the new replicas.
+     */
+    public Result<? extends Record> addDatabases(final Collection<DatabaseSpec> databases) {
+        insertDatabases(databases);
+        return placeReplicas();
+    }
+
+    /*
+     * Same as addDatabases(), without running placement
+     */
+    void insertDatabases(final Collection<DatabaseSpec> databases) {
+        // Constraint sets are interned (and persisted) before the databases that use them
+        final Map<DatabaseSpec, List<Integer>> replicaConstraintSetsPerDatabase = new HashMap<>();
+        databases.forEach(d -> replicaConstraintSetsPerDatabase.put(d,
+                replicaConstraintSets(d.getNumReplicas(), d.getConstraintsJson())));
+        final Map<DatabaseSpec, Integer> leaseConstraintSetPerDatabase = new HashMap<>();
+        databases.forEach(d -> leaseConstraintSetPerDatabase.put(d,
+                firstOrNull(leaseConstraintSets(d.getLeasePreferencesJson()))));
+        conn.transaction(configuration -> {
+            final DSLContext tx = using(configuration);
+            int databaseId = nextId(tx, Tables.DATABASE.ID);
+            int rangeId = nextId(tx, Tables.RANGE.ID);
+            int replicaId = nextId(tx, Tables.REPLICA.ID);
+            final List<DatabaseRecord> databaseRecords = new ArrayList<>(databases.size());
+            final List<RangeRecord> rangeRecords = new ArrayList<>(databases.size());
+            final List<PendingRangeRecord> pendingRangeRecords = new ArrayList<>(databases.size());
+            final List<ReplicaRecord> replicaRecords = new ArrayList<>();
+            for (final DatabaseSpec database: databases) {
+                final int numReplicas = database.getNumReplicas();
+                final String constraintsJson = database.getConstraintsJson();
+                final List<Integer> replicaConstraintSets = replicaConstraintSetsPerDatabase.get(database);
+
+                final DatabaseRecord databaseRecord = new DatabaseRecord();
+                databaseRecord.setId(databaseId);
+                databaseRecord.setName(database.getName());
+                databaseRecord.setNumReplicas(numReplicas);
+                databaseRecord.setPlacementConstraints(constraintsJson);
+                databaseRecord.setLeasePreferences(database.getLeasePreferencesJson());
+                databaseRecords.add(databaseRecord);
+
+                // Start with only 1 range
+                final RangeRecord rangeRecord = new RangeRecord();
+                rangeRecord.setId(rangeId);
+                rangeRecord.setDatabaseId(databaseId);
+                rangeRecords.add(rangeRecord);
+                final PendingRangeRecord pendingRangeRecord = new PendingRangeRecord();
+                pendingRangeRecord.setRangeId(rangeId);
+                pendingRangeRecords.add(pendingRangeRecord);
+
+                for (int i = 0; i < numReplicas; i++) {
+                    final ReplicaRecord replicaRecord = newReplicaRecord(rangeId, replicaConstraintSets.get(i));
+                    replicaRecord.setId(replicaId);
+                    replicaRecord.setLeaseholder(i == 0);
+                    replicaRecord.setLeaseConstraintSetId(leaseConstraintSetPerDatabase.get(database));
+                    replicaRecords.add(replicaRecord);
+                    replicaId++;
+                }
+                databaseId++;
+                rangeId++;
+            }
+            tx.batchInsert(databaseRecords).execute();
+            tx.batchInsert(rangeRecords).execute();
+            tx.batchInsert(pendingRangeRecords).execute();
+            tx.batchInsert(replicaRecords).execute();
+        });
+    }
+
+    /*
+     * Add numReplicas replicas to a range without any, the first of which holds the range's lease
+     */
     public void addReplicasUsingConstraints(final RangeRecord rangeRecord, final int numReplicas,
                                             final String constraintsJson) {
-        final List<List<String>> allConstraints = parseJsonConstraints(numReplicas, constraintsJson);
-
-        // The total number of replicas constrained cannot be greater than the total number of replicas for the zone
-        // (num_replicas). However, if the total number of replicas constrained is less than the total
-        // number of replicas for the zone, the non-constrained replicas will be allowed on any nodes/stores.
-        assert allConstraints.size() <= numReplicas;
+        final List<Integer> replicaConstraintSets = replicaConstraintSets(numReplicas, constraintsJson);
+        final String leasePreferencesJson = conn.select(Tables.DATABASE.LEASE_PREFERENCES).from(Tables.DATABASE)
+                .where(Tables.DATABASE.ID.eq(rangeRecord.getDatabaseId()))
+                .fetchOne(Tables.DATABASE.LEASE_PREFERENCES);
+        final Integer leaseConstraintSetId = firstOrNull(leaseConstraintSets(leasePreferencesJson));
         for (int i = 0; i < numReplicas; i++) {
-            final ReplicaRecord replicaRecord = addReplica(rangeRecord.getId());
-            if (constraintsJson.isEmpty()) {
-                continue;
-            }
-            if (allConstraints.size() > i) {
-                configureReplicaConstraints(replicaRecord, allConstraints.get(i));
-            } else {
-                configureReplicaConstraints(replicaRecord, Collections.emptyList());
-            }
+            addReplica(rangeRecord.getId(), replicaConstraintSets.get(i), i == 0, leaseConstraintSetId);
         }
     }
 
+    /*
+     * The constraint set for each of the numReplicas replicas of a range. Zone configurations are parsed and
+     * interned only once, and replicas without constraints get a null constraint set.
+     */
+    private List<Integer> replicaConstraintSets(final int numReplicas, final String constraintsJson) {
+        return constraintSetsByZoneConfig.computeIfAbsent(List.of(numReplicas, constraintsJson), k -> {
+            final List<List<String>> allConstraints = parseJsonConstraints(numReplicas, constraintsJson);
+
+            // The total number of replicas constrained cannot be greater than the total number of replicas for the
+            // zone (num_replicas). However, if the total number of replicas constrained is less than the total
+            // number of replicas for the zone, the non-constrained replicas will be allowed on any nodes/stores.
+            assert allConstraints.size() <= numReplicas;
+            final List<Integer> replicaConstraintSets = new ArrayList<>(numReplicas);
+            for (int i = 0; i < numReplicas; i++) {
+                replicaConstraintSets.add(allConstraints.size() > i ? constraintSets.intern(allConstraints.get(i))
+                                                                    : null);
+            }
+            return Collections.unmodifiableList(replicaConstraintSets);
+        });
+    }
+
     // Parse the set of constraints according to their scope
     // https://www.cockroachlabs.com/docs/v21.1/configure-replication-zones#scope-of-constraints
     private List<List<String>> parseJsonConstraints(final int numReplicas, final String constraintsJson) {
@@ -220,44 +756,763 @@ public class ReplicaPlacement {
     }
 
     /*
-     * Find nodes that are serving more than qpsThreshold load, and mark replicas on those as nodes as
-     * candidates for migration.
+     * The constraint set of every lease preference, in order. Preferences are parsed and interned only once,
+     * and a preference without constraints gets a null constraint set, which matches every node.
+     */
+    private List<Integer> leaseConstraintSets(final String leasePreferencesJson) {
+        return constraintSetsByLeasePreferences.computeIfAbsent(leasePreferencesJson, k -> {
+            final List<Integer> leaseConstraintSets = new ArrayList<>();
+            parseLeasePreferences(leasePreferencesJson).forEach(p -> leaseConstraintSets.add(constraintSets.intern(p)));
+            return Collections.unmodifiableList(leaseConstraintSets);
+        });
+    }
+
+    // Parse lease preferences, a list of constraint lists in order of preference, e.g.
+    // [["+region=us-east"], ["+region=us-west"]]
+    // https://www.cockroachlabs.com/docs/v21.1/configure-replication-zones#lease_preferences
+    private List<List<String>> parseLeasePreferences(final String leasePreferencesJson) {
+        if (leasePreferencesJson.isBlank()) {
+            return List.of();
+        }
+        final JsonElement jsonElement = JsonParser.parseString(leasePreferencesJson);
+        if (!jsonElement.isJsonArray()) {
+            throw new IllegalArgumentException("Lease preferences must be a list of constraint lists: " +
+                                               leasePreferencesJson);
+        }
+        final List<List<String>> preferences = new ArrayList<>();
+        for (final JsonElement preference: jsonElement.getAsJsonArray()) {
+            if (!preference.isJsonArray()) {
+                throw new IllegalArgumentException("Lease preferences must be a list of constraint lists: " +
+                                                   leasePreferencesJson);
+            }
+            preferences.add(arrayToConstraints(preference));
+        }
+        return preferences;
+    }
+
+    private static Integer firstOrNull(final List<Integer> constraintSetIds) {
+        return constraintSetIds.isEmpty() ? null : constraintSetIds.get(0);
+    }
+
+    /*
+     * Find nodes that are serving more than qpsThreshold load, and migrate their hottest replicas elsewhere,
+     * moving at most DEFAULT_MAX_MOVES_PER_ROUND replicas.
      */
     public Result<? extends Record> migrateReplicasOnOverloadedNodes(final int qpsThreshold) {
+        return migrateReplicasOnOverloadedNodes(qpsThreshold, DEFAULT_MAX_MOVES_PER_ROUND);
+    }
+
+    /*
+     * Find nodes that are serving more than qpsThreshold load, or more than their capacity in any dimension, and
+     * migrate just enough of their heaviest replicas elsewhere to bring them under the limits (see
+     * MigrationPlanner). At most maxMoves replicas are moved across the cluster.
+     */
+    public Result<? extends Record> migrateReplicasOnOverloadedNodes(final int qpsThreshold, final int maxMoves) {
+        if (!nodeLoad.anyOverloaded(qpsThreshold)) {
+            // Nodes flagged by an earlier round would otherwise keep turning away migrating replicas
+            conn.update(Tables.NODE)
+                .set(Tables.NODE.OVERLOADED, false)
+                .where(Tables.NODE.OVERLOADED.isTrue())
+                .execute();
+            return placeReplicas();
+        }
         // Get overloaded nodes
-        final List<Integer> nodeIds = qpsPerNode().stream()
-                                    .filter(r -> r.get(1, BigDecimal.class).intValue() >= qpsThreshold)
-                                    .map(r -> r.get(0, Integer.class) /* node ID */)
-                                    .collect(Collectors.toList());
-        // Mark replicas on overloaded nodes as pending
-        conn.update(Tables.REPLICA)
-                .set(Tables.REPLICA.STATUS, "pending")
+        final List<Integer> nodeIds = nodeLoad.overloadedNodes(qpsThreshold).stream().boxed()
+                .collect(Collectors.toList());
+        final Result<ReplicaRecord> replicasOnOverloadedNodes = conn.selectFrom(Tables.REPLICA)
                 .where(Tables.REPLICA.CURRENT_NODE.in(nodeIds))
-                .execute();
+                .and(Tables.REPLICA.STATUS.eq("running"))
+                .fetch();
+        final long planningStart = metrics.start();
+        final Map<Integer, BitSet> nodesPerRange = new HashMap<>();
+        conn.select(Tables.REPLICA.RANGE_ID, Tables.REPLICA.CURRENT_NODE)
+            .from(Tables.REPLICA)
+            .where(Tables.REPLICA.RANGE_ID.in(replicasOnOverloadedNodes.intoSet(Tables.REPLICA.RANGE_ID)))
+            .and(Tables.REPLICA.CURRENT_NODE.isNotNull())
+            .forEach(r -> nodesPerRange.computeIfAbsent(r.value1(), k -> new BitSet()).set(r.value2()));
+        final List<Integer> replicaIds = MigrationPlanner.plan(nodeLoad, replicasOnOverloadedNodes,
+                                                               nodesPerRange, constraintSets::candidateNodes,
+                                                               qpsThreshold, maxMoves);
+        metrics.stop(PlacementMetrics.Phase.MIGRATION_PLANNING, planningStart);
+        metrics.replicasMigrated(replicaIds.size());
+        LOG.info("Migrating {} replicas off {} overloaded nodes", replicaIds.size(), nodeIds.size());
+
+        // Mark the chosen replicas as migrating
+        conn.transaction(configuration -> {
+            final DSLContext tx = using(configuration);
+            tx.update(Tables.NODE)
+                    .set(Tables.NODE.OVERLOADED, field(Tables.NODE.ID.in(nodeIds)))
+                    .execute();
+            tx.update(Tables.REPLICA)
+                    .set(Tables.REPLICA.STATUS, "migrating")
+                    .where(Tables.REPLICA.ID.in(replicaIds))
+                    .execute();
+            markRangesPending(tx, Tables.REPLICA.ID.in(replicaIds));
+        });
 
         // Re-run placement so that we can migrate some of these replicas away
         return placeReplicas();
     }
 
     /*
-     * Run the DCM model to compute a placement decision for new replicas
+     * Move leases between the replicas of every range according to the lease preferences of its database, and
+     * so that nodes hold similar numbers of leases and serve similar leaseholder qps (see LeasePlanner). Only
+     * the leaseholder flags change: no replica moves, and the solver is not run, so this is cheap enough to
+     * run much more often than placement.
+     *
+     * @return the number of ranges whose lease moved
+     */
+    public int rebalanceLeases() {
+        return transferLeases(noCondition());
+    }
+
+    /*
+     * Rebalance the leases of the ranges of the replicas matching replicaCondition, taking the leases of all
+     * other ranges into account
+     */
+    private int transferLeases(final Condition replicaCondition) {
+        final long start = metrics.start();
+        final Map<Integer, List<ReplicaRecord>> replicasPerRange = conn.selectFrom(Tables.REPLICA)
+                .where(Tables.REPLICA.RANGE_ID.in(select(Tables.REPLICA.RANGE_ID).from(Tables.REPLICA)
+                                                          .where(replicaCondition)))
+                .fetchGroups(Tables.REPLICA.RANGE_ID, ReplicaRecord.class);
+        final Map<Integer, Integer> databaseOfRange = conn.select(Tables.RANGE.ID, Tables.RANGE.DATABASE_ID)
+                .from(Tables.RANGE)
+                .where(Tables.RANGE.ID.in(select(Tables.REPLICA.RANGE_ID).from(Tables.REPLICA)
+                                                  .where(replicaCondition)))
+                .fetchMap(Tables.RANGE.ID, Tables.RANGE.DATABASE_ID);
+        final Map<Integer, String> leasePreferencesOfDatabase = conn.select(Tables.DATABASE.ID,
+                                                                            Tables.DATABASE.LEASE_PREFERENCES)
+                .from(Tables.DATABASE)
+                .fetchMap(Tables.DATABASE.ID, Tables.DATABASE.LEASE_PREFERENCES);
+        final Map<Integer, List<BitSet>> preferredNodesOfDatabase = new HashMap<>();
+        final Map<Integer, Integer> leasesPerNode = new HashMap<>();
+        final Map<Integer, Integer> leaseQpsPerNode = new HashMap<>();
+        conn.select(Tables.REPLICA.CURRENT_NODE, count(), sum(Tables.REPLICA.QPS))
+            .from(Tables.REPLICA)
+            .where(Tables.REPLICA.LEASEHOLDER.isTrue())
+            .and(Tables.REPLICA.CURRENT_NODE.isNotNull())
+            .groupBy(Tables.REPLICA.CURRENT_NODE)
+            .forEach(r -> {
+                leasesPerNode.put(r.value1(), r.value2());
+                leaseQpsPerNode.put(r.value1(), r.value3() == null ? 0 : r.value3().intValue());
+            });
+        final Map<Integer, Integer> newLeaseholders = LeasePlanner.plan(replicasPerRange,
+                rangeId -> preferredNodesOfDatabase.computeIfAbsent(databaseOfRange.get(rangeId), databaseId ->
+                        leaseConstraintSets(leasePreferencesOfDatabase.get(databaseId)).stream()
+                                .map(constraintSets::candidateNodes)
+                                .collect(Collectors.toList())),
+                leasesPerNode, leaseQpsPerNode);
+        if (!newLeaseholders.isEmpty()) {
+            conn.transaction(configuration -> {
+                final DSLContext tx = using(configuration);
+                tx.update(Tables.REPLICA)
+                  .set(Tables.REPLICA.LEASEHOLDER, false)
+                  .where(Tables.REPLICA.RANGE_ID.in(newLeaseholders.keySet()))
+                  .and(Tables.REPLICA.LEASEHOLDER.isTrue())
+                  .execute();
+                tx.update(Tables.REPLICA)
+                  .set(Tables.REPLICA.LEASEHOLDER, true)
+                  .where(Tables.REPLICA.ID.in(newLeaseholders.values()))
+                  .execute();
+            });
+            metrics.rowsWritten(2 * newLeaseholders.size());
+            metrics.leasesTransferred(newLeaseholders.size());
+            LOG.info("Transferred the leases of {} ranges", newLeaseholders.size());
+        }
+        metrics.stop(PlacementMetrics.Phase.LEASE_REBALANCE, start);
+        return newLeaseholders.size();
+    }
+
+    /*
+     * Split a range in two. The new range belongs to the same database, and gets a pending replica for every
+     * replica of the range, with the same constraint set and half of its load in every dimension. Only the new
+     * range is marked pending, so the next placement solves its replicas and leaves the rest of the database
+     * where it is.
+     *
+     * @return the ID of the new range
+     */
+    public int splitRange(final int rangeId) {
+        final RangeRecord range = conn.selectFrom(Tables.RANGE).where(Tables.RANGE.ID.eq(rangeId)).fetchOne();
+        if (range == null) {
+            throw new IllegalArgumentException("Range " + rangeId + " does not exist");
+        }
+        final Result<ReplicaRecord> replicas = conn.selectFrom(Tables.REPLICA)
+                .where(Tables.REPLICA.RANGE_ID.eq(rangeId))
+                .orderBy(Tables.REPLICA.ID)
+                .fetch();
+        final int newRangeId = conn.transactionResult(configuration -> {
+            final DSLContext tx = using(configuration);
+            final RangeRecord newRange = tx.newRecord(Tables.RANGE);
+            newRange.setDatabaseId(range.getDatabaseId());
+            newRange.store();
+            final List<ReplicaRecord> newReplicas = new ArrayList<>(replicas.size());
+            for (final ReplicaRecord replica: replicas) {
+                final ReplicaRecord newReplica = newReplicaRecord(newRange.getId(), replica.getConstraintSetId());
+                newReplica.setLeaseholder(replica.getLeaseholder());
+                newReplica.setLeaseConstraintSetId(replica.getLeaseConstraintSetId());
+                for (final LoadDimension dimension: LoadDimension.values()) {
+                    newReplica.set(dimension.load, dimension.of(replica) - dimension.of(replica) / 2);
+                }
+                newReplicas.add(newReplica);
+            }
+            tx.batchInsert(newReplicas).execute();
+            markRangesPending(tx, Tables.REPLICA.RANGE_ID.eq(newRange.getId()));
+            return newRange.getId();
+        });
+        for (final LoadDimension dimension: LoadDimension.values()) {
+            updateLoad(replicas, dimension, r -> dimension.of(r) / 2);
+        }
+
+        // Averages of earlier samples describe the range before the split
+        qpsTelemetry.forgetRange(rangeId);
+        replicas.forEach(r -> qpsTelemetry.forgetReplica(r.getId()));
+        metrics.rangesSplit(1);
+        return newRangeId;
+    }
+
+    /*
+     * Merge the right range into the left one, which must belong to the same database. The replicas of the
+     * right range are removed, and the replicas of the left range take over their load where they are, without
+     * running placement. Both are committed in a single transaction.
+     */
+    public void mergeRanges(final int leftRangeId, final int rightRangeId) {
+        if (leftRangeId == rightRangeId) {
+            throw new IllegalArgumentException("Cannot merge range " + leftRangeId + " with itself");
+        }
+        final Map<Integer, RangeRecord> ranges = conn.selectFrom(Tables.RANGE)
+                .where(Tables.RANGE.ID.in(leftRangeId, rightRangeId))
+                .fetchMap(Tables.RANGE.ID);
+        for (final int rangeId: List.of(leftRangeId, rightRangeId)) {
+            if (!ranges.containsKey(rangeId)) {
+                throw new IllegalArgumentException("Range " + rangeId + " does not exist");
+            }
+        }
+        if (!ranges.get(leftRangeId).getDatabaseId().equals(ranges.get(rightRangeId).getDatabaseId())) {
+            throw new IllegalArgumentException(String.format("Ranges %d and %d belong to different databases",
+                                                             leftRangeId, rightRangeId));
+        }
+        final Map<Integer, Result<ReplicaRecord>> replicas = conn.selectFrom(Tables.REPLICA)
+                .where(Tables.REPLICA.RANGE_ID.in(leftRangeId, rightRangeId))
+                .fetchGroups(Tables.REPLICA.RANGE_ID);
+        final Result<ReplicaRecord> rightReplicas = replicas.get(rightRangeId);
+
+        final Map<LoadDimension, Map<Integer, Integer>> deltaPerNode = new EnumMap<>(LoadDimension.class);
+        conn.transaction(configuration -> {
+            final DSLContext tx = using(configuration);
+            // Replicas and the pending_range row, if any, are deleted with the range
+            tx.deleteFrom(Tables.RANGE).where(Tables.RANGE.ID.eq(rightRangeId)).execute();
+            if (replicas.containsKey(leftRangeId) && rightReplicas != null) {
+                for (final LoadDimension dimension: LoadDimension.values()) {
+                    final int rightLoad = (int) Math.round(rightReplicas.stream().mapToInt(dimension::of)
+                                                                        .average().orElse(0));
+                    writeLoad(tx, replicas.get(leftRangeId), dimension, r -> dimension.of(r) + rightLoad,
+                              deltaPerNode.computeIfAbsent(dimension, d -> new HashMap<>()));
+                }
+            }
+        });
+
+        // The in-memory state only follows once the merge is committed
+        if (rightReplicas != null) {
+            for (final ReplicaRecord replica: rightReplicas) {
+                if (replica.getCurrentNode() != null) {
+                    nodeLoad.removeReplica(replica.getCurrentNode(), replica);
+                }
+                qpsTelemetry.forgetReplica(replica.getId());
+            }
+        }
+        qpsTelemetry.forgetRange(rightRangeId);
+        deltaPerNode.forEach((dimension, deltas) -> deltas.forEach((node, delta) ->
+                nodeLoad.updateLoad(node, dimension, delta)));
+        metrics.rangesMerged(1);
+    }
+
+    /*
+     * Split ranges as soon as a replica reaches qpsThreshold, as reported by updateQpsForDb() or
+     * flushQpsTelemetry(). Ranges are split in halves until every piece is below the threshold (see
+     * splitRange()), and the new ranges are placed by the next call to placeReplicas().
+     */
+    public void enableLoadBasedSplitting(final int qpsThreshold) {
+        if (qpsThreshold < 2) {
+            throw new IllegalArgumentException("Split threshold must be at least 2 qps");
+        }
+        splitAboveQps = qpsThreshold;
+    }
+
+    public void disableLoadBasedSplitting() {
+        splitAboveQps = 0;
+    }
+
+    /*
+     * With load-based splitting enabled, split those of the given ranges whose hottest replica is at or above
+     * the threshold, and then the resulting halves, until all of them are below it
+     */
+    private void splitHotRanges(final Collection<Integer> rangeIds) {
+        if (splitAboveQps == 0 || rangeIds.isEmpty()) {
+            return;
+        }
+        final Field<Integer> maxQps = max(Tables.REPLICA.QPS);
+        final Deque<int[]> hotRanges = new ArrayDeque<>(); // Range ID and the qps of its hottest replica
+        conn.select(Tables.REPLICA.RANGE_ID, maxQps)
+            .from(Tables.REPLICA)
+            .where(Tables.REPLICA.RANGE_ID.in(rangeIds))
+            .groupBy(Tables.REPLICA.RANGE_ID)
+            .having(maxQps.ge(splitAboveQps))
+            .forEach(r -> hotRanges.add(new int[]{r.value1(), r.value2()}));
+        int splits = 0;
+        while (!hotRanges.isEmpty()) {
+            final int[] hot = hotRanges.poll();
+            final int newRangeId = splitRange(hot[0]);
+            splits++;
+            // Every replica's qps is split the same way, so the hottest replica of each half is known
+            if (hot[1] / 2 >= splitAboveQps) {
+                hotRanges.add(new int[]{hot[0], hot[1] / 2});
+            }
+            if (hot[1] - hot[1] / 2 >= splitAboveQps) {
+                hotRanges.add(new int[]{newRangeId, hot[1] - hot[1] / 2});
+            }
+        }
+        if (splits > 0) {
+            LOG.info("Split {} ranges above {} qps", splits, splitAboveQps);
+        }
+    }
+
+    /*
+     * Place pending ranges in windows of bounded size instead of all at once. Each window is solved and
+     * committed before the next one starts, and the window size is adjusted after every window so that
+     * placing it takes roughly targetMillis.
+     */
+    public void enableWindowedPlacement(final int initialWindowSize, final long targetMillis) {
+        if (initialWindowSize <= 0 || targetMillis <= 0) {
+            throw new IllegalArgumentException("Window size and target time must be positive");
+        }
+        windowSize = initialWindowSize;
+        targetWindowMillis = targetMillis;
+    }
+
+    public void disableWindowedPlacement() {
+        windowSize = 0;
+    }
+
+    /*
+     * Place ranges without replica constraints or lease preferences using a greedy heuristic instead of the
+     * solver (see GreedyPlacer). Only ranges with either, and those the heuristic cannot place, are solved.
+     * This is much faster for clusters of mostly unconstrained databases, at the cost of placements that
+     * balance load and spread replicas less well than the model would.
+     */
+    public void enableGreedyPlacement() {
+        greedyPlacement = true;
+    }
+
+    public void disableGreedyPlacement() {
+        greedyPlacement = false;
+    }
+
+    /*
+     * Solve in two stages, for clusters too large to solve as a whole: pending replicas are first assigned
+     * to AZs by a heuristic that spreads them across regions and AZs (see DomainAssigner), and nodes are then
+     * picked within every AZ by a separate model, concurrently. Each model only sees the nodes of one AZ, so
+     * solve time is bounded by the size of the largest AZ rather than that of the cluster.
+     */
+    public void enableHierarchicalPlacement() {
+        hierarchicalPlacement = true;
+    }
+
+    public void disableHierarchicalPlacement() {
+        hierarchicalPlacement = false;
+    }
+
+    /*
+     * In windowed placement mode, the currently pending ranges of the database are placed ahead of ranges
+     * with a lower priority (0 by default). Ranges with the same priority are placed oldest first.
+     */
+    public void prioritizeDatabase(final String name, final int priority) {
+        conn.update(Tables.PENDING_RANGE)
+            .set(Tables.PENDING_RANGE.PRIORITY, priority)
+            .where(Tables.PENDING_RANGE.RANGE_ID.in(
+                    select(Tables.RANGE.ID).from(Tables.RANGE)
+                            .join(Tables.DATABASE).on(Tables.RANGE.DATABASE_ID.eq(Tables.DATABASE.ID))
+                            .where(Tables.DATABASE.NAME.eq(name))))
+            .execute();
+    }
+
+    /*
+     * Run the DCM model to compute a placement decision for new replicas. The decisions are written back
+     * as a single batched update that is committed atomically (once per window in windowed placement mode,
+     * and once per stage in hierarchical placement mode).
      */
     public Result<? extends Record> placeReplicas() {
-        final Result<? extends Record> solution = model.solve(Tables.PENDING_REPLICAS.getName());
-        solution.forEach(
-            r -> conn.update(Tables.REPLICA)
-                .set(Tables.REPLICA.CURRENT_NODE, r.get(Tables.REPLICA.CONTROLLABLE__NODE))
-                .set(Tables.REPLICA.STATUS, "running")
-                .where(Tables.REPLICA.ID.eq(r.get(Tables.REPLICA.ID)))
-                .execute()
-        );
+        return windowSize == 0 ? placeActiveReplicas() : placeReplicasInWindows();
+    }
+
+    private Result<? extends Record> placeReplicasInWindows() {
+        Result<Record> placed = null;
+        conn.update(Tables.PENDING_RANGE).set(Tables.PENDING_RANGE.ACTIVE, false).execute();
+        try {
+            while (true) {
+                final List<Integer> window = conn.select(Tables.PENDING_RANGE.RANGE_ID)
+                        .from(Tables.PENDING_RANGE)
+                        .where(Tables.PENDING_RANGE.ACTIVE.isFalse())
+                        .orderBy(Tables.PENDING_RANGE.PRIORITY.desc(), Tables.PENDING_RANGE.ENQUEUE_SEQ)
+                        .limit(windowSize)
+                        .fetch(Tables.PENDING_RANGE.RANGE_ID);
+                if (window.isEmpty()) {
+                    break;
+                }
+                conn.update(Tables.PENDING_RANGE)
+                    .set(Tables.PENDING_RANGE.ACTIVE, true)
+                    .where(Tables.PENDING_RANGE.RANGE_ID.in(window))
+                    .execute();
+                final long start = System.nanoTime();
+                final Result<? extends Record> solution = placeActiveReplicas();
+                adjustWindowSize(window.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                if (placed == null) {
+                    placed = conn.newResult(solution.fields());
+                }
+                placed.addAll(solution);
+            }
+        } finally {
+            // Leave any ranges that were not placed visible to the solver again
+            conn.update(Tables.PENDING_RANGE)
+                .set(Tables.PENDING_RANGE.ACTIVE, true)
+                .where(Tables.PENDING_RANGE.ACTIVE.isFalse())
+                .execute();
+        }
+        return placed == null ? conn.newResult(Tables.PENDING_REPLICAS) : placed;
+    }
+
+    /*
+     * Scale the window towards the target time, by at most a factor of two per window. A window that was
+     * not full says nothing about how long a larger one would take, so it never grows the window.
+     */
+    private void adjustWindowSize(final int rangesInWindow, final long elapsedMillis) {
+        final double ratio = (double) targetWindowMillis / Math.max(1, elapsedMillis);
+        if (ratio > 1 && rangesInWindow < windowSize) {
+            return;
+        }
+        final double factor = Math.max(0.5, Math.min(2.0, ratio));
+        windowSize = Math.max(1, (int) (windowSize * factor));
+        LOG.debug("Placed window of {} ranges in {}ms, next window size is {}", rangesInWindow, elapsedMillis,
+                  windowSize);
+    }
+
+    private Result<? extends Record> placeActiveReplicas() {
+        final long start = System.nanoTime();
+        final Result<Record> placed = conn.newResult(Tables.PENDING_REPLICAS.fields());
+        try {
+            placePendingReplicas(placed);
+        } catch (final SolverPool.PartialSolutionException e) {
+            metrics.solveFailed();
+            if (e.getSolvedPartitions() != null) {
+                writeHints(e.getSolvedPartitions());
+            }
+            throw e;
+        } catch (final RuntimeException e) {
+            metrics.solveFailed();
+            throw e;
+        } finally {
+            if (placed.isNotEmpty()) {
+                metrics.solved(placed.intoSet(Tables.REPLICA.RANGE_ID).size(), placed.size());
+            }
+        }
+        LOG.info("Placed {} replicas in {}ms", placed.size(),
+                 TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return placed;
+    }
+
+    /*
+     * Commit a solution as a single batched update and account for its load, so that any later stage of the
+     * same placement sees it in the headroom of every node. The solution is added to placed.
+     */
+    private void writeBack(final Result<? extends Record> solution, final Result<Record> placed) {
+        if (solution.isEmpty()) {
+            return;
+        }
+        final long writeBackStart = metrics.start();
+        final Set<Integer> solvedRanges = solution.intoSet(Tables.REPLICA.RANGE_ID);
+        conn.transaction(configuration -> {
+            final DSLContext tx = using(configuration);
+            final BatchBindStep writeBack = tx.batch(tx.update(Tables.REPLICA)
+                    .set(Tables.REPLICA.CURRENT_NODE, (Integer) null)
+                    .set(Tables.REPLICA.HINT_NODE, (Integer) null)
+                    .set(Tables.REPLICA.STATUS, (String) null)
+                    .where(Tables.REPLICA.ID.eq((Integer) null)));
+            // Committed assignments need no hint: the replica is pinned while running, and leaves its
+            // node if it migrates
+            solution.forEach(r -> writeBack.bind(r.get(Tables.REPLICA.CONTROLLABLE__NODE), -1, "running",
+                                                 r.get(Tables.REPLICA.ID)));
+            final int replicasWritten = writeBack.execute().length;
+            final int pendingRangesDeleted = tx.deleteFrom(Tables.PENDING_RANGE)
+                    .where(Tables.PENDING_RANGE.RANGE_ID.in(solvedRanges))
+                    .execute();
+            metrics.rowsWritten(replicasWritten + pendingRangesDeleted);
+        });
+        for (final Record r: solution) {
+            final Integer currentNode = r.get(Tables.REPLICA.CURRENT_NODE);
+            final int newNode = r.get(Tables.REPLICA.CONTROLLABLE__NODE);
+            if (currentNode == null || currentNode != newNode) {
+                if (currentNode != null) {
+                    nodeLoad.removeReplica(currentNode, r);
+                }
+                nodeLoad.addReplica(newNode, r);
+            }
+        }
+        placed.addAll(solution);
+        metrics.stop(PlacementMetrics.Phase.WRITE_BACK, writeBackStart);
+    }
+
+    /*
+     * Remember the assignments of the partitions that were solved when others were not, so that the next
+     * solve starts out preferring them. These are the only hints: committed assignments clear them.
+     */
+    private void writeHints(final Result<? extends Record> solution) {
+        final BatchBindStep hints = conn.batch(conn.update(Tables.REPLICA)
+                .set(Tables.REPLICA.HINT_NODE, (Integer) null)
+                .where(Tables.REPLICA.ID.eq((Integer) null)));
+        solution.forEach(r -> hints.bind(r.get(Tables.REPLICA.CONTROLLABLE__NODE), r.get(Tables.REPLICA.ID)));
+        if (solution.isNotEmpty()) {
+            hints.execute();
+        }
+    }
+
+    /*
+     * Ranges that cannot be placed given the current nodes are rejected before solving (see rejectInfeasible()).
+     * In greedy placement mode, unconstrained ranges are then placed without the solver and committed, before
+     * the rest is solved.
+     *
+     * Placement may commit in several stages (see writeBack()). If a stage fails, the stages before it stay
+     * committed, and the ranges of the failed stage and those after it stay pending.
+     */
+    private void placePendingReplicas(final Result<Record> placed) {
+        final long checkStart = metrics.start();
+        final List<ReplicaRecord> pendingReplicas = rejectInfeasible();
+        metrics.stop(PlacementMetrics.Phase.FEASIBILITY_CHECK, checkStart);
+        if (!greedyPlacement) {
+            if (!pendingReplicas.isEmpty()) {
+                solve(pendingReplicas, placed);
+            }
+            return;
+        }
+
+        final long greedyStart = metrics.start();
+        final Map<Integer, List<ReplicaRecord>> unconstrainedRanges = new HashMap<>();
+        final Set<Integer> constrainedRanges = new HashSet<>();
+        for (final ReplicaRecord replica: pendingReplicas) {
+            // The heuristic ignores lease preferences, so ranges with any are solved too
+            if (replica.getConstraintSetId() != null || replica.getLeaseConstraintSetId() != null) {
+                constrainedRanges.add(replica.getRangeId());
+            }
+        }
+        pendingReplicas.stream().filter(r -> !constrainedRanges.contains(r.getRangeId()))
+                       .forEach(r -> unconstrainedRanges.computeIfAbsent(r.getRangeId(), k -> new ArrayList<>())
+                                                        .add(r));
+        final Field<Integer> leases = count();
+        final Map<Integer, Integer> leasesPerNode = conn.select(Tables.REPLICA.CURRENT_NODE, leases)
+                .from(Tables.REPLICA)
+                .where(Tables.REPLICA.LEASEHOLDER.isTrue())
+                .and(Tables.REPLICA.CURRENT_NODE.isNotNull())
+                .groupBy(Tables.REPLICA.CURRENT_NODE)
+                .fetchMap(Tables.REPLICA.CURRENT_NODE, leases);
+        final Map<Integer, Integer> greedyNodes = GreedyPlacer.place(unconstrainedRanges.values(), nodeLoad,
+                leasesPerNode, nodeLabelIndex.allNodes(), nodeLabelIndex.nodesByValue("region"),
+                nodeLabelIndex.nodesByValue("az"), overloadedNodes());
+        final Result<Record> greedySolution = conn.newResult(Tables.PENDING_REPLICAS.fields());
+        final Set<Integer> greedyRanges = new HashSet<>();
+        final List<ReplicaRecord> toSolve = new ArrayList<>();
+        for (final ReplicaRecord replica: pendingReplicas) {
+            final Integer node = greedyNodes.get(replica.getId());
+            if (node == null) {
+                toSolve.add(replica);
+                continue;
+            }
+            final Record record = conn.newRecord(Tables.PENDING_REPLICAS);
+            record.from(replica);
+            record.set(Tables.PENDING_REPLICAS.CONTROLLABLE__NODE, node);
+            greedySolution.add(record);
+            greedyRanges.add(replica.getRangeId());
+        }
+        metrics.stop(PlacementMetrics.Phase.GREEDY_PLACEMENT, greedyStart);
+        LOG.debug("Placed {} ranges greedily, solving {} replicas", greedyRanges.size(), toSolve.size());
+        // Committing the greedy ranges first removes them from pending_replicas, and counts their load in the
+        // headroom the solver checks the remaining ranges against
+        writeBack(greedySolution, placed);
+        if (!toSolve.isEmpty()) {
+            solve(toSolve, placed);
+        }
+    }
+
+    /*
+     * Pending ranges whose replicas cannot share a node (e.g., databases pinned to different regions) are
+     * independent placement problems. When there is more than one, each is solved concurrently by a
+     * separate model that only sees the nodes relevant to it. Otherwise, the main model solves everything.
+     *
+     * In hierarchical placement mode, the partitions are the AZs instead, and are always solved by the pool.
+     * Ranges that fit no AZ are solved afterwards on their own, over nodes the AZ partitions also use, so they
+     * only see the AZ partitions' solutions once those are committed.
+     *
+     * @param pendingReplicas the replicas visible in the pending_replicas view
+     */
+    private void solve(final List<ReplicaRecord> pendingReplicas, final Result<Record> placed) {
+        refreshHeadroom();
+        final long partitionStart = metrics.start();
+        if (hierarchicalPlacement) {
+            final DomainAssigner.Assignment assignment = DomainAssigner.assign(pendingReplicas,
+                    constraintSets::candidateNodes, nodeLoad, nodeLabelIndex.allNodes(),
+                    nodeLabelIndex.nodesByValue("region"), nodeLabelIndex.nodesByValue("az"), overloadedNodes());
+            metrics.stop(PlacementMetrics.Phase.PARTITION, partitionStart);
+            if (!assignment.azs.isEmpty()) {
+                writeBack(solvePartitions(assignment.azs), placed);
+            }
+            if (!assignment.unassigned.rangeIds.isEmpty()) {
+                refreshHeadroom();
+                writeBack(solvePartitions(List.of(assignment.unassigned)), placed);
+            }
+            return;
+        }
+        final List<RangePartitioner.Partition> partitions = RangePartitioner.partition(pendingReplicas,
+                constraintSets::candidateNodes, nodeLabelIndex.allNodes());
+        metrics.stop(PlacementMetrics.Phase.PARTITION, partitionStart);
+        if (partitions.size() <= 1 || solverOptions.getMaxParallelSolves() == 1) {
+            final long solveStart = metrics.start();
+            final Result<? extends Record> solution = model.solve(Tables.PENDING_REPLICAS.getName());
+            metrics.stop(PlacementMetrics.Phase.SOLVE, solveStart);
+            writeBack(solution, placed);
+        } else {
+            writeBack(solvePartitions(partitions), placed);
+        }
+    }
+
+    private Result<? extends Record> solvePartitions(final List<RangePartitioner.Partition> partitions) {
+        final long solveStart = metrics.start();
+        LOG.debug("Solving {} independent partitions of {} pending replicas", partitions.size(),
+                  partitions.stream().mapToInt(p -> p.replicas.size()).sum());
+        final Result<? extends Record> solution = solverPool.solve(conn, partitions);
+        metrics.stop(PlacementMetrics.Phase.SOLVE, solveStart);
         return solution;
     }
 
+    /*
+     * Write the capacity every node has left in each dimension to its headroom columns, which the capacity
+     * policies check the load of the replicas being placed against. Skipped while no node has a capacity,
+     * in which case every headroom is unlimited.
+     */
+    private void refreshHeadroom() {
+        if (!nodeLoad.hasCapacities()) {
+            return;
+        }
+        final BatchBindStep update = conn.batch(conn.update(Tables.NODE)
+                .set(Tables.NODE.QPS_HEADROOM, (Integer) null)
+                .set(Tables.NODE.DISK_HEADROOM_MB, (Integer) null)
+                .set(Tables.NODE.WRITE_HEADROOM_KBPS, (Integer) null)
+                .where(Tables.NODE.ID.eq((Integer) null)));
+        final BitSet allNodes = nodeLabelIndex.allNodes();
+        for (int node = allNodes.nextSetBit(0); node >= 0; node = allNodes.nextSetBit(node + 1)) {
+            update.bind(nodeLoad.headroom(LoadDimension.QPS, node), nodeLoad.headroom(LoadDimension.DISK_MB, node),
+                        nodeLoad.headroom(LoadDimension.WRITE_KBPS, node), node);
+        }
+        update.execute();
+        metrics.rowsWritten(allNodes.cardinality());
+    }
+
+    /*
+     * Check every active pending range against the hard constraints (see FeasibilityCheck), and record a
+     * rejection_reason for the ranges that cannot be placed, which hides them from the solver. Rejections
+     * are re-evaluated on every placement, so a rejected range is placed as soon as, e.g., a matching node is added.
+     *
+     * @return the replicas of the ranges that can be placed
+     */
+    private List<ReplicaRecord> rejectInfeasible() {
+        final Map<Integer, String> previousRejections = conn.select(Tables.PENDING_RANGE.RANGE_ID,
+                                                                    Tables.PENDING_RANGE.REJECTION_REASON)
+                .from(Tables.PENDING_RANGE)
+                .where(Tables.PENDING_RANGE.ACTIVE.isTrue())
+                .fetchMap(Tables.PENDING_RANGE.RANGE_ID, Tables.PENDING_RANGE.REJECTION_REASON);
+        final Result<ReplicaRecord> replicas = conn.selectFrom(Tables.REPLICA)
+                .where(Tables.REPLICA.RANGE_ID.in(previousRejections.keySet()))
+                .fetch();
+        final Map<Integer, String> rejections = FeasibilityCheck.infeasibleRanges(replicas,
+                                                                                 constraintSets::candidateNodes,
+                                                                                 overloadedNodes(), nodeLoad);
+
+        final BatchBindStep update = conn.batch(conn.update(Tables.PENDING_RANGE)
+                .set(Tables.PENDING_RANGE.REJECTION_REASON, (String) null)
+                .where(Tables.PENDING_RANGE.RANGE_ID.eq((Integer) null)));
+        int changed = 0;
+        for (final Map.Entry<Integer, String> entry: previousRejections.entrySet()) {
+            final String reason = rejections.get(entry.getKey());
+            if (!Objects.equals(reason, entry.getValue())) {
+                if (reason != null && entry.getValue() == null) {
+                    LOG.warn("Rejecting range {}: {}", entry.getKey(), reason);
+                }
+                update.bind(reason, entry.getKey());
+                changed++;
+            }
+        }
+        if (changed > 0) {
+            update.execute();
+            metrics.rowsWritten(changed);
+        }
+        return replicas.stream().filter(r -> !rejections.containsKey(r.getRangeId())).collect(Collectors.toList());
+    }
+
+    /*
+     * The nodes that replicas are currently being migrated off of
+     */
+    private BitSet overloadedNodes() {
+        final BitSet overloadedNodes = new BitSet();
+        conn.select(Tables.NODE.ID).from(Tables.NODE).where(Tables.NODE.OVERLOADED.isTrue())
+            .forEach(r -> overloadedNodes.set(r.value1()));
+        return overloadedNodes;
+    }
+
+    /*
+     * Ranges with replicas waiting to be placed, including those in getRejectedRanges()
+     */
+    public Result<PendingRangeRecord> getPendingRanges() {
+        return conn.selectFrom(Tables.PENDING_RANGE).fetch();
+    }
+
+    /*
+     * Pending ranges that cannot be placed given the current nodes, with the reason in rejection_reason
+     */
+    public Result<PendingRangeRecord> getRejectedRanges() {
+        return conn.selectFrom(Tables.PENDING_RANGE)
+                .where(Tables.PENDING_RANGE.REJECTION_REASON.isNotNull())
+                .fetch();
+    }
+
+    /*
+     * A snapshot of the latency and throughput metrics for every placement phase, which does not change as
+     * placement goes on. Safe to call from any thread.
+     */
+    public PlacementMetrics.Snapshot getMetrics() {
+        return metrics.snapshot();
+    }
+
+    /*
+     * Turn recording of metrics on or off. Metrics are recorded by default.
+     */
+    public void setMetricsEnabled(final boolean enabled) {
+        metrics.setEnabled(enabled);
+    }
+
+    /*
+     * Expose the live metrics through JMX, as com.vmware:type=PlacementMetrics,name=<name>
+     */
+    public void registerMetricsMBean(final String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                    .registerMBean(metrics, new ObjectName("com.vmware:type=PlacementMetrics,name=" + name));
+        } catch (final JMException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     public void printState() {
         for (final Table<?> table: List.of(Tables.DATABASE, Tables.RANGE, Tables.NODE, Tables.NODE_LABEL,
-                                           Tables.REPLICA,
-                                           Tables.REPLICA_CONSTRAINT, Tables.REPLICA_TO_NODE_CONSTRAINT_MATCHING,
+                                           Tables.REPLICA, Tables.PENDING_RANGE,
+                                           Tables.CONSTRAINT_SET, Tables.REPLICA_CONSTRAINT,
+                                           Tables.CONSTRAINT_SET_DOMAIN,
                                            Tables.NODE_AZS, Tables.PENDING_REPLICAS)) {
             System.out.println("---" + table.getName() + "---");
             System.out.println(conn.fetch(table));
@@ -268,12 +1523,37 @@ public class ReplicaPlacement {
         return conn.fetch(Tables.REPLICA);
     }
 
+    /*
+     * The total qps of the replicas on every node that has at least one replica. Computed from in-memory
+     * counters that are updated whenever replicas are placed or their qps changes.
+     */
     public Result<Record2<Integer, BigDecimal>> qpsPerNode() {
-        return conn.select(Tables.NODE.ID, sum(Tables.REPLICA.QPS))
-                   .from(Tables.REPLICA)
-                   .join(Tables.NODE).on(Tables.REPLICA.CURRENT_NODE.eq(Tables.NODE.ID))
-                   .groupBy(Tables.NODE.ID)
-                   .fetch();
+        return loadPerNode(LoadDimension.QPS);
+    }
+
+    /*
+     * Same as qpsPerNode(), for any load dimension
+     */
+    public Result<Record2<Integer, BigDecimal>> loadPerNode(final LoadDimension dimension) {
+        final Field<BigDecimal> loadSum = sum(dimension.load);
+        final Result<Record2<Integer, BigDecimal>> result = conn.newResult(Tables.NODE.ID, loadSum);
+        for (int nodeId = 0; nodeId <= nodeLoad.maxNodeId(); nodeId++) {
+            if (nodeLoad.hasReplicas(nodeId)) {
+                final Record2<Integer, BigDecimal> record = conn.newRecord(Tables.NODE.ID, loadSum);
+                record.values(nodeId, BigDecimal.valueOf(nodeLoad.load(dimension, nodeId)));
+                record.changed(false);
+                result.add(record);
+            }
+        }
+        return result;
+    }
+
+    /*
+     * Whether any node is serving at least qpsThreshold load, or more than its capacity in any dimension.
+     * Cheap enough to poll frequently.
+     */
+    public boolean hasOverloadedNodes(final int qpsThreshold) {
+        return nodeLoad.anyOverloaded(qpsThreshold);
     }
 
     /*
@@ -282,28 +1562,48 @@ public class ReplicaPlacement {
      *
      * TODO: Add voting/non-voting replica distinction later
      */
-    private ReplicaRecord addReplica(final int rangeId) {
-        final ReplicaRecord replicaRecord = conn.newRecord(Tables.REPLICA);
+    private ReplicaRecord addReplica(final int rangeId, final Integer constraintSetId, final boolean leaseholder,
+                                     final Integer leaseConstraintSetId) {
+        final ReplicaRecord replicaRecord = newReplicaRecord(rangeId, constraintSetId);
+        replicaRecord.setLeaseholder(leaseholder);
+        replicaRecord.setLeaseConstraintSetId(leaseConstraintSetId);
+        replicaRecord.attach(conn.configuration());
+        replicaRecord.store();
+        markRangesPending(conn, Tables.REPLICA.RANGE_ID.eq(rangeId));
+        return replicaRecord;
+    }
+
+    /*
+     * Add the ranges of all replicas matching replicaCondition to the pending_range table, if not already present
+     */
+    private static void markRangesPending(final DSLContext ctx, final Condition replicaCondition) {
+        ctx.insertInto(Tables.PENDING_RANGE, Tables.PENDING_RANGE.RANGE_ID)
+           .select(selectDistinct(Tables.REPLICA.RANGE_ID)
+                   .from(Tables.REPLICA)
+                   .where(replicaCondition)
+                   .and(Tables.REPLICA.RANGE_ID.notIn(select(Tables.PENDING_RANGE.RANGE_ID)
+                                                      .from(Tables.PENDING_RANGE))))
+           .execute();
+    }
+
+    private static int qpsOrZero(final Integer qps) {
+        return qps == null ? 0 : qps;
+    }
+
+    private ReplicaRecord newReplicaRecord(final int rangeId, final Integer constraintSetId) {
+        final ReplicaRecord replicaRecord = new ReplicaRecord();
         replicaRecord.setRangeId(rangeId);
         replicaRecord.setStatus("pending");
         replicaRecord.setCurrentNode(null);
         replicaRecord.setControllable_Node(null);
         replicaRecord.setQps(DEFAULT_QPS);
-        replicaRecord.store();
+        replicaRecord.setDiskMb(0);
+        replicaRecord.setWriteKbps(0);
+        replicaRecord.setConstraintSetId(constraintSetId);
+        replicaRecord.setLeaseholder(false);
         return replicaRecord;
     }
 
-    private void configureReplicaConstraints(final ReplicaRecord replicaRecord, final List<String> constraints) {
-        constraints.stream().filter(e -> e.startsWith("+"))
-                .map(l -> toKeyValuePair(l.substring(1), "="))
-                .forEach(kvPair -> addRequiredReplicaConstraint(replicaRecord.getId(),
-                        replicaRecord.getRangeId(), kvPair.key, kvPair.value));
-        constraints.stream().filter(e -> e.startsWith("-"))
-                .map(l -> toKeyValuePair(l.substring(1), "="))
-                .forEach(kvPair -> addProhibitedReplicaConstraint(replicaRecord.getId(),
-                        replicaRecord.getRangeId(), kvPair.key, kvPair.value));
-    }
-
     private List<String> arrayToConstraints(final JsonElement jsonElement) {
         final JsonArray jsonArray = jsonElement.getAsJsonArray();
         final List<String> constraintsAsList = new ArrayList<>(jsonArray.size());
@@ -313,33 +1613,30 @@ public class ReplicaPlacement {
         return constraintsAsList;
     }
 
-    private void addNodeLabel(final int nodeId, final String labelKey, final String labelValue) {
-        conn.insertInto(Tables.NODE_LABEL)
-                .values(nodeId, labelKey, labelValue)
-                .execute();
+    private NodeLabelRecord newNodeLabelRecord(final int nodeId, final KVPair kvPair) {
+        final NodeLabelRecord nodeLabelRecord = new NodeLabelRecord();
+        nodeLabelRecord.setId(nodeId);
+        nodeLabelRecord.setLabelKey(kvPair.key);
+        nodeLabelRecord.setLabelValue(kvPair.value);
+        return nodeLabelRecord;
     }
 
-    private void addRequiredReplicaConstraint(final int replicaId, final int rangeId, final String labelKey,
-                                              final String labelValue) {
-        conn.insertInto(Tables.REPLICA_CONSTRAINT)
-            .values(replicaId, rangeId, "required", labelKey, labelValue)
-            .execute();
-    }
-
-    private void addProhibitedReplicaConstraint(final int replicaId, final int rangeId, final String labelKey,
-                                                final String labelValue) {
-        conn.insertInto(Tables.REPLICA_CONSTRAINT)
-            .values(replicaId, rangeId, "prohibited", labelKey, labelValue)
-            .execute();
+    /*
+     * The next free value of an auto-incremented identifier column. H2 advances the column's sequence past
+     * explicitly inserted values, so rows added later through store() do not collide with these.
+     */
+    private static int nextId(final DSLContext ctx, final TableField<? extends Record, Integer> idField) {
+        final Integer maxId = ctx.select(max(idField)).from(idField.getTable()).fetchOne().value1();
+        return maxId == null ? 1 : maxId + 1;
     }
 
     /*
      * Sets up an in-memory database using the schema.sql file.
      */
-    private DSLContext setup() {
+    static DSLContext setup() {
         try {
             final DSLContext using = using("jdbc:h2:mem:");
-            final InputStream resourceAsStream = this.getClass().getResourceAsStream("/schema.sql");
+            final InputStream resourceAsStream = ReplicaPlacement.class.getResourceAsStream("/schema.sql");
             final BufferedReader reader =
                     new BufferedReader(new InputStreamReader(resourceAsStream, StandardCharsets.UTF_8));
             final String schemaAsString = reader
@@ -358,7 +1655,7 @@ public class ReplicaPlacement {
         }
     }
 
-    private KVPair toKeyValuePair(final String labelString, final String splitter) {
+    static KVPair toKeyValuePair(final String labelString, final String splitter) {
         final String[] split = labelString.split(splitter);
         if (split.length == 2) {
             final String key = split[0].trim();
@@ -372,7 +1669,7 @@ public class ReplicaPlacement {
         }
     }
 
-    private static class KVPair {
+    static class KVPair {
         final String key;
         final String value;
 
@@ -0,0 +1,123 @@
+/*
+ * Copyright © 2018-2021 VMware, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: BSD-2
+ */
+
+package com.vmware;
+
+import com.vmware.generated.tables.records.ReplicaRecord;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/*
+ * Plans how the replicas of every range of a database change when its num_replicas or constraints are
+ * edited. Each range needs one replica per constraint set of the new zone configuration (a slot), and its
+ * existing replicas are matched to slots so that as little data as possible moves:
+ *   1. Slots are filled most restrictive first, each with a replica whose current node already satisfies it.
+ *      Running replicas on the least loaded nodes are preferred, so when replication shrinks, the replicas
+ *      dropped are those on the most loaded nodes.
+ *   2. Slots that no replica satisfies take a pending replica if there is one, then a migrating one, and then
+ *      a running replica, which has to migrate.
+ *   3. Slots still empty get a new replica, and replicas left without a slot are dropped.
+ * Matching is greedy rather than optimal, which is enough for the handful of replicas in a range.
+ */
+final class ReplicationPlanner {
+
+    private ReplicationPlanner() {
+    }
+
+    /*
+     * @param replicasPerRange the replicas of every range of the database
+     * @param constraintSets the constraint set of each replica in the new zone configuration
+     * @param candidateNodes the nodes a replica with a given constraint set may be placed on
+     * @param nodeLoad the current load of every node
+     */
+    static Plan plan(final Map<Integer, List<ReplicaRecord>> replicasPerRange, final List<Integer> constraintSets,
+                     final Function<Integer, BitSet> candidateNodes, final NodeLoad nodeLoad) {
+        final List<Integer> slotsByRestrictiveness = IntStream.range(0, constraintSets.size()).boxed()
+                .sorted(Comparator.comparingInt(i -> candidateNodes.apply(constraintSets.get(i)).cardinality()))
+                .collect(Collectors.toList());
+        final Comparator<ReplicaRecord> keepOrder = Comparator.comparingInt(ReplicationPlanner::statusRank)
+                .thenComparingInt(r -> r.getCurrentNode() == null ? 0 : nodeLoad.qps(r.getCurrentNode()));
+        final Comparator<ReplicaRecord> moveOrder = keepOrder.reversed();
+
+        final Plan plan = new Plan();
+        for (final Map.Entry<Integer, List<ReplicaRecord>> entry: replicasPerRange.entrySet()) {
+            final List<ReplicaRecord> unassigned = entry.getValue().stream().sorted(keepOrder)
+                    .collect(Collectors.toList());
+            final ReplicaRecord[] replicaOfSlot = new ReplicaRecord[constraintSets.size()];
+            for (final int slot: slotsByRestrictiveness) {
+                final BitSet allowed = candidateNodes.apply(constraintSets.get(slot));
+                for (final ReplicaRecord replica: unassigned) {
+                    if (replica.getCurrentNode() != null && allowed.get(replica.getCurrentNode())) {
+                        replicaOfSlot[slot] = replica;
+                        unassigned.remove(replica);
+                        break;
+                    }
+                }
+            }
+            unassigned.sort(moveOrder);
+            for (final int slot: slotsByRestrictiveness) {
+                if (replicaOfSlot[slot] == null && !unassigned.isEmpty()) {
+                    final ReplicaRecord replica = unassigned.remove(0);
+                    replicaOfSlot[slot] = replica;
+                    if (replica.getStatus().equals("running") && replica.getCurrentNode() != null) {
+                        plan.migratingReplicas.add(replica.getId());
+                    }
+                }
+            }
+
+            final int rangeId = entry.getKey();
+            for (int slot = 0; slot < replicaOfSlot.length; slot++) {
+                final ReplicaRecord replica = replicaOfSlot[slot];
+                if (replica == null) {
+                    plan.newReplicas.computeIfAbsent(rangeId, k -> new ArrayList<>()).add(constraintSets.get(slot));
+                    plan.rangesToPlace.add(rangeId);
+                    continue;
+                }
+                if (!Objects.equals(replica.getConstraintSetId(), constraintSets.get(slot))) {
+                    plan.constraintSetOfReplica.put(replica.getId(), constraintSets.get(slot));
+                }
+                if (!replica.getStatus().equals("running") || plan.migratingReplicas.contains(replica.getId())) {
+                    plan.rangesToPlace.add(rangeId);
+                }
+            }
+            plan.droppedReplicas.addAll(unassigned);
+        }
+        return plan;
+    }
+
+    /*
+     * Running replicas are the most expensive to move, and pending ones the cheapest
+     */
+    private static int statusRank(final ReplicaRecord replica) {
+        if (replica.getCurrentNode() == null) {
+            return 2;
+        }
+        return replica.getStatus().equals("running") ? 0 : 1;
+    }
+
+    static final class Plan {
+        // New constraint set of every kept replica whose set changes. Values may be null.
+        final Map<Integer, Integer> constraintSetOfReplica = new HashMap<>();
+        // Running replicas whose node does not satisfy their new constraint set
+        final Set<Integer> migratingReplicas = new HashSet<>();
+        final List<ReplicaRecord> droppedReplicas = new ArrayList<>();
+        // Constraint sets of the replicas to add, by range ID
+        final Map<Integer, List<Integer>> newReplicas = new LinkedHashMap<>();
+        // Ranges with replicas that need to be placed
+        final Set<Integer> rangesToPlace = new HashSet<>();
+    }
+}
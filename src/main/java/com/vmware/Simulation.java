@@ -0,0 +1,349 @@
+/*
+ * Copyright © 2018-2021 VMware, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: BSD-2
+ */
+
+package com.vmware;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.vmware.generated.Tables;
+import org.jooq.Record;
+import org.jooq.Result;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Replays a trace of cluster events against ReplicaPlacement, to size clusters and to compare policy changes
+ * on production traces offline. The trace is a JSONL file with one event per line, in time order:
+ *
+ *   {"time": 0, "type": "add_node", "id": 1, "locality": ["region=us-east", "az=us-east-1"],
+ *    "capabilities": ["ram:64GB"], "attributes": ["ssd"], "capacity": {"disk_mb": 512000}}
+ *   {"time": 0, "type": "remove_node", "id": 1}
+ *   {"time": 0, "type": "add_database", "name": "db1", "num_replicas": 3, "constraints": "[\"+ssd\"]",
+ *    "lease_preferences": "[[\"+region=us-east\"]]"}
+ *   {"time": 0, "type": "edit_database", "name": "db1", "num_replicas": 5, "constraints": ""}
+ *   {"time": 0, "type": "range_qps", "range": 1, "qps": 250}
+ *   {"time": 0, "type": "range_load", "range": 1, "disk_mb": 2048, "write_kbps": 300}
+ *   {"time": 0, "type": "database_qps", "name": "db1", "qps": 40}
+ *
+ * Times are in milliseconds from the start of the trace. Ranges are identified by the IDs placement assigns
+ * them, which start at 1 and follow the order in which databases are added. Blank lines and lines starting
+ * with # are skipped. The capacity of a node and the load of a range may be given in any of the load
+ * dimensions (qps, disk_mb and write_kbps), and nodes have no capacity in the dimensions left out.
+ *
+ * Simulated time advances in ticks. At the end of every tick, telemetry is flushed and pending replicas are
+ * placed (or, once some node reaches the migration threshold, replicas are migrated off overloaded nodes),
+ * as PlacementService would. With --rebalance-leases, leases are then rebalanced as well. The trace is
+ * replayed as fast as possible, or at a multiple of real time. A row with the load imbalance across nodes is
+ * printed at every report interval, followed by a summary of placement latencies, per-phase timings (see
+ * PlacementMetrics), and replica placements, moves and lease transfers.
+ */
+public final class Simulation {
+    private static final String USAGE = "Usage: Simulation <trace.jsonl> [--tick-ms N] [--report-interval-ms N] " +
+            "[--speedup X] [--migrate-above-qps N] [--split-above-qps N] [--greedy] [--hierarchical] " +
+            "[--rebalance-leases]";
+    private final ReplicaPlacement placement;
+    private final long tickMillis;
+    private final long reportIntervalMillis;
+    private final double speedup; // 0 replays as fast as possible
+    private final int migrateAboveQps; // 0 disables migration
+    private final boolean rebalanceLeases;
+    private final PrintStream out;
+    private final BitSet liveNodes = new BitSet();
+    private final List<Long> placementNanos = new ArrayList<>();
+    private final List<Double> imbalanceSamples = new ArrayList<>();
+    private long events = 0;
+    private long replicasPlaced = 0;
+    private long replicasMoved = 0;
+    private long replicasPlacedSinceReport = 0;
+    private long replicasMovedSinceReport = 0;
+
+    Simulation(final ReplicaPlacement placement, final long tickMillis, final long reportIntervalMillis,
+               final double speedup, final int migrateAboveQps, final boolean rebalanceLeases, final PrintStream out) {
+        if (tickMillis <= 0 || reportIntervalMillis <= 0 || speedup < 0 || migrateAboveQps < 0) {
+            throw new IllegalArgumentException("Tick and report intervals must be positive, and speedup and " +
+                                               "migration threshold must not be negative");
+        }
+        this.placement = placement;
+        this.tickMillis = tickMillis;
+        this.reportIntervalMillis = reportIntervalMillis;
+        this.speedup = speedup;
+        this.migrateAboveQps = migrateAboveQps;
+        this.rebalanceLeases = rebalanceLeases;
+        this.out = out;
+    }
+
+    public static void main(final String[] args) throws IOException, InterruptedException {
+        if (args.length == 0) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        final Path trace = Paths.get(args[0]);
+        long tickMillis = 1000;
+        long reportIntervalMillis = 60_000;
+        double speedup = 0;
+        int migrateAboveQps = 0;
+        boolean rebalanceLeases = false;
+        final ReplicaPlacement placement = ReplicaPlacement.init();
+        try {
+            for (int i = 1; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--tick-ms":
+                        tickMillis = Long.parseLong(args[++i]);
+                        break;
+                    case "--report-interval-ms":
+                        reportIntervalMillis = Long.parseLong(args[++i]);
+                        break;
+                    case "--speedup":
+                        speedup = Double.parseDouble(args[++i]);
+                        break;
+                    case "--migrate-above-qps":
+                        migrateAboveQps = Integer.parseInt(args[++i]);
+                        break;
+                    case "--split-above-qps":
+                        placement.enableLoadBasedSplitting(Integer.parseInt(args[++i]));
+                        break;
+                    case "--greedy":
+                        placement.enableGreedyPlacement();
+                        break;
+                    case "--hierarchical":
+                        placement.enableHierarchicalPlacement();
+                        break;
+                    case "--rebalance-leases":
+                        rebalanceLeases = true;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+        } catch (final IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        final Simulation simulation = new Simulation(placement, tickMillis, reportIntervalMillis, speedup,
+                                                     migrateAboveQps, rebalanceLeases, System.out);
+        try (placement; final BufferedReader reader = Files.newBufferedReader(trace, StandardCharsets.UTF_8)) {
+            simulation.run(reader);
+        }
+    }
+
+    /*
+     * Replay every event of the trace, then run a last tick to place whatever is still pending
+     */
+    void run(final BufferedReader trace) throws IOException, InterruptedException {
+        final long wallStart = System.nanoTime();
+        long nextTick = tickMillis;
+        long nextReport = reportIntervalMillis;
+        out.printf("%10s %6s %10s %10s %10s %8s %8s %8s %8s%n", "time_s", "nodes", "max_qps", "mean_qps",
+                   "max/mean", "cv", "placed", "moved", "rejected");
+        String line;
+        int lineNumber = 0;
+        long previousTime = 0;
+        while ((line = trace.readLine()) != null) {
+            lineNumber++;
+            if (line.isBlank() || line.startsWith("#")) {
+                continue;
+            }
+            final JsonObject event = JsonParser.parseString(line).getAsJsonObject();
+            final long time = event.get("time").getAsLong();
+            if (time < previousTime) {
+                throw new IllegalArgumentException("Event on line " + lineNumber + " is out of time order");
+            }
+            previousTime = time;
+            while (time >= nextTick) {
+                tick();
+                if (nextTick >= nextReport) {
+                    report(nextTick);
+                    nextReport += reportIntervalMillis;
+                }
+                nextTick += tickMillis;
+            }
+            if (speedup > 0) {
+                final long dueNanos = wallStart + (long) (TimeUnit.MILLISECONDS.toNanos(time) / speedup);
+                TimeUnit.NANOSECONDS.sleep(dueNanos - System.nanoTime());
+            }
+            try {
+                apply(event);
+            } catch (final RuntimeException e) {
+                throw new IllegalArgumentException("Cannot apply event on line " + lineNumber + ": " + line, e);
+            }
+            events++;
+        }
+        tick();
+        report(nextTick);
+        summarize(nextTick, System.nanoTime() - wallStart);
+    }
+
+    private void apply(final JsonObject event) {
+        final String type = event.get("type").getAsString();
+        switch (type) {
+            case "add_node":
+                final int nodeId = event.get("id").getAsInt();
+                placement.addNodeWithAttributes(nodeId, strings(event, "locality"), strings(event, "capabilities"),
+                                                strings(event, "attributes"));
+                if (event.has("capacity")) {
+                    final JsonObject capacity = event.get("capacity").getAsJsonObject();
+                    for (final LoadDimension dimension: LoadDimension.values()) {
+                        if (capacity.has(dimension.load.getName())) {
+                            placement.setNodeCapacity(nodeId, dimension,
+                                                      capacity.get(dimension.load.getName()).getAsInt());
+                        }
+                    }
+                }
+                liveNodes.set(nodeId);
+                break;
+            case "remove_node":
+                placement.removeNode(event.get("id").getAsInt());
+                liveNodes.clear(event.get("id").getAsInt());
+                break;
+            case "add_database":
+                placement.addDatabase(event.get("name").getAsString(), numReplicas(event), constraints(event),
+                                      event.has("lease_preferences") ? event.get("lease_preferences").getAsString()
+                                                                     : "");
+                break;
+            case "edit_database":
+                placement.editDatabase(event.get("name").getAsString(), numReplicas(event), constraints(event));
+                break;
+            case "range_qps":
+                placement.recordRangeQps(event.get("range").getAsInt(), event.get("qps").getAsDouble());
+                break;
+            case "range_load":
+                for (final LoadDimension dimension: LoadDimension.values()) {
+                    if (event.has(dimension.load.getName())) {
+                        placement.updateRangeLoad(event.get("range").getAsInt(), dimension,
+                                                  event.get(dimension.load.getName()).getAsInt());
+                    }
+                }
+                break;
+            case "database_qps":
+                placement.updateQpsForDb(event.get("name").getAsString(), event.get("qps").getAsInt());
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown event type " + type);
+        }
+    }
+
+    /*
+     * Flush telemetry and place pending replicas, or migrate replicas if some node is overloaded
+     */
+    private void tick() {
+        placement.flushQpsTelemetry();
+        final long start = System.nanoTime();
+        final Result<? extends Record> placed = migrateAboveQps > 0 && placement.hasOverloadedNodes(migrateAboveQps)
+                ? placement.migrateReplicasOnOverloadedNodes(migrateAboveQps)
+                : placement.placeReplicas();
+        if (rebalanceLeases) {
+            placement.rebalanceLeases();
+        }
+        if (placed.isEmpty()) {
+            return;
+        }
+        placementNanos.add(System.nanoTime() - start);
+        for (final Record replica: placed) {
+            final Integer currentNode = replica.get(Tables.REPLICA.CURRENT_NODE);
+            if (currentNode == null) {
+                replicasPlacedSinceReport++;
+            } else if (!currentNode.equals(replica.get(Tables.REPLICA.CONTROLLABLE__NODE))) {
+                replicasMovedSinceReport++;
+            }
+        }
+    }
+
+    /*
+     * Print the load of every live node, including idle ones, at the given simulated time
+     */
+    private void report(final long time) {
+        final long[] qps = new long[liveNodes.length()];
+        placement.qpsPerNode().forEach(r -> {
+            if (liveNodes.get(r.value1())) {
+                qps[r.value1()] = r.value2().longValue();
+            }
+        });
+        final int numNodes = liveNodes.cardinality();
+        long max = 0;
+        double sum = 0;
+        for (int node = liveNodes.nextSetBit(0); node >= 0; node = liveNodes.nextSetBit(node + 1)) {
+            max = Math.max(max, qps[node]);
+            sum += qps[node];
+        }
+        final double mean = numNodes == 0 ? 0 : sum / numNodes;
+        double squaredDeviations = 0;
+        for (int node = liveNodes.nextSetBit(0); node >= 0; node = liveNodes.nextSetBit(node + 1)) {
+            squaredDeviations += (qps[node] - mean) * (qps[node] - mean);
+        }
+        final double imbalance = mean == 0 ? 1 : max / mean;
+        final double cv = mean == 0 ? 0 : Math.sqrt(squaredDeviations / numNodes) / mean;
+        if (mean > 0) {
+            imbalanceSamples.add(imbalance);
+        }
+        out.printf("%10.1f %6d %10d %10.1f %10.2f %8.3f %8d %8d %8d%n", time / 1000.0, numNodes, max, mean,
+                   imbalance, cv, replicasPlacedSinceReport, replicasMovedSinceReport,
+                   placement.getRejectedRanges().size());
+        replicasPlaced += replicasPlacedSinceReport;
+        replicasMoved += replicasMovedSinceReport;
+        replicasPlacedSinceReport = 0;
+        replicasMovedSinceReport = 0;
+    }
+
+    private void summarize(final long simulatedMillis, final long wallNanos) {
+        out.println();
+        out.printf("Replayed %d events over %.1fs of simulated time in %.1fs%n", events, simulatedMillis / 1000.0,
+                   wallNanos / 1e9);
+        final List<Long> sorted = new ArrayList<>(placementNanos);
+        Collections.sort(sorted);
+        out.printf("Placement rounds: %d, latency p50=%.1fms p90=%.1fms p99=%.1fms max=%.1fms%n", sorted.size(),
+                   percentileMillis(sorted, 0.5), percentileMillis(sorted, 0.9), percentileMillis(sorted, 0.99),
+                   percentileMillis(sorted, 1.0));
+        final PlacementMetrics.Snapshot metrics = placement.getMetrics();
+        out.printf("Replicas placed: %d, moved: %d, ranges split: %d, leases transferred: %d%n", replicasPlaced,
+                   replicasMoved, metrics.getRangesSplit(), metrics.getLeasesTransferred());
+        final double meanImbalance = imbalanceSamples.stream().mapToDouble(d -> d).average().orElse(1);
+        final double maxImbalance = imbalanceSamples.stream().mapToDouble(d -> d).max().orElse(1);
+        out.printf("Load imbalance (max/mean node qps): mean=%.2f max=%.2f%n", meanImbalance, maxImbalance);
+        metrics.getPhases().forEach(out::println);
+    }
+
+    private static double percentileMillis(final List<Long> sortedNanos, final double quantile) {
+        if (sortedNanos.isEmpty()) {
+            return 0;
+        }
+        final int rank = (int) Math.ceil(sortedNanos.size() * quantile);
+        return sortedNanos.get(Math.max(0, rank - 1)) / 1e6;
+    }
+
+    private static int numReplicas(final JsonObject event) {
+        return event.has("num_replicas") ? event.get("num_replicas").getAsInt()
+                                         : ReplicaPlacement.DEFAULT_NUM_REPLICAS;
+    }
+
+    private static String constraints(final JsonObject event) {
+        return event.has("constraints") ? event.get("constraints").getAsString() : "";
+    }
+
+    private static List<String> strings(final JsonObject event, final String key) {
+        if (!event.has(key)) {
+            return Collections.emptyList();
+        }
+        final JsonArray array = event.get(key).getAsJsonArray();
+        final List<String> values = new ArrayList<>(array.size());
+        for (final JsonElement element: array) {
+            values.add(element.getAsString());
+        }
+        return values;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright © 2018-2021 VMware, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: BSD-2
+ */
+
+package com.vmware;
+
+import com.vmware.dcm.Model;
+import com.vmware.dcm.backend.ortools.OrToolsSolver;
+import org.jooq.DSLContext;
+
+import java.util.List;
+
+/*
+ * Solver settings for ReplicaPlacement.init(). Settings that are not set keep the DCM defaults.
+ *
+ * When the time limit runs out, the solver returns the best feasible assignment it has found so far,
+ * which placement commits like any other. A solve fails only if no feasible assignment was found in time,
+ * in which case the pending replicas stay pending.
+ */
+public class SolverOptions {
+    private final Integer maxTimeInSeconds;
+    private final Integer numThreads;
+    private final int maxParallelSolves;
+
+    private SolverOptions(final Builder builder) {
+        this.maxTimeInSeconds = builder.maxTimeInSeconds;
+        this.numThreads = builder.numThreads;
+        this.maxParallelSolves = builder.maxParallelSolves;
+    }
+
+    public static SolverOptions defaults() {
+        return new Builder().build();
+    }
+
+    int getMaxParallelSolves() {
+        return maxParallelSolves;
+    }
+
+    /*
+     * Each model needs its own solver backend
+     */
+    Model buildModel(final DSLContext conn, final List<String> policies) {
+        final OrToolsSolver.Builder solver = new OrToolsSolver.Builder();
+        if (maxTimeInSeconds != null) {
+            solver.setMaxTimeInSeconds(maxTimeInSeconds);
+        }
+        if (numThreads != null) {
+            solver.setNumThreads(numThreads);
+        }
+        return Model.build(conn, solver.build(), policies);
+    }
+
+    public static class Builder {
+        private Integer maxTimeInSeconds = null;
+        private Integer numThreads = null;
+        private int maxParallelSolves = Runtime.getRuntime().availableProcessors();
+
+        /*
+         * Wall-clock limit for a single solve
+         */
+        public Builder setMaxTimeInSeconds(final int maxTimeInSeconds) {
+            if (maxTimeInSeconds <= 0) {
+                throw new IllegalArgumentException("maxTimeInSeconds must be positive");
+            }
+            this.maxTimeInSeconds = maxTimeInSeconds;
+            return this;
+        }
+
+        /*
+         * Number of solver worker threads used by a single solve
+         */
+        public Builder setNumThreads(final int numThreads) {
+            if (numThreads <= 0) {
+                throw new IllegalArgumentException("numThreads must be positive");
+            }
+            this.numThreads = numThreads;
+            return this;
+        }
+
+        /*
+         * Maximum number of independent partitions of the pending ranges that are solved concurrently
+         */
+        public Builder setMaxParallelSolves(final int maxParallelSolves) {
+            if (maxParallelSolves <= 0) {
+                throw new IllegalArgumentException("maxParallelSolves must be positive");
+            }
+            this.maxParallelSolves = maxParallelSolves;
+            return this;
+        }
+
+        public SolverOptions build() {
+            return new SolverOptions(this);
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright © 2018-2021 VMware, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: BSD-2
+ */
+
+package com.vmware;
+
+import com.vmware.dcm.Model;
+import com.vmware.generated.Tables;
+import com.vmware.generated.tables.records.ConstraintSetDomainRecord;
+import com.vmware.generated.tables.records.ConstraintSetRecord;
+import com.vmware.generated.tables.records.DatabaseRecord;
+import com.vmware.generated.tables.records.NodeLabelRecord;
+import com.vmware.generated.tables.records.NodeRecord;
+import com.vmware.generated.tables.records.PendingRangeRecord;
+import com.vmware.generated.tables.records.RangeRecord;
+import com.vmware.generated.tables.records.ReplicaRecord;
+import org.jooq.DSLContext;
+import org.jooq.Record;
+import org.jooq.Result;
+import org.jooq.Table;
+import org.jooq.TableRecord;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.jooq.impl.DSL.using;
+
+/*
+ * A pool of DCM models used to place independent partitions of the pending replicas (see RangePartitioner
+ * and DomainAssigner) concurrently. Each model runs over its own private in-memory database. Before a
+ * partition is solved, the rows it needs (its nodes, constraint sets, ranges and replicas) are copied from
+ * the main database into the worker's database, so the solver only sees the nodes that partition may use.
+ */
+class SolverPool {
+    private final List<String> policies;
+    private final SolverOptions solverOptions;
+    private final ConcurrentLinkedQueue<Worker> idleWorkers = new ConcurrentLinkedQueue<>();
+    private final ExecutorService executor;
+    private volatile boolean closed = false;
+
+    SolverPool(final List<String> policies, final SolverOptions solverOptions) {
+        this.policies = policies;
+        this.solverOptions = solverOptions;
+        final int size = solverOptions.getMaxParallelSolves();
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(size, runnable -> {
+            final Thread thread = new Thread(runnable, "placement-solver-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /*
+     * Solve all partitions concurrently and return the union of their solutions. The state needed by each
+     * partition is read from conn on the calling thread. If any partition cannot be solved, this throws a
+     * PartialSolutionException and no solution is returned.
+     */
+    Result<? extends Record> solve(final DSLContext conn, final List<RangePartitioner.Partition> partitions) {
+        final List<ReplicaRecord> pendingReplicas = partitions.stream().flatMap(p -> p.replicas.stream())
+                .collect(Collectors.toList());
+        final Map<Integer, RangeRecord> ranges = conn.selectFrom(Tables.RANGE)
+                .where(Tables.RANGE.ID.in(pendingReplicas.stream().map(ReplicaRecord::getRangeId)
+                                                         .collect(Collectors.toSet())))
+                .fetchMap(Tables.RANGE.ID);
+        final Map<Integer, DatabaseRecord> databases = conn.selectFrom(Tables.DATABASE)
+                .where(Tables.DATABASE.ID.in(ranges.values().stream().map(RangeRecord::getDatabaseId)
+                                                   .collect(Collectors.toSet())))
+                .fetchMap(Tables.DATABASE.ID);
+        final Set<Integer> constraintSetIds = pendingReplicas.stream()
+                .flatMap(r -> Stream.of(r.getConstraintSetId(), r.getLeaseConstraintSetId()))
+                .filter(Objects::nonNull)
+                .collect(Collectors.toSet());
+        final Map<Integer, ConstraintSetRecord> constraintSets = conn.selectFrom(Tables.CONSTRAINT_SET)
+                .where(Tables.CONSTRAINT_SET.ID.in(constraintSetIds))
+                .fetchMap(Tables.CONSTRAINT_SET.ID);
+        final Map<Integer, ConstraintSetDomainRecord> domains = conn.selectFrom(Tables.CONSTRAINT_SET_DOMAIN)
+                .where(Tables.CONSTRAINT_SET_DOMAIN.CONSTRAINT_SET_ID.in(constraintSetIds))
+                .fetchMap(Tables.CONSTRAINT_SET_DOMAIN.CONSTRAINT_SET_ID);
+        final Map<Integer, NodeRecord> allNodes = conn.selectFrom(Tables.NODE).fetchMap(Tables.NODE.ID);
+        final Map<Integer, Result<NodeLabelRecord>> labelsPerNode = conn.selectFrom(Tables.NODE_LABEL)
+                .fetchGroups(Tables.NODE_LABEL.ID);
+
+        final List<Future<Result<? extends Record>>> futures = new ArrayList<>(partitions.size());
+        for (final RangePartitioner.Partition partition: partitions) {
+            // Tables in foreign key order
+            final List<TableRecord<?>> nodes = new ArrayList<>();
+            final List<TableRecord<?>> nodeLabels = new ArrayList<>();
+            for (int nodeId = partition.nodes.nextSetBit(0); nodeId >= 0;
+                 nodeId = partition.nodes.nextSetBit(nodeId + 1)) {
+                nodes.add(copyOf(allNodes.get(nodeId)));
+                labelsPerNode.getOrDefault(nodeId, conn.newResult(Tables.NODE_LABEL))
+                             .forEach(r -> nodeLabels.add(copyOf(r)));
+            }
+            final List<TableRecord<?>> partitionConstraintSets = new ArrayList<>();
+            final List<TableRecord<?>> partitionDomains = new ArrayList<>();
+            final List<TableRecord<?>> partitionDatabases = new ArrayList<>();
+            final List<TableRecord<?>> partitionRanges = new ArrayList<>();
+            final List<TableRecord<?>> partitionPendingRanges = new ArrayList<>();
+            final List<TableRecord<?>> partitionReplicas = new ArrayList<>();
+            final Set<Integer> seenDatabases = new HashSet<>();
+            final Set<Integer> seenConstraintSets = new HashSet<>();
+            for (final int rangeId: partition.rangeIds) {
+                final RangeRecord range = ranges.get(rangeId);
+                if (seenDatabases.add(range.getDatabaseId())) {
+                    partitionDatabases.add(copyOf(databases.get(range.getDatabaseId())));
+                }
+                partitionRanges.add(copyOf(range));
+                final PendingRangeRecord pendingRange = new PendingRangeRecord();
+                pendingRange.setRangeId(rangeId);
+                partitionPendingRanges.add(pendingRange);
+            }
+            for (final ReplicaRecord replica: partition.replicas) {
+                for (final Integer constraintSetId: Arrays.asList(replica.getConstraintSetId(),
+                                                                  replica.getLeaseConstraintSetId())) {
+                    if (constraintSetId != null && seenConstraintSets.add(constraintSetId)) {
+                        partitionConstraintSets.add(copyOf(constraintSets.get(constraintSetId)));
+                        partitionDomains.add(copyOf(domains.get(constraintSetId)));
+                    }
+                }
+                partitionReplicas.add(copyOf(replica));
+            }
+            final List<List<TableRecord<?>>> input = List.of(nodes, nodeLabels, partitionConstraintSets,
+                                                             partitionDomains, partitionDatabases, partitionRanges,
+                                                             partitionPendingRanges, partitionReplicas);
+            futures.add(executor.submit(() -> solveOnWorker(input)));
+        }
+
+        Result<Record> solution = null;
+        Throwable failure = null;
+        try {
+            for (final Future<Result<? extends Record>> future: futures) {
+                try {
+                    final Result<? extends Record> partitionSolution = future.get();
+                    if (solution == null) {
+                        solution = conn.newResult(partitionSolution.fields());
+                    }
+                    solution.addAll(partitionSolution);
+                } catch (final ExecutionException e) {
+                    failure = failure == null ? e.getCause() : failure;
+                }
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            futures.forEach(f -> f.cancel(false));
+        }
+        if (failure != null) {
+            throw new PartialSolutionException(failure, solution);
+        }
+        return solution == null ? conn.newResult(Tables.PENDING_REPLICAS) : solution;
+    }
+
+    /*
+     * Thrown when some partitions could not be solved. Carries the solutions of the other partitions,
+     * which are not committed but may serve as hints for the next attempt.
+     */
+    static class PartialSolutionException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        private final transient Result<Record> solvedPartitions;
+
+        PartialSolutionException(final Throwable cause, final Result<Record> solvedPartitions) {
+            super("Failed to solve some partitions of the pending ranges", cause);
+            this.solvedPartitions = solvedPartitions;
+        }
+
+        /*
+         * Null if no partition was solved
+         */
+        Result<Record> getSolvedPartitions() {
+            return solvedPartitions;
+        }
+    }
+
+    /*
+     * Stop the solver threads, interrupting any solve still running, and close the database of every worker.
+     * Workers that are busy are closed as soon as their solve ends.
+     */
+    void close() {
+        closed = true;
+        executor.shutdownNow();
+        closeIdleWorkers();
+    }
+
+    private void closeIdleWorkers() {
+        Worker worker;
+        while ((worker = idleWorkers.poll()) != null) {
+            worker.close();
+        }
+    }
+
+    private Result<? extends Record> solveOnWorker(final List<List<TableRecord<?>>> input) {
+        Worker worker = idleWorkers.poll();
+        if (worker == null) {
+            worker = new Worker(policies, solverOptions);
+        }
+        try {
+            return worker.solve(input);
+        } finally {
+            idleWorkers.add(worker);
+            if (closed) {
+                closeIdleWorkers();
+            }
+        }
+    }
+
+    /*
+     * Detached copy of a record, so that it can be inserted into a worker's database from another thread
+     */
+    @SuppressWarnings("unchecked")
+    private static <R extends TableRecord<R>> R copyOf(final TableRecord<?> record) {
+        final R copy = using(record.configuration().dialect()).newRecord((Table<R>) record.getTable());
+        copy.from(record);
+        copy.detach();
+        return copy;
+    }
+
+    private static class Worker {
+        private final DSLContext conn;
+        private final Model model;
+
+        Worker(final List<String> policies, final SolverOptions solverOptions) {
+            conn = ReplicaPlacement.setup();
+            model = solverOptions.buildModel(conn, policies);
+        }
+
+        Result<? extends Record> solve(final List<List<TableRecord<?>>> input) {
+            conn.transaction(configuration -> {
+                final DSLContext tx = using(configuration);
+                // Cascades to the ranges, pending ranges and replicas of the previous partition
+                tx.deleteFrom(Tables.DATABASE).execute();
+                tx.deleteFrom(Tables.CONSTRAINT_SET).execute();
+                tx.deleteFrom(Tables.NODE).execute();
+                for (final List<TableRecord<?>> records: input) {
+                    tx.batchInsert(records).execute();
+                }
+            });
+            return model.solve(Tables.PENDING_REPLICAS.getName());
+        }
+
+        /*
+         * Closing the only connection drops the in-memory database. The model holds no other resources.
+         */
+        void close() {
+            conn.close();
+        }
+    }
+}
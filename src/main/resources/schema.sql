@@ -1,5 +1,17 @@
+-- Nodes found to be overloaded by the last migration round. Replicas migrating off them may not
+-- be moved to another overloaded node.
+-- Every load dimension of a replica (qps, disk_mb and write_kbps) has a capacity per node, NULL meaning
+-- unlimited. The matching headroom columns hold the capacity left after the replicas already on the node
+-- (2147483647 if unlimited), and are refreshed by ReplicaPlacement before every solve.
 CREATE TABLE node (
-    id INTEGER NOT NULL PRIMARY KEY
+    id INTEGER NOT NULL PRIMARY KEY,
+    overloaded BOOLEAN NOT NULL DEFAULT FALSE,
+    qps_capacity INTEGER,
+    disk_capacity_mb INTEGER,
+    write_capacity_kbps INTEGER,
+    qps_headroom INTEGER NOT NULL DEFAULT 2147483647,
+    disk_headroom_mb INTEGER NOT NULL DEFAULT 2147483647,
+    write_headroom_kbps INTEGER NOT NULL DEFAULT 2147483647
 );
 
 CREATE TABLE node_label (
@@ -13,7 +25,8 @@ CREATE TABLE database (
     id INTEGER NOT NULL PRIMARY KEY auto_increment,
     name VARCHAR(100) NOT NULL,
     num_replicas INTEGER NOT NULL,
-    placement_constraints VARCHAR(100) NOT NULL
+    placement_constraints VARCHAR(100) NOT NULL,
+    lease_preferences VARCHAR(1000) NOT NULL DEFAULT ''
 );
 
 CREATE TABLE range (
@@ -22,7 +35,26 @@ CREATE TABLE range (
     FOREIGN KEY (database_id) REFERENCES database(id) ON DELETE CASCADE
 );
 
+-- Distinct lists of replica constraints. Every replica with the same constraints references the same set.
+CREATE TABLE constraint_set (
+    id INTEGER NOT NULL PRIMARY KEY,
+    constraints VARCHAR(1000) NOT NULL
+);
+
+CREATE TABLE replica_constraint (
+    constraint_set_id INTEGER NOT NULL,
+    type VARCHAR(30) NOT NULL,
+    label_key VARCHAR(30) NOT NULL,
+    label_value VARCHAR(30),
+    FOREIGN KEY (constraint_set_id) REFERENCES constraint_set(id) ON DELETE CASCADE
+);
+
 -- TODO: add non-voting/voting replica distinction
+-- hint_node is the node the solver assigned the replica to in a pooled solve that failed for other partitions
+-- and was not committed (-1 if none), which placement prefers the next time it solves the replica. Besides
+-- qps, the load of a replica includes its disk usage (disk_mb) and write throughput (write_kbps). Exactly one
+-- replica of every range is the leaseholder, which should sit on a node matching lease_constraint_set_id, the
+-- first lease preference of its database (NULL if none).
 CREATE TABLE replica (
     id INTEGER NOT NULL PRIMARY KEY auto_increment,
     range_id INTEGER NOT NULL,
@@ -30,43 +62,54 @@ CREATE TABLE replica (
     current_node INTEGER,
     controllable__node INTEGER,
     qps INTEGER,
+    disk_mb INTEGER NOT NULL DEFAULT 0,
+    write_kbps INTEGER NOT NULL DEFAULT 0,
+    constraint_set_id INTEGER,
+    hint_node INTEGER NOT NULL DEFAULT -1,
+    leaseholder BOOLEAN NOT NULL DEFAULT FALSE,
+    lease_constraint_set_id INTEGER,
     FOREIGN KEY (controllable__node) REFERENCES node(id) ON DELETE CASCADE,
-    FOREIGN KEY (range_id) REFERENCES range(id) ON DELETE CASCADE
+    FOREIGN KEY (range_id) REFERENCES range(id) ON DELETE CASCADE,
+    FOREIGN KEY (constraint_set_id) REFERENCES constraint_set(id),
+    FOREIGN KEY (lease_constraint_set_id) REFERENCES constraint_set(id)
 );
 
-CREATE TABLE replica_constraint (
-    id INTEGER NOT NULL,
-    range_id INTEGER NOT NULL,
-    type VARCHAR(30) NOT NULL,
-    label_key VARCHAR(30) NOT NULL,
-    label_value VARCHAR(30),
-    FOREIGN KEY (id) REFERENCES replica(id) ON DELETE CASCADE
+-- Ranges that have at least one pending replica. Maintained by ReplicaPlacement whenever replicas
+-- become pending or get placed, so that finding pending replicas does not scan the replica table.
+-- In windowed placement mode, only the active ranges are visible to the solver. Windows are filled in
+-- order of priority (highest first), then enqueue order (oldest first). Ranges that cannot be placed
+-- given the current nodes have a rejection_reason and are hidden from the solver as well.
+CREATE TABLE pending_range (
+    range_id INTEGER NOT NULL PRIMARY KEY,
+    enqueue_seq BIGINT NOT NULL auto_increment,
+    priority INTEGER NOT NULL DEFAULT 0,
+    active BOOLEAN NOT NULL DEFAULT TRUE,
+    rejection_reason VARCHAR(200),
+    FOREIGN KEY (range_id) REFERENCES range(id) ON DELETE CASCADE
 );
 
+-- replica.range_id and node_label.id are already indexed through their foreign keys
+CREATE INDEX replica_current_node ON replica(current_node);
+CREATE INDEX node_label_key_value ON node_label(label_key, label_value);
+CREATE INDEX pending_range_window_order ON pending_range(active, priority, enqueue_seq);
+
 -- Select only ranges that have at least one replicas as pending
 CREATE VIEW pending_replicas AS
     SELECT *
     FROM replica
     WHERE range_id IN
         (SELECT range_id
-         FROM replica
-         GROUP BY range_id
-         HAVING ANY(status = 'pending'));
+         FROM pending_range
+         WHERE active = TRUE AND rejection_reason IS NULL);
 
--- For each replica, compute the set of nodes they are affine
--- or anti-affine to (depending on the type of replica constraint)
-CREATE VIEW replica_to_node_constraint_matching AS
-    SELECT rc.id AS replica_id,
-           rc.range_id,
-           rc.type,
-           rc.label_key,
-           ARRAY_AGG(nl.id) AS node_id_list
-    FROM replica_constraint rc
-    JOIN node_label nl
-        ON   rc.label_key = nl.label_key
-         AND (rc.label_value IS NULL
-              OR rc.label_value = nl.label_value)
-    GROUP BY rc.id, rc.range_id, rc.type, rc.label_key;
+-- For each constraint set, the nodes that satisfy all of its required and prohibited constraints.
+-- Maintained from an in-memory index over node_label whenever a constraint set is created or node
+-- labels change.
+CREATE TABLE constraint_set_domain (
+    constraint_set_id INTEGER NOT NULL PRIMARY KEY,
+    node_id_list ARRAY NOT NULL,
+    FOREIGN KEY (constraint_set_id) REFERENCES constraint_set(id) ON DELETE CASCADE
+);
 
 
 -- Find the AZ for each node, if configured
@@ -0,0 +1,224 @@
+package com.vmware;
+
+import com.vmware.generated.Tables;
+import com.vmware.generated.tables.records.ReplicaRecord;
+import org.jooq.Result;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+/**
+ * Unit tests for the background placement service
+ */
+public class PlacementServiceTest {
+    private static final long NO_LOAD_CHECKS = TimeUnit.MINUTES.toMillis(10);
+
+    /*
+     * Requests that arrive within the debounce window are placed with one solve
+     */
+    @Test
+    public void debounce() throws Exception {
+        try (ReplicaPlacement placement = ReplicaPlacement.init()) {
+            addNodes(placement, 1, 3);
+            try (PlacementService service = new PlacementService(placement, 1000, 1000, 200, NO_LOAD_CHECKS)) {
+                service.start();
+                final List<CompletableFuture<?>> burst = new ArrayList<>();
+                for (int i = 0; i < 3; i++) {
+                    burst.add(service.addDatabase("db" + i, 3, ""));
+                }
+                CompletableFuture.allOf(burst.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+                // Metrics are safe to read from any thread
+                assertEquals(1, placement.getMetrics().getPhase(PlacementMetrics.Phase.SOLVE).getCount());
+
+                service.addDatabase("db3", 3, "").get(10, TimeUnit.SECONDS);
+                assertEquals(2, placement.getMetrics().getPhase(PlacementMetrics.Phase.SOLVE).getCount());
+            }
+        }
+    }
+
+    /*
+     * Migration only starts once a node reaches migrateAboveQps, and then goes on until every node is below
+     * settledBelowQps
+     */
+    @Test
+    public void migrationHysteresis() throws Exception {
+        try (ReplicaPlacement placement = ReplicaPlacement.init()) {
+            addNodes(placement, 1, 2);
+            for (int i = 1; i <= 3; i++) {
+                placement.addDatabase("db" + i, 2, "");
+            }
+            placement.placeReplicas(); // Every node holds a replica of every database
+            addNodes(placement, 3, 6);
+            try (PlacementService service = new PlacementService(placement, 100, 70, 10, 20)) {
+                service.start();
+                service.updateQpsForDb("db1", 40);
+                service.updateQpsForDb("db2", 30);
+                service.updateQpsForDb("db3", 25).get(10, TimeUnit.SECONDS);
+
+                // 95 qps per node is above the lower watermark only
+                Thread.sleep(200);
+                assertEquals(0, placement.getMetrics().getReplicasMigrated());
+
+                // 105 qps per node. Getting both nodes below 100 qps would leave one of them at 75 qps.
+                service.updateQpsForDb("db1", 50).get(10, TimeUnit.SECONDS);
+                final long deadline = System.currentTimeMillis() + 10_000;
+                while (placement.getMetrics().getReplicasMigrated() == 0
+                       || service.submit(p -> p.hasOverloadedNodes(70)).get(10, TimeUnit.SECONDS)) {
+                    assertTrue(System.currentTimeMillis() < deadline, "Migration did not settle");
+                    Thread.sleep(20);
+                }
+                assertFalse(service.submit(p -> p.hasOverloadedNodes(70)).get(10, TimeUnit.SECONDS));
+            }
+        }
+    }
+
+    /*
+     * Databases added concurrently are inserted and placed together, and every caller gets the replicas of
+     * its own database
+     */
+    @Test
+    public void groupCommit() throws Exception {
+        try (ReplicaPlacement placement = ReplicaPlacement.init()) {
+            addNodes(placement, 1, 5);
+            final ExecutorService callers = Executors.newFixedThreadPool(4);
+            try (PlacementService service = new PlacementService(placement, 1000, 1000, 200, NO_LOAD_CHECKS)) {
+                service.start();
+                final List<Future<CompletableFuture<Result<ReplicaRecord>>>> submitted = new ArrayList<>();
+                for (int i = 0; i < 8; i++) {
+                    final String name = "db" + i;
+                    submitted.add(callers.submit(() -> service.addDatabase(name, 3, "")));
+                }
+                final Set<Integer> ranges = new HashSet<>();
+                for (int i = 0; i < submitted.size(); i++) {
+                    final Result<ReplicaRecord> replicas = submitted.get(i).get().get(10, TimeUnit.SECONDS);
+                    assertEquals(3, replicas.size());
+                    assertEquals(placement.getReplicaRangesForDb("db" + i), replicas);
+                    replicas.forEach(r -> assertEquals("running", r.getStatus()));
+                    assertTrue(ranges.addAll(replicas.intoSet(Tables.REPLICA.RANGE_ID)));
+                }
+            } finally {
+                callers.shutdown();
+            }
+        }
+    }
+
+    /*
+     * A request that fails does not fail the other requests of its group
+     */
+    @Test
+    public void failedRequestInGroup() throws Exception {
+        try (ReplicaPlacement placement = ReplicaPlacement.init()) {
+            addNodes(placement, 1, 3);
+            try (PlacementService service = new PlacementService(placement, 1000, 1000, 200, NO_LOAD_CHECKS)) {
+                service.start();
+                final CompletableFuture<Result<ReplicaRecord>> db1 = service.addDatabase("db1", 3, "");
+                final CompletableFuture<Result<ReplicaRecord>> malformed = service.addDatabase("db2", 3, "[\"+ssd\"");
+                final CompletableFuture<Result<ReplicaRecord>> missing = service.editDatabase("db4", 3, "");
+                final CompletableFuture<Result<ReplicaRecord>> db3 = service.addDatabase("db3", 3, "");
+
+                assertEquals(3, db1.get(10, TimeUnit.SECONDS).size());
+                assertEquals(3, db3.get(10, TimeUnit.SECONDS).size());
+                assertThrows(ExecutionException.class, () -> malformed.get(10, TimeUnit.SECONDS));
+                final ExecutionException e = assertThrows(ExecutionException.class,
+                                                          () -> missing.get(10, TimeUnit.SECONDS));
+                assertTrue(e.getCause() instanceof IllegalArgumentException);
+                assertTrue(placement.getReplicaRangesForDb("db2").isEmpty());
+            }
+        }
+    }
+
+    /*
+     * Closing the service lets the running request finish, cancels queued ones and rejects new ones
+     */
+    @Test
+    public void closeCancelsPendingRequests() throws Exception {
+        try (ReplicaPlacement placement = ReplicaPlacement.init()) {
+            addNodes(placement, 1, 3);
+            final CountDownLatch started = new CountDownLatch(1);
+            final CountDownLatch release = new CountDownLatch(1);
+            final PlacementService service = new PlacementService(placement, 1000, 1000, 0, NO_LOAD_CHECKS);
+            service.start();
+            final CompletableFuture<Boolean> running = service.submit(p -> {
+                started.countDown();
+                try {
+                    return release.await(10, TimeUnit.SECONDS);
+                } catch (final InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            final CompletableFuture<Result<ReplicaRecord>> queued = service.addDatabase("db1", 3, "");
+
+            final Thread closer = new Thread(service::close);
+            closer.start();
+            final long deadline = System.currentTimeMillis() + 10_000;
+            while (true) {
+                try {
+                    service.addDatabase("db2", 3, "").cancel(false);
+                } catch (final IllegalStateException e) {
+                    break; // Closed
+                }
+                assertTrue(System.currentTimeMillis() < deadline, "Service did not close");
+                Thread.sleep(1);
+            }
+            release.countDown();
+            closer.join(10_000);
+
+            assertTrue(running.get(10, TimeUnit.SECONDS));
+            assertThrows(CancellationException.class, () -> queued.get(10, TimeUnit.SECONDS));
+            assertTrue(placement.getReplicaRangesForDb("db1").isEmpty());
+        }
+    }
+
+    /*
+     * Stages that depend on a failed request do not run on the writer thread
+     */
+    @Test
+    public void failureCompletesOffWriter() throws Exception {
+        try (ReplicaPlacement placement = ReplicaPlacement.init()) {
+            final CountDownLatch release = new CountDownLatch(1);
+            try (PlacementService service = new PlacementService(placement, 1000, 1000, 0, NO_LOAD_CHECKS)) {
+                service.start();
+                final CompletableFuture<Integer> failing = service.submit(p -> {
+                    try {
+                        release.await(10, TimeUnit.SECONDS);
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    throw new IllegalStateException("Request failed");
+                });
+                // Attached while the request is still running, so it runs on whichever thread fails the future
+                final CompletableFuture<String> dependent = failing.handle((v, e) -> Thread.currentThread().getName());
+                release.countDown();
+                assertNotEquals("placement-writer", dependent.get(10, TimeUnit.SECONDS));
+                assertThrows(ExecutionException.class, () -> failing.get(10, TimeUnit.SECONDS));
+            }
+        }
+    }
+
+    private static void addNodes(final ReplicaPlacement placement, final int first, final int last) {
+        for (int i = first; i <= last; i++) {
+            placement.addNodeWithAttributes(i, List.of("az=us-" + i), Collections.emptyList(),
+                                            Collections.emptyList());
+        }
+    }
+}
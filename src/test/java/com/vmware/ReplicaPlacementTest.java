@@ -4,16 +4,27 @@ import com.google.common.collect.Sets;
 import com.vmware.generated.Tables;
 import com.vmware.generated.tables.records.ReplicaRecord;
 import org.jooq.Result;
+import org.jooq.exception.DataAccessException;
 import org.junit.jupiter.api.Test;
 
+import java.io.IOException;
 import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 
@@ -23,32 +34,110 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
 public class ReplicaPlacementTest {
     @Test
     public void testConstraintTables() {
-        final ReplicaPlacement placement = ReplicaPlacement.init();
-
-        placement.addNodeWithAttributes(1, List.of("region=east", "az=us-east-1"), List.of("ram:64GB"),
-                List.of("ssd"));
-        placement.addNodeWithAttributes(2, List.of("region=east", "az=us-east-1"), List.of("ram:64GB"),
-                List.of("ssd"));
-        placement.addNodeWithAttributes(3, List.of("region=east", "az=us-east-1"), List.of("ram:64GB"),
-                List.of("ssd"));
-        placement.addNodeWithAttributes(4, List.of("region=west", "az=us-west-1"), List.of("ram:64GB"),
-                List.of("ssd"));
-        placement.addNodeWithAttributes(5, List.of("region=west", "az=us-west-1"), List.of("ram:64GB"),
-                List.of("ssd"));
-        placement.addNodeWithAttributes(6, List.of("region=west", "az=us-west-1"), List.of("ram:64GB"),
-                List.of("ssd"));
-
-        placement.addDatabase("db1", 3, "[\"+ssd\", \"-region=east\"]");
-        placement.addDatabase("db2", 3, "{'[\"+ssd\",\"+region=west\"]': 2, '[\"+region=east\"]': 1}");
-        placement.placeReplicas();
-        final Result<ReplicaRecord> db1 = placement.getReplicaRangesForDb("db1");
-        final Result<ReplicaRecord> db2 = placement.getReplicaRangesForDb("db2");
-        final Set<Integer> db1Nodes = db1.intoSet(Tables.REPLICA.CURRENT_NODE);
-        assertEquals(db1Nodes, Set.of(4, 5, 6));
-        final List<Integer> db2Nodes = db2.getValues(Tables.REPLICA.CURRENT_NODE);
-        assertTrue(Set.of(4, 5, 6).contains(db2Nodes.get(0)));
-        assertTrue(Set.of(4, 5, 6).contains(db2Nodes.get(1)));
-        assertTrue(Set.of(1, 2, 3).contains(db2Nodes.get(2)));
+        try (ReplicaPlacement placement = ReplicaPlacement.init()) {
+
+            placement.addNodeWithAttributes(1, List.of("region=east", "az=us-east-1"), List.of("ram:64GB"),
+                    List.of("ssd"));
+            placement.addNodeWithAttributes(2, List.of("region=east", "az=us-east-1"), List.of("ram:64GB"),
+                    List.of("ssd"));
+            placement.addNodeWithAttributes(3, List.of("region=east", "az=us-east-1"), List.of("ram:64GB"),
+                    List.of("ssd"));
+            placement.addNodeWithAttributes(4, List.of("region=west", "az=us-west-1"), List.of("ram:64GB"),
+                    List.of("ssd"));
+            placement.addNodeWithAttributes(5, List.of("region=west", "az=us-west-1"), List.of("ram:64GB"),
+                    List.of("ssd"));
+            placement.addNodeWithAttributes(6, List.of("region=west", "az=us-west-1"), List.of("ram:64GB"),
+                    List.of("ssd"));
+
+            placement.addDatabase("db1", 3, "[\"+ssd\", \"-region=east\"]");
+            placement.addDatabase("db2", 3, "{'[\"+ssd\",\"+region=west\"]': 2, '[\"+region=east\"]': 1}");
+            placement.placeReplicas();
+            final Result<ReplicaRecord> db1 = placement.getReplicaRangesForDb("db1");
+            final Result<ReplicaRecord> db2 = placement.getReplicaRangesForDb("db2");
+            final Set<Integer> db1Nodes = db1.intoSet(Tables.REPLICA.CURRENT_NODE);
+            assertEquals(db1Nodes, Set.of(4, 5, 6));
+            final List<Integer> db2Nodes = db2.getValues(Tables.REPLICA.CURRENT_NODE);
+            assertTrue(Set.of(4, 5, 6).contains(db2Nodes.get(0)));
+            assertTrue(Set.of(4, 5, 6).contains(db2Nodes.get(1)));
+            assertTrue(Set.of(1, 2, 3).contains(db2Nodes.get(2)));
+        }
+    }
+
+    /*
+     * Databases with the same replica constraints, in any order, share a single constraint set
+     */
+    @Test
+    public void sharedConstraintSets() {
+        try (ReplicaPlacement placement = ReplicaPlacement.init()) {
+            placement.addDatabase("db1", 3, "[\"+ssd\", \"-region=east\"]");
+            placement.addDatabase("db2", 3, "[\"-region=east\", \"+ssd\"]");
+            placement.addDatabase("db3", 3, "[\"+ssd\"]");
+            final Set<Integer> db1Sets = placement.getReplicaRangesForDb("db1")
+                                                  .intoSet(Tables.REPLICA.CONSTRAINT_SET_ID);
+            final Set<Integer> db2Sets = placement.getReplicaRangesForDb("db2")
+                                                  .intoSet(Tables.REPLICA.CONSTRAINT_SET_ID);
+            final Set<Integer> db3Sets = placement.getReplicaRangesForDb("db3")
+                                                  .intoSet(Tables.REPLICA.CONSTRAINT_SET_ID);
+            assertEquals(1, db1Sets.size());
+            assertFalse(db1Sets.contains(null));
+            assertEquals(db1Sets, db2Sets);
+            assertEquals(1, db3Sets.size());
+            assertNotEquals(db1Sets, db3Sets);
+        }
+    }
+
+    /*
+     * Nodes from a bulk insert that fails are not placement targets
+     */
+    @Test
+    public void failedBulkNodeInsert() {
+        try (ReplicaPlacement placement = ReplicaPlacement.init()) {
+            for (int i = 1; i <= 3; i++) {
+                placement.addNodeWithAttributes(i, List.of("az=us-" + i), Collections.emptyList(),
+                                                Collections.emptyList());
+            }
+            final List<NodeSpec> nodes = List.of(
+                    new NodeSpec(4, List.of("az=us-4"), Collections.emptyList(), Collections.emptyList()),
+                    new NodeSpec(1, List.of("az=us-1"), Collections.emptyList(), Collections.emptyList()));
+            assertThrows(DataAccessException.class, () -> placement.addNodes(nodes));
+            assertThrows(IllegalArgumentException.class, () -> placement.removeNode(4));
+
+            // Four replicas need four nodes, and only three exist
+            placement.addDatabase("db1", 4, "");
+            assertEquals(0, placement.placeReplicas().size());
+            assertEquals(1, placement.getRejectedRanges().size());
+        }
+    }
+
+    /*
+     * Same as testConstraintTables(), but using the bulk ingestion APIs
+     */
+    @Test
+    public void testBulkIngestion() {
+        try (ReplicaPlacement placement = ReplicaPlacement.init()) {
+            final List<NodeSpec> nodes = new ArrayList<>();
+            for (int i = 1; i <= 6; i++) {
+                nodes.add(new NodeSpec(i, List.of(i <= 3 ? "region=east" : "region=west"), List.of("ram:64GB"),
+                                       List.of("ssd")));
+            }
+            placement.addNodes(nodes);
+            placement.addDatabases(List.of(new DatabaseSpec("db1", 3, "[\"+ssd\", \"-region=east\"]"),
+                    new DatabaseSpec("db2", 3, "{'[\"+ssd\",\"+region=west\"]': 2, '[\"+region=east\"]': 1}")));
+
+            assertEquals(6, placement.getReplicaState().size());
+            final Set<Integer> db1Nodes = placement.getReplicaRangesForDb("db1").intoSet(Tables.REPLICA.CURRENT_NODE);
+            assertEquals(Set.of(4, 5, 6), db1Nodes);
+            final List<Integer> db2Nodes = placement.getReplicaRangesForDb("db2")
+                                                    .getValues(Tables.REPLICA.CURRENT_NODE);
+            assertTrue(Set.of(4, 5, 6).contains(db2Nodes.get(0)));
+            assertTrue(Set.of(4, 5, 6).contains(db2Nodes.get(1)));
+            assertTrue(Set.of(1, 2, 3).contains(db2Nodes.get(2)));
+
+            // Regular inserts continue after the identifiers allocated by the bulk APIs
+            placement.addDatabase("db3");
+            placement.placeReplicas();
+            assertEquals(9, placement.getReplicaState().size());
+        }
     }
 
     /*
@@ -58,38 +147,39 @@ public class ReplicaPlacementTest {
      */
     @Test
     public void evenReplicationAcrossAZs() {
-        final ReplicaPlacement placement = ReplicaPlacement.init();
-        // AZ-1
-        placement.addNodeWithAttributes(1, List.of("az=us-1"), Collections.emptyList(), Collections.emptyList());
-        placement.addNodeWithAttributes(2, List.of("az=us-1"), Collections.emptyList(), Collections.emptyList());
+        try (ReplicaPlacement placement = ReplicaPlacement.init()) {
+            // AZ-1
+            placement.addNodeWithAttributes(1, List.of("az=us-1"), Collections.emptyList(), Collections.emptyList());
+            placement.addNodeWithAttributes(2, List.of("az=us-1"), Collections.emptyList(), Collections.emptyList());
 
-        // AZ-2
-        placement.addNodeWithAttributes(3, List.of("az=us-2"), Collections.emptyList(), Collections.emptyList());
-        placement.addNodeWithAttributes(4, List.of("az=us-2"), Collections.emptyList(), Collections.emptyList());
+            // AZ-2
+            placement.addNodeWithAttributes(3, List.of("az=us-2"), Collections.emptyList(), Collections.emptyList());
+            placement.addNodeWithAttributes(4, List.of("az=us-2"), Collections.emptyList(), Collections.emptyList());
 
-        // AZ-3
-        placement.addNodeWithAttributes(5, List.of("az=us-3"), Collections.emptyList(), Collections.emptyList());
-        placement.addNodeWithAttributes(6, List.of("az=us-3"), Collections.emptyList(), Collections.emptyList());
+            // AZ-3
+            placement.addNodeWithAttributes(5, List.of("az=us-3"), Collections.emptyList(), Collections.emptyList());
+            placement.addNodeWithAttributes(6, List.of("az=us-3"), Collections.emptyList(), Collections.emptyList());
 
-        // By default, all shards get 3 replicas each
-        placement.addDatabase("db1");
-        placement.addDatabase("db2");
+            // By default, all shards get 3 replicas each
+            placement.addDatabase("db1");
+            placement.addDatabase("db2");
 
-        placement.placeReplicas();
+            placement.placeReplicas();
 
-        final Result<ReplicaRecord> db1 = placement.getReplicaRangesForDb("db1");
-        final Result<ReplicaRecord> db2 = placement.getReplicaRangesForDb("db2");
-        final Set<Integer> db1Nodes = db1.intoSet(Tables.REPLICA.CURRENT_NODE);
-        final Set<Integer> db2Nodes = db2.intoSet(Tables.REPLICA.CURRENT_NODE);
-        // All nodes must be used
-        assertEquals(Set.of(1, 2, 3, 4, 5, 6), Sets.union(db1Nodes, db2Nodes));
+            final Result<ReplicaRecord> db1 = placement.getReplicaRangesForDb("db1");
+            final Result<ReplicaRecord> db2 = placement.getReplicaRangesForDb("db2");
+            final Set<Integer> db1Nodes = db1.intoSet(Tables.REPLICA.CURRENT_NODE);
+            final Set<Integer> db2Nodes = db2.intoSet(Tables.REPLICA.CURRENT_NODE);
+            // All nodes must be used
+            assertEquals(Set.of(1, 2, 3, 4, 5, 6), Sets.union(db1Nodes, db2Nodes));
 
-        // Each shard should have a different AZ
-        for (final var nodes: List.of(db1Nodes, db2Nodes)) {
-            assertEquals(3, nodes.size());
-            assertFalse(nodes.contains(1) && nodes.contains(2));
-            assertFalse(nodes.contains(3) && nodes.contains(4));
-            assertFalse(nodes.contains(5) && nodes.contains(6));
+            // Each shard should have a different AZ
+            for (final var nodes: List.of(db1Nodes, db2Nodes)) {
+                assertEquals(3, nodes.size());
+                assertFalse(nodes.contains(1) && nodes.contains(2));
+                assertFalse(nodes.contains(3) && nodes.contains(4));
+                assertFalse(nodes.contains(5) && nodes.contains(6));
+            }
         }
     }
 
@@ -100,42 +190,43 @@ public class ReplicaPlacementTest {
      */
     @Test
     public void perReplicaConstraintsToSpecificAvailabilityZones() {
-        final ReplicaPlacement placement = ReplicaPlacement.init();
-        // West-1, AZ-a/b
-        placement.addNodeWithAttributes(1, List.of("region=us-west1", "az=us-west1-a"),
-                Collections.emptyList(), Collections.emptyList());
-        placement.addNodeWithAttributes(2, List.of("region=us-west1", "az=us-west1-b"),
-                Collections.emptyList(), Collections.emptyList());
-
-        // Central-1, AZ-a
-        placement.addNodeWithAttributes(3, List.of("region=us-central1", "az=us-central1-a"),
-                Collections.emptyList(), Collections.emptyList());
-
-        // East-1, AZ-a/b
-        placement.addNodeWithAttributes(5, List.of("region=us-east1", "az=us-east1-a"),
-                Collections.emptyList(), Collections.emptyList());
-        placement.addNodeWithAttributes(6, List.of("region=us-east1", "az=us-east1-b"),
-                Collections.emptyList(), Collections.emptyList());
-
-        placement.addDatabase("db1"); // should be spread across all zones
-        placement.addDatabase("west_app_db", 3,
-                "{'[\"+region=us-west1\"]': 2, '[\"+region=us-central1\"]': 1}");
-        placement.bootstrap();
-        placement.printState();
-        placement.placeReplicas();
-
-        final Result<ReplicaRecord> db1 = placement.getReplicaRangesForDb("db1");
-        final Set<Integer> db1Nodes = db1.intoSet(Tables.REPLICA.CURRENT_NODE);
-        placement.printState();
-        assertTrue(db1Nodes.contains(1) || db1Nodes.contains(2));
-        assertTrue(db1Nodes.contains(3));
-        assertTrue(db1Nodes.contains(5) || db1Nodes.contains(6));
-
-        final Result<ReplicaRecord> westAppDb = placement.getReplicaRangesForDb("west_app_db");
-        final List<Integer> westAppDbNodes = westAppDb.getValues(Tables.REPLICA.CURRENT_NODE);
-
-        assertTrue(List.of(1, 2).containsAll(westAppDbNodes.subList(0, 2)));
-        assertEquals(3, westAppDbNodes.get(2));
+        try (ReplicaPlacement placement = ReplicaPlacement.init()) {
+            // West-1, AZ-a/b
+            placement.addNodeWithAttributes(1, List.of("region=us-west1", "az=us-west1-a"),
+                    Collections.emptyList(), Collections.emptyList());
+            placement.addNodeWithAttributes(2, List.of("region=us-west1", "az=us-west1-b"),
+                    Collections.emptyList(), Collections.emptyList());
+
+            // Central-1, AZ-a
+            placement.addNodeWithAttributes(3, List.of("region=us-central1", "az=us-central1-a"),
+                    Collections.emptyList(), Collections.emptyList());
+
+            // East-1, AZ-a/b
+            placement.addNodeWithAttributes(5, List.of("region=us-east1", "az=us-east1-a"),
+                    Collections.emptyList(), Collections.emptyList());
+            placement.addNodeWithAttributes(6, List.of("region=us-east1", "az=us-east1-b"),
+                    Collections.emptyList(), Collections.emptyList());
+
+            placement.addDatabase("db1"); // should be spread across all zones
+            placement.addDatabase("west_app_db", 3,
+                    "{'[\"+region=us-west1\"]': 2, '[\"+region=us-central1\"]': 1}");
+            placement.bootstrap();
+            placement.printState();
+            placement.placeReplicas();
+
+            final Result<ReplicaRecord> db1 = placement.getReplicaRangesForDb("db1");
+            final Set<Integer> db1Nodes = db1.intoSet(Tables.REPLICA.CURRENT_NODE);
+            placement.printState();
+            assertTrue(db1Nodes.contains(1) || db1Nodes.contains(2));
+            assertTrue(db1Nodes.contains(3));
+            assertTrue(db1Nodes.contains(5) || db1Nodes.contains(6));
+
+            final Result<ReplicaRecord> westAppDb = placement.getReplicaRangesForDb("west_app_db");
+            final List<Integer> westAppDbNodes = westAppDb.getValues(Tables.REPLICA.CURRENT_NODE);
+
+            assertTrue(List.of(1, 2).containsAll(westAppDbNodes.subList(0, 2)));
+            assertEquals(3, westAppDbNodes.get(2));
+        }
     }
 
     /*
@@ -145,36 +236,37 @@ public class ReplicaPlacementTest {
      */
     @Test
     public void multipleApplicationsWritingToDifferentDatabases() {
-        final ReplicaPlacement placement = ReplicaPlacement.init();
-
-        // US-1
-        placement.addNodeWithAttributes(1, List.of("az=us-1"),
-                Collections.emptyList(), Collections.emptyList());
-        placement.addNodeWithAttributes(2, List.of("az=us-1"),
-                Collections.emptyList(), Collections.emptyList());
-        placement.addNodeWithAttributes(3, List.of("az=us-1"),
-                Collections.emptyList(), Collections.emptyList());
-
-        // US-2
-        placement.addNodeWithAttributes(4, List.of("az=us-2"),
-                Collections.emptyList(), Collections.emptyList());
-        placement.addNodeWithAttributes(5, List.of("az=us-2"),
-                Collections.emptyList(), Collections.emptyList());
-        placement.addNodeWithAttributes(6, List.of("az=us-2"),
-                Collections.emptyList(), Collections.emptyList());
-        placement.bootstrap();
-
-        placement.addDatabase("app1_db", 5, ""); // should be spread across all zones
-        placement.addDatabase("app2_db", 3, "[\"+az=us-2\"]"); // should be confined to zone 2
-
-        placement.placeReplicas();
-        final Set<Integer> app1DbNodes = placement.getReplicaRangesForDb("app1_db")
-                .intoSet(Tables.REPLICA.CURRENT_NODE);
-        assertTrue(Sets.intersection(Set.of(1, 2, 3), app1DbNodes).size() > 1);
-        assertTrue(Sets.intersection(Set.of(4, 5, 6), app1DbNodes).size() > 1);
-        final Set<Integer> app2DbNodes = placement.getReplicaRangesForDb("app2_db")
-                .intoSet(Tables.REPLICA.CURRENT_NODE);
-        assertEquals(Set.of(4, 5, 6), app2DbNodes);
+        try (ReplicaPlacement placement = ReplicaPlacement.init()) {
+
+            // US-1
+            placement.addNodeWithAttributes(1, List.of("az=us-1"),
+                    Collections.emptyList(), Collections.emptyList());
+            placement.addNodeWithAttributes(2, List.of("az=us-1"),
+                    Collections.emptyList(), Collections.emptyList());
+            placement.addNodeWithAttributes(3, List.of("az=us-1"),
+                    Collections.emptyList(), Collections.emptyList());
+
+            // US-2
+            placement.addNodeWithAttributes(4, List.of("az=us-2"),
+                    Collections.emptyList(), Collections.emptyList());
+            placement.addNodeWithAttributes(5, List.of("az=us-2"),
+                    Collections.emptyList(), Collections.emptyList());
+            placement.addNodeWithAttributes(6, List.of("az=us-2"),
+                    Collections.emptyList(), Collections.emptyList());
+            placement.bootstrap();
+
+            placement.addDatabase("app1_db", 5, ""); // should be spread across all zones
+            placement.addDatabase("app2_db", 3, "[\"+az=us-2\"]"); // should be confined to zone 2
+
+            placement.placeReplicas();
+            final Set<Integer> app1DbNodes = placement.getReplicaRangesForDb("app1_db")
+                    .intoSet(Tables.REPLICA.CURRENT_NODE);
+            assertTrue(Sets.intersection(Set.of(1, 2, 3), app1DbNodes).size() > 1);
+            assertTrue(Sets.intersection(Set.of(4, 5, 6), app1DbNodes).size() > 1);
+            final Set<Integer> app2DbNodes = placement.getReplicaRangesForDb("app2_db")
+                    .intoSet(Tables.REPLICA.CURRENT_NODE);
+            assertEquals(Set.of(4, 5, 6), app2DbNodes);
+        }
     }
 
     /*
@@ -184,29 +276,30 @@ public class ReplicaPlacementTest {
      */
     @Test
     public void stricterReplicationForATableAndItsSecondaryIndexes() {
-        final ReplicaPlacement placement = ReplicaPlacement.init();
-        placement.addNodeWithAttributes(1, Collections.emptyList(),
-                Collections.emptyList(), List.of("ssd"));
-        placement.addNodeWithAttributes(2, Collections.emptyList(),
-                Collections.emptyList(), List.of("ssd"));
-        placement.addNodeWithAttributes(3, Collections.emptyList(),
-                Collections.emptyList(), List.of("ssd"));
-        placement.addNodeWithAttributes(4, Collections.emptyList(),
-                Collections.emptyList(), List.of("ssd"));
-        placement.addNodeWithAttributes(5, Collections.emptyList(),
-                Collections.emptyList(), List.of("ssd"));
-        placement.addNodeWithAttributes(6, Collections.emptyList(),
-                Collections.emptyList(), List.of("hdd"));
-        placement.addNodeWithAttributes(7, Collections.emptyList(),
-                Collections.emptyList(), List.of("hdd"));
-        placement.bootstrap();
-
-        // TODO: The actual example assigns constraints to only one table
-        //       within this database. Update the schema to be able to do so.
-        placement.addDatabase("db", 5, "[\"+ssd\"]"); // should be spread across all zones
-        placement.placeReplicas();
-        final Set<Integer> dbNodes = placement.getReplicaRangesForDb("db").intoSet(Tables.REPLICA.CURRENT_NODE);
-        assertEquals(Set.of(1, 2, 3, 4, 5), dbNodes);
+        try (ReplicaPlacement placement = ReplicaPlacement.init()) {
+            placement.addNodeWithAttributes(1, Collections.emptyList(),
+                    Collections.emptyList(), List.of("ssd"));
+            placement.addNodeWithAttributes(2, Collections.emptyList(),
+                    Collections.emptyList(), List.of("ssd"));
+            placement.addNodeWithAttributes(3, Collections.emptyList(),
+                    Collections.emptyList(), List.of("ssd"));
+            placement.addNodeWithAttributes(4, Collections.emptyList(),
+                    Collections.emptyList(), List.of("ssd"));
+            placement.addNodeWithAttributes(5, Collections.emptyList(),
+                    Collections.emptyList(), List.of("ssd"));
+            placement.addNodeWithAttributes(6, Collections.emptyList(),
+                    Collections.emptyList(), List.of("hdd"));
+            placement.addNodeWithAttributes(7, Collections.emptyList(),
+                    Collections.emptyList(), List.of("hdd"));
+            placement.bootstrap();
+
+            // TODO: The actual example assigns constraints to only one table
+            //       within this database. Update the schema to be able to do so.
+            placement.addDatabase("db", 5, "[\"+ssd\"]"); // should be spread across all zones
+            placement.placeReplicas();
+            final Set<Integer> dbNodes = placement.getReplicaRangesForDb("db").intoSet(Tables.REPLICA.CURRENT_NODE);
+            assertEquals(Set.of(1, 2, 3, 4, 5), dbNodes);
+        }
     }
 
     /*
@@ -216,16 +309,17 @@ public class ReplicaPlacementTest {
      */
     @Test
     public void tweakingTheReplicationOfSystemRanges() {
-        final ReplicaPlacement placement = ReplicaPlacement.init();
-        for (int i = 1; i <= 7; i++) {
-            placement.addNodeWithAttributes(i, List.of("az=us-" + i),
-                    Collections.emptyList(), Collections.emptyList());
+        try (ReplicaPlacement placement = ReplicaPlacement.init()) {
+            for (int i = 1; i <= 7; i++) {
+                placement.addNodeWithAttributes(i, List.of("az=us-" + i),
+                        Collections.emptyList(), Collections.emptyList());
+            }
+            placement.bootstrap();
+            placement.editDatabase("meta", 7, ""); // should be spread across all zones
+            placement.placeReplicas();
+            final Set<Integer> dbNodes = placement.getReplicaRangesForDb("meta").intoSet(Tables.REPLICA.CURRENT_NODE);
+            assertEquals(7, dbNodes.size());
         }
-        placement.bootstrap();
-        placement.editDatabase("meta", 7, ""); // should be spread across all zones
-        placement.placeReplicas();
-        final Set<Integer> dbNodes = placement.getReplicaRangesForDb("meta").intoSet(Tables.REPLICA.CURRENT_NODE);
-        assertEquals(7, dbNodes.size());
     }
 
 
@@ -234,52 +328,723 @@ public class ReplicaPlacementTest {
      */
     @Test
     public void incrementalPlacement() {
-        final ReplicaPlacement placement = ReplicaPlacement.init();
-        for (int i = 1; i <= 7; i++) {
-            placement.addNodeWithAttributes(i, List.of("az=us-" + i),
+        try (ReplicaPlacement placement = ReplicaPlacement.init()) {
+            for (int i = 1; i <= 7; i++) {
+                placement.addNodeWithAttributes(i, List.of("az=us-" + i),
+                        Collections.emptyList(), Collections.emptyList());
+            }
+            placement.bootstrap();
+            // Place DB1 and record allocations
+            placement.addDatabase("db1", 5, ""); // should be spread across all zones
+            placement.placeReplicas();
+            final Result<ReplicaRecord> replicaStateAfterDb1 = placement.getReplicaState();
+
+            // Place DB2 and record allocations
+            placement.addDatabase("db2", 5, ""); // should be spread across all zones
+            placement.placeReplicas();
+            final Result<ReplicaRecord> replicaStateAfterDb2 = placement.getReplicaState();
+            final Map<Integer, Result<ReplicaRecord>> resultMapDb1 = replicaStateAfterDb1
+                    .intoGroups(Tables.REPLICA.RANGE_ID);
+            final Map<Integer, Result<ReplicaRecord>> resultMapDb2 = replicaStateAfterDb2
+                    .intoGroups(Tables.REPLICA.RANGE_ID);
+            // The allocations for db1 should not have changed
+            assertEquals(resultMapDb1.get(1), resultMapDb2.get(1));
+        }
+    }
+
+    /*
+     * Windowed placement should eventually place every pending range, leaving earlier placements untouched
+     */
+    @Test
+    public void windowedPlacement() {
+        try (ReplicaPlacement placement = ReplicaPlacement.init()) {
+            for (int i = 1; i <= 7; i++) {
+                placement.addNodeWithAttributes(i, List.of("az=us-" + i),
+                        Collections.emptyList(), Collections.emptyList());
+            }
+            placement.enableWindowedPlacement(2, 1000);
+            placement.bootstrap();
+            for (int i = 1; i <= 5; i++) {
+                placement.addDatabase("db" + i, 3, "");
+            }
+            placement.prioritizeDatabase("db5", 1);
+            assertEquals(15, placement.placeReplicas().size());
+            placement.getReplicaState().forEach(r -> assertEquals("running", r.getStatus()));
+        }
+    }
+
+    /*
+     * Buffered qps samples are smoothed, and only reach the replica table and node loads when flushed
+     */
+    @Test
+    public void qpsTelemetry() {
+        try (ReplicaPlacement placement = ReplicaPlacement.init()) {
+            for (int i = 1; i <= 3; i++) {
+                placement.addNodeWithAttributes(i, List.of("az=us-" + i),
+                        Collections.emptyList(), Collections.emptyList());
+            }
+            placement.addDatabase("db1", 3, "");
+            placement.placeReplicas();
+            final int rangeId = placement.getReplicaRangesForDb("db1").get(0).getRangeId();
+
+            placement.recordRangeQps(rangeId, 100);
+            placement.recordRangeQps(rangeId, 200);
+            placement.getReplicaRangesForDb("db1").forEach(r -> assertEquals(10, r.getQps()));
+            assertEquals(3, placement.flushQpsTelemetry());
+            placement.getReplicaRangesForDb("db1").forEach(r -> assertEquals(130, r.getQps()));
+            placement.qpsPerNode().forEach(r -> assertEquals(130, r.get(1, BigDecimal.class).intValue()));
+            assertEquals(0, placement.flushQpsTelemetry());
+        }
+    }
+
+    /*
+     * Placement records its phases and counters in metrics, whose snapshots do not change afterwards, and
+     * nothing is recorded while metrics are disabled
+     */
+    @Test
+    public void placementMetrics() {
+        try (ReplicaPlacement placement = ReplicaPlacement.init()) {
+            for (int i = 1; i <= 3; i++) {
+                placement.addNodeWithAttributes(i, List.of("az=us-" + i),
+                        Collections.emptyList(), Collections.emptyList());
+            }
+            placement.addDatabase("db1", 3, "");
+            final PlacementMetrics.Snapshot before = placement.getMetrics();
+            placement.placeReplicas();
+            final PlacementMetrics.Snapshot after = placement.getMetrics();
+            assertEquals(0, before.getSolves());
+            assertEquals(0, before.getPhase(PlacementMetrics.Phase.SOLVE).getCount());
+            assertEquals(1, after.getSolves());
+            assertEquals(1, after.getRangesSolved());
+            assertEquals(3, after.getReplicasSolved());
+            assertEquals(1, after.getPhase(PlacementMetrics.Phase.SOLVE).getCount());
+            assertEquals(1, after.getPhase(PlacementMetrics.Phase.WRITE_BACK).getCount());
+            assertEquals(4, after.getRowsWritten() - before.getRowsWritten()); // 3 replicas and 1 pending range
+
+            placement.setMetricsEnabled(false);
+            placement.addDatabase("db2", 3, "");
+            assertEquals(3, placement.placeReplicas().size());
+            final PlacementMetrics.Snapshot disabled = placement.getMetrics();
+            assertEquals(1, disabled.getSolves());
+            assertEquals(3, disabled.getReplicasSolved());
+            assertEquals(after.getRowsWritten(), disabled.getRowsWritten());
+            assertEquals(1, disabled.getPhase(PlacementMetrics.Phase.SOLVE).getCount());
+            assertEquals(1, disabled.getPhase(PlacementMetrics.Phase.WRITE_BACK).getCount());
+        }
+    }
+
+    /*
+     * Greedy placement spreads unconstrained ranges across regions and still solves constrained ones
+     */
+    @Test
+    public void greedyPlacement() {
+        try (ReplicaPlacement placement = ReplicaPlacement.init()) {
+            for (int i = 0; i < 9; i++) {
+                placement.addNodeWithAttributes(i, List.of("region=r" + (i % 3), "az=r" + (i % 3) + "-" + (i / 3)),
+                        Collections.emptyList(), Collections.emptyList());
+            }
+            placement.enableGreedyPlacement();
+            for (int i = 0; i < 3; i++) {
+                placement.addDatabase("db" + i, 3, "");
+            }
+            placement.addDatabase("r1_db", 3, "[\"+region=r1\"]");
+            assertEquals(12, placement.placeReplicas().size());
+            final Set<Integer> usedNodes = new HashSet<>();
+            for (int i = 0; i < 3; i++) {
+                final Set<Integer> regions = new HashSet<>();
+                placement.getReplicaRangesForDb("db" + i).forEach(r -> regions.add(r.getCurrentNode() % 3));
+                assertEquals(Set.of(0, 1, 2), regions);
+                usedNodes.addAll(placement.getReplicaRangesForDb("db" + i).intoSet(Tables.REPLICA.CURRENT_NODE));
+            }
+            assertEquals(9, usedNodes.size()); // Least loaded nodes first
+            assertEquals(Set.of(1, 4, 7), placement.getReplicaRangesForDb("r1_db")
+                                                   .intoSet(Tables.REPLICA.CURRENT_NODE));
+        }
+    }
+
+    /*
+     * Greedy placement spreads leaseholders across nodes, and leaves ranges with lease preferences to the solver
+     */
+    @Test
+    public void greedyPlacementLeases() {
+        try (ReplicaPlacement placement = ReplicaPlacement.init()) {
+            for (int i = 1; i <= 3; i++) {
+                placement.addNodeWithAttributes(i, List.of(i == 3 ? "region=west" : "region=east", "az=us-" + i),
+                        Collections.emptyList(), Collections.emptyList());
+            }
+            placement.enableGreedyPlacement();
+            for (int i = 0; i < 3; i++) {
+                placement.addDatabase("db" + i, 3, "");
+            }
+            placement.placeReplicas();
+            assertEquals(0, placement.getMetrics().getPhase(PlacementMetrics.Phase.SOLVE).getCount());
+            final Set<Integer> leaseholderNodes = new HashSet<>();
+            for (int i = 0; i < 3; i++) {
+                placement.getReplicaRangesForDb("db" + i).stream().filter(ReplicaRecord::getLeaseholder)
+                         .forEach(r -> leaseholderNodes.add(r.getCurrentNode()));
+            }
+            assertEquals(Set.of(1, 2, 3), leaseholderNodes);
+
+            placement.addDatabase("west_db", 3, "", "[[\"+region=west\"]]");
+            placement.placeReplicas();
+            assertEquals(1, placement.getMetrics().getPhase(PlacementMetrics.Phase.SOLVE).getCount());
+        }
+    }
+
+    /*
+     * Ranges placed greedily count against node capacity when the constrained ranges are solved
+     */
+    @Test
+    public void greedyPlacementCapacity() {
+        try (ReplicaPlacement placement = ReplicaPlacement.init()) {
+            for (int i = 1; i <= 6; i++) {
+                final List<String> labels = i == 1 || i >= 4 ? List.of("az=us-" + i, "tier=fast")
+                                                             : List.of("az=us-" + i);
+                placement.addNodeWithAttributes(i, labels, Collections.emptyList(), Collections.emptyList());
+            }
+            placement.setNodeCapacity(1, LoadDimension.QPS, 150);
+            placement.enableGreedyPlacement();
+            placement.addDatabase("db1", 3, "");
+            placement.addDatabase("fast_db", 3, "[\"+tier=fast\"]");
+            placement.updateQpsForDb("db1", 100);
+            placement.updateQpsForDb("fast_db", 100);
+            assertEquals(6, placement.placeReplicas().size());
+            assertEquals(Set.of(1, 2, 3), placement.getReplicaRangesForDb("db1").intoSet(Tables.REPLICA.CURRENT_NODE));
+            assertEquals(Set.of(4, 5, 6), placement.getReplicaRangesForDb("fast_db")
+                                                    .intoSet(Tables.REPLICA.CURRENT_NODE));
+            assertFalse(placement.hasOverloadedNodes(1000));
+        }
+    }
+
+    /*
+     * Hierarchical placement picks a distinct AZ for every replica, and nodes within AZs that satisfy constraints
+     */
+    @Test
+    public void hierarchicalPlacement() {
+        try (ReplicaPlacement placement = ReplicaPlacement.init()) {
+            for (int i = 0; i < 18; i++) {
+                placement.addNodeWithAttributes(i, List.of("region=r" + (i % 3), "az=r" + (i % 3) + "-" + (i % 6)),
+                        Collections.emptyList(), Collections.emptyList());
+            }
+            placement.enableHierarchicalPlacement();
+            placement.addDatabase("db1", 5, "");
+            placement.addDatabase("r1_db", 3, "[\"+region=r1\"]");
+            assertEquals(8, placement.placeReplicas().size());
+            final Set<Integer> azs = new HashSet<>();
+            placement.getReplicaRangesForDb("db1").forEach(r -> azs.add(r.getCurrentNode() % 6));
+            assertEquals(5, azs.size());
+            placement.getReplicaRangesForDb("r1_db").forEach(r -> assertEquals(1, r.getCurrentNode() % 3));
+        }
+    }
+
+    /*
+     * A solve that fails writes none of its assignments back, and leaves every replica pending
+     */
+    @Test
+    public void failedSolveWritesNothing() {
+        try (ReplicaPlacement placement = ReplicaPlacement.init()) {
+            for (int i = 1; i <= 3; i++) {
+                placement.addNodeWithAttributes(i, List.of("az=us-" + i), Collections.emptyList(),
+                                                Collections.emptyList());
+                placement.setNodeCapacity(i, LoadDimension.QPS, 150);
+            }
+            placement.addDatabase("db1", 3, "");
+            placement.addDatabase("db2", 3, "");
+            // Either database fits on its own, but not both of them
+            placement.updateQpsForDb("db1", 100);
+            placement.updateQpsForDb("db2", 100);
+            assertThrows(RuntimeException.class, placement::placeReplicas);
+
+            placement.getReplicaState().forEach(r -> {
+                assertNull(r.getCurrentNode());
+                assertEquals("pending", r.getStatus());
+            });
+            assertFalse(placement.hasOverloadedNodes(100));
+        }
+    }
+
+    /*
+     * Ranges restricted to disjoint sets of nodes are solved as separate partitions by the solver pool, whose
+     * threads stop once the placement is closed
+     */
+    @Test
+    public void pooledPartitions() throws InterruptedException {
+        final Set<Thread> threadsBefore = Thread.getAllStackTraces().keySet();
+        final List<Thread> solverThreads;
+        try (ReplicaPlacement placement = ReplicaPlacement.init(new SolverOptions.Builder()
+                                                                        .setMaxParallelSolves(2).build())) {
+            addRegionNodes(placement);
+            placement.addDatabase("east_db", 3, "[\"+region=east\"]");
+            placement.addDatabase("west_db", 3, "[\"+region=west\"]");
+            assertEquals(6, placement.placeReplicas().size());
+            assertEquals(Set.of(1, 2, 3), placement.getReplicaRangesForDb("east_db")
+                                                   .intoSet(Tables.REPLICA.CURRENT_NODE));
+            assertEquals(Set.of(4, 5, 6), placement.getReplicaRangesForDb("west_db")
+                                                   .intoSet(Tables.REPLICA.CURRENT_NODE));
+            // One solver thread per partition
+            solverThreads = Thread.getAllStackTraces().keySet().stream()
+                    .filter(t -> !threadsBefore.contains(t) && t.getName().startsWith("placement-solver-"))
+                    .collect(Collectors.toList());
+            assertEquals(2, solverThreads.size());
+        }
+        for (final Thread thread: solverThreads) {
+            thread.join(10_000);
+            assertFalse(thread.isAlive());
+        }
+    }
+
+    /*
+     * If one partition cannot be solved, no replica is placed, and the assignments found for the other
+     * partitions are kept as hints
+     */
+    @Test
+    public void failedPartition() {
+        try (ReplicaPlacement placement = ReplicaPlacement.init(new SolverOptions.Builder()
+                                                                        .setMaxParallelSolves(2).build())) {
+            addRegionNodes(placement);
+            for (int i = 4; i <= 6; i++) {
+                placement.setNodeCapacity(i, LoadDimension.QPS, 150);
+            }
+            placement.addDatabase("east_db", 3, "[\"+region=east\"]");
+            placement.addDatabase("west_db1", 3, "[\"+region=west\"]");
+            placement.addDatabase("west_db2", 3, "[\"+region=west\"]");
+            // Either west range fits on its own, but not both of them
+            placement.updateQpsForDb("west_db1", 100);
+            placement.updateQpsForDb("west_db2", 100);
+            assertThrows(SolverPool.PartialSolutionException.class, placement::placeReplicas);
+
+            for (final String db: List.of("east_db", "west_db1", "west_db2")) {
+                placement.getReplicaRangesForDb(db).forEach(r -> {
+                    assertNull(r.getCurrentNode());
+                    assertEquals("pending", r.getStatus());
+                });
+            }
+            assertEquals(Set.of(1, 2, 3), placement.getReplicaRangesForDb("east_db")
+                                                   .intoSet(Tables.REPLICA.HINT_NODE));
+            assertEquals(Set.of(-1), placement.getReplicaRangesForDb("west_db1").intoSet(Tables.REPLICA.HINT_NODE));
+        }
+    }
+
+    private static void addRegionNodes(final ReplicaPlacement placement) {
+        for (int i = 1; i <= 6; i++) {
+            placement.addNodeWithAttributes(i, List.of(i <= 3 ? "region=east" : "region=west", "az=us-" + i),
                     Collections.emptyList(), Collections.emptyList());
         }
-        placement.bootstrap();
-        // Place DB1 and record allocations
-        placement.addDatabase("db1", 5, ""); // should be spread across all zones
-        placement.placeReplicas();
-        final Result<ReplicaRecord> replicaStateAfterDb1 = placement.getReplicaState();
+    }
+
+    /*
+     * A range is pending from when it gains a replica to place until its last pending replica is placed,
+     * even while its other replicas are running
+     */
+    @Test
+    public void pendingRangeTracking() {
+        try (ReplicaPlacement placement = ReplicaPlacement.init()) {
+            for (int i = 1; i <= 3; i++) {
+                placement.addNodeWithAttributes(i, List.of("az=us-" + i), Collections.emptyList(),
+                                                Collections.emptyList());
+            }
+            placement.addDatabase("db1", 3, "");
+            final int rangeId = placement.getReplicaRangesForDb("db1").get(0).getRangeId();
+            assertEquals(Set.of(rangeId), placement.getPendingRanges().intoSet(Tables.PENDING_RANGE.RANGE_ID));
+            placement.placeReplicas();
+            assertTrue(placement.getPendingRanges().isEmpty());
+
+            // The fourth replica has no node to go to, so the range stays pending
+            placement.editDatabase("db1", 4, "");
+            placement.placeReplicas();
+            assertEquals(3, placement.getReplicaRangesForDb("db1").stream()
+                                     .filter(r -> r.getCurrentNode() != null).count());
+            assertEquals(Set.of(rangeId), placement.getPendingRanges().intoSet(Tables.PENDING_RANGE.RANGE_ID));
 
-        // Place DB2 and record allocations
-        placement.addDatabase("db2", 5, ""); // should be spread across all zones
-        placement.placeReplicas();
-        final Result<ReplicaRecord> replicaStateAfterDb2 = placement.getReplicaState();
-        final Map<Integer, Result<ReplicaRecord>> resultMapDb1 = replicaStateAfterDb1
-                .intoGroups(Tables.REPLICA.RANGE_ID);
-        final Map<Integer, Result<ReplicaRecord>> resultMapDb2 = replicaStateAfterDb2
-                .intoGroups(Tables.REPLICA.RANGE_ID);
-        // The allocations for db1 should not have changed
-        assertEquals(resultMapDb1.get(1), resultMapDb2.get(1));
+            placement.addNodeWithAttributes(4, List.of("az=us-4"), Collections.emptyList(), Collections.emptyList());
+            placement.placeReplicas();
+            assertEquals(Set.of(1, 2, 3, 4), placement.getReplicaRangesForDb("db1")
+                                                      .intoSet(Tables.REPLICA.CURRENT_NODE));
+            assertTrue(placement.getPendingRanges().isEmpty());
+        }
+    }
+
+    /*
+     * Ranges whose constraints cannot be met are rejected without holding up other ranges, and are placed
+     * once enough matching nodes exist
+     */
+    @Test
+    public void rejectInfeasibleRanges() {
+        try (ReplicaPlacement placement = ReplicaPlacement.init()) {
+            for (int i = 1; i <= 3; i++) {
+                placement.addNodeWithAttributes(i, List.of("region=east", "az=us-" + i),
+                        Collections.emptyList(), Collections.emptyList());
+            }
+            placement.addDatabase("db1", 3, "");
+            placement.addDatabase("west_db", 3, "[\"+region=west\"]");
+            assertEquals(3, placement.placeReplicas().size());
+            assertEquals(1, placement.getRejectedRanges().size());
+            placement.getReplicaRangesForDb("west_db").forEach(r -> assertNull(r.getCurrentNode()));
+
+            // Not enough nodes for all_different yet
+            placement.addNodeWithAttributes(4, List.of("region=west", "az=us-4"),
+                    Collections.emptyList(), Collections.emptyList());
+            assertEquals(0, placement.placeReplicas().size());
+            assertEquals(1, placement.getRejectedRanges().size());
+
+            placement.addNodeWithAttributes(5, List.of("region=west", "az=us-5"),
+                    Collections.emptyList(), Collections.emptyList());
+            placement.addNodeWithAttributes(6, List.of("region=west", "az=us-6"),
+                    Collections.emptyList(), Collections.emptyList());
+            assertEquals(3, placement.placeReplicas().size());
+            assertEquals(0, placement.getRejectedRanges().size());
+            assertEquals(Set.of(4, 5, 6), placement.getReplicaRangesForDb("west_db")
+                                                   .intoSet(Tables.REPLICA.CURRENT_NODE));
+        }
+    }
+
+    /*
+     * Editing a database can shrink replication, and moves only the replicas that violate the new constraints
+     */
+    @Test
+    public void editDatabaseReplication() {
+        try (ReplicaPlacement placement = ReplicaPlacement.init()) {
+            for (int i = 1; i <= 6; i++) {
+                placement.addNodeWithAttributes(i, List.of("az=us-" + i), Collections.emptyList(),
+                        List.of(i <= 3 ? "ssd" : "hdd"));
+            }
+            placement.addDatabase("db1", 3, "[\"+hdd\"]");
+            placement.placeReplicas();
+            placement.editDatabase("db1", 5, "");
+            assertEquals(5, placement.placeReplicas().size());
+            assertEquals(5, placement.getReplicaRangesForDb("db1").intoSet(Tables.REPLICA.CURRENT_NODE).size());
+
+            placement.editDatabase("db1", 3, "[\"+ssd\"]");
+            placement.placeReplicas();
+            final Result<ReplicaRecord> replicas = placement.getReplicaRangesForDb("db1");
+            assertEquals(3, replicas.size());
+            assertEquals(Set.of(1, 2, 3), replicas.intoSet(Tables.REPLICA.CURRENT_NODE));
+            replicas.forEach(r -> assertEquals("running", r.getStatus()));
+        }
+    }
+
+    /*
+     * Replicas on a node that leaves the cluster are placed again, while the rest of their range stays put
+     */
+    @Test
+    public void removeNode() {
+        try (ReplicaPlacement placement = ReplicaPlacement.init()) {
+            for (int i = 1; i <= 4; i++) {
+                placement.addNodeWithAttributes(i, List.of("az=us-" + i),
+                        Collections.emptyList(), Collections.emptyList());
+            }
+            placement.addDatabase("db1", 3, "");
+            placement.placeReplicas();
+            final Set<Integer> nodes = placement.getReplicaRangesForDb("db1").intoSet(Tables.REPLICA.CURRENT_NODE);
+            final int removed = nodes.iterator().next();
+
+            placement.removeNode(removed);
+            placement.getReplicaRangesForDb("db1").forEach(r -> assertEquals(r.getCurrentNode() == null,
+                                                                             r.getStatus().equals("pending")));
+            placement.placeReplicas();
+            final Set<Integer> newNodes = placement.getReplicaRangesForDb("db1").intoSet(Tables.REPLICA.CURRENT_NODE);
+            assertEquals(3, newNodes.size());
+            assertFalse(newNodes.contains(removed));
+            assertTrue(newNodes.containsAll(Sets.difference(nodes, Set.of(removed))));
+        }
+    }
+
+    /*
+     * Leaseholders follow the lease preferences of their database, and move between replicas without moving data
+     */
+    @Test
+    public void leasePreferences() {
+        try (ReplicaPlacement placement = ReplicaPlacement.init()) {
+            for (int i = 1; i <= 6; i++) {
+                placement.addNodeWithAttributes(i, List.of(i <= 3 ? "region=east" : "region=west", "az=us-" + i),
+                        Collections.emptyList(), Collections.emptyList());
+            }
+            placement.addDatabase("db1", 3, "{'[\"+region=west\"]': 2, '[\"+region=east\"]': 1}",
+                                  "[[\"+region=east\"], [\"+region=west\"]]");
+            placement.placeReplicas();
+            placement.rebalanceLeases();
+            final Result<ReplicaRecord> replicas = placement.getReplicaRangesForDb("db1");
+            final List<ReplicaRecord> leaseholders = replicas.stream().filter(ReplicaRecord::getLeaseholder)
+                                                             .collect(Collectors.toList());
+            assertEquals(1, leaseholders.size());
+            assertTrue(leaseholders.get(0).getCurrentNode() <= 3);
+
+            placement.setLeasePreferences("db1", "[[\"+region=west\"]]");
+            final Result<ReplicaRecord> afterTransfer = placement.getReplicaRangesForDb("db1");
+            assertEquals(replicas.intoSet(Tables.REPLICA.CURRENT_NODE),
+                         afterTransfer.intoSet(Tables.REPLICA.CURRENT_NODE));
+            final List<ReplicaRecord> newLeaseholders = afterTransfer.stream().filter(ReplicaRecord::getLeaseholder)
+                                                                     .collect(Collectors.toList());
+            assertEquals(1, newLeaseholders.size());
+            assertTrue(newLeaseholders.get(0).getCurrentNode() > 3);
+        }
+    }
+
+    /*
+     * Replicas are only placed on nodes with enough capacity left, and are migrated off nodes over capacity
+     */
+    @Test
+    public void capacityConstraints() {
+        try (ReplicaPlacement placement = ReplicaPlacement.init()) {
+            for (int i = 1; i <= 4; i++) {
+                placement.addNodeWithAttributes(i, List.of("az=us-" + i),
+                        Collections.emptyList(), Collections.emptyList());
+            }
+            placement.setNodeCapacity(4, LoadDimension.DISK_MB, 500);
+            placement.addDatabase("db1", 3, "");
+            placement.updateLoadForDb("db1", LoadDimension.DISK_MB, 1000);
+            placement.placeReplicas();
+            assertEquals(Set.of(1, 2, 3), placement.getReplicaRangesForDb("db1").intoSet(Tables.REPLICA.CURRENT_NODE));
+            assertFalse(placement.hasOverloadedNodes(1000));
+
+            placement.setNodeCapacity(1, LoadDimension.DISK_MB, 500);
+            assertTrue(placement.hasOverloadedNodes(1000));
+            placement.addNodeWithAttributes(5, List.of("az=us-5"), Collections.emptyList(), Collections.emptyList());
+            placement.migrateReplicasOnOverloadedNodes(1000);
+            assertEquals(Set.of(2, 3, 5), placement.getReplicaRangesForDb("db1").intoSet(Tables.REPLICA.CURRENT_NODE));
+            assertFalse(placement.hasOverloadedNodes(1000));
+        }
+    }
+
+    /*
+     * A hot range is split without moving the replicas it already has, and merging undoes the split
+     */
+    @Test
+    public void splitAndMergeRanges() {
+        try (ReplicaPlacement placement = ReplicaPlacement.init()) {
+            for (int i = 1; i <= 6; i++) {
+                placement.addNodeWithAttributes(i, List.of("az=us-" + i),
+                        Collections.emptyList(), Collections.emptyList());
+            }
+            placement.addDatabase("db1", 3, "");
+            placement.placeReplicas();
+            final Set<Integer> nodesBeforeSplit = placement.getReplicaRangesForDb("db1")
+                                                           .intoSet(Tables.REPLICA.CURRENT_NODE);
+
+            placement.enableLoadBasedSplitting(100);
+            placement.updateQpsForDb("db1", 150);
+            assertEquals(3, placement.placeReplicas().size()); // Only the new range is solved
+            final Map<Integer, Result<ReplicaRecord>> ranges = placement.getReplicaRangesForDb("db1")
+                                                                        .intoGroups(Tables.REPLICA.RANGE_ID);
+            assertEquals(2, ranges.size());
+            final int rangeId = Collections.min(ranges.keySet());
+            final int newRangeId = Collections.max(ranges.keySet());
+            assertEquals(nodesBeforeSplit, ranges.get(rangeId).intoSet(Tables.REPLICA.CURRENT_NODE));
+            placement.getReplicaRangesForDb("db1").forEach(r -> assertEquals(75, r.getQps()));
+
+            placement.mergeRanges(rangeId, newRangeId);
+            final Result<ReplicaRecord> merged = placement.getReplicaRangesForDb("db1");
+            assertEquals(3, merged.size());
+            merged.forEach(r -> assertEquals(150, r.getQps()));
+            assertEquals(nodesBeforeSplit, merged.intoSet(Tables.REPLICA.CURRENT_NODE));
+        }
+    }
+
+    /*
+     * Database qps is spread across the ranges the database was split into, so reporting it again does not
+     * split them further
+     */
+    @Test
+    public void repeatedDatabaseQps() {
+        try (ReplicaPlacement placement = ReplicaPlacement.init()) {
+            for (int i = 1; i <= 6; i++) {
+                placement.addNodeWithAttributes(i, List.of("az=us-" + i),
+                        Collections.emptyList(), Collections.emptyList());
+            }
+            placement.addDatabase("db1", 3, "");
+            placement.placeReplicas();
+            placement.enableLoadBasedSplitting(100);
+
+            placement.updateQpsForDb("db1", 150);
+            placement.placeReplicas();
+            assertEquals(2, placement.getReplicaRangesForDb("db1").intoSet(Tables.REPLICA.RANGE_ID).size());
+            placement.updateQpsForDb("db1", 150);
+            assertEquals(2, placement.getReplicaRangesForDb("db1").intoSet(Tables.REPLICA.RANGE_ID).size());
+            placement.getReplicaRangesForDb("db1").forEach(r -> assertEquals(75, r.getQps()));
+
+            // 150 qps per range splits each of them once
+            placement.updateQpsForDb("db1", 300);
+            assertEquals(4, placement.getReplicaRangesForDb("db1").intoSet(Tables.REPLICA.RANGE_ID).size());
+            placement.getReplicaRangesForDb("db1").forEach(r -> assertEquals(75, r.getQps()));
+        }
+    }
+
+    /*
+     * A restored snapshot has the same replicas, load and constraint sets, and keeps placing new databases
+     */
+    @Test
+    public void snapshotRoundTrip() throws IOException {
+        try (ReplicaPlacement placement = ReplicaPlacement.init()) {
+            for (int i = 1; i <= 4; i++) {
+                placement.addNodeWithAttributes(i, List.of("az=us-" + i), Collections.emptyList(),
+                        List.of(i % 2 == 0 ? "ssd" : "hdd"));
+            }
+            placement.addDatabase("db1", 3, "");
+            placement.addDatabase("ssd_db", 2, "[\"+ssd\"]");
+            placement.placeReplicas();
+            placement.updateQpsForDb("db1", 50);
+
+            final Path file = Files.createTempFile("placement", ".snapshot");
+            try {
+                placement.saveSnapshot(file);
+                try (ReplicaPlacement restored = ReplicaPlacement.fromSnapshot(file)) {
+                    assertEquals(placement.getReplicaState(), restored.getReplicaState());
+                    assertEquals(placement.qpsPerNode(), restored.qpsPerNode());
+
+                    restored.addDatabase("ssd_db2", 2, "[\"+ssd\"]");
+                    assertEquals(2, restored.placeReplicas().size());
+                    assertEquals(Set.of(2, 4), restored.getReplicaRangesForDb("ssd_db2")
+                                                       .intoSet(Tables.REPLICA.CURRENT_NODE));
+                }
+            } finally {
+                Files.delete(file);
+            }
+        }
+    }
+
+    /*
+     * A snapshot cut short, e.g. by a crash while copying it, fails to load with an IOException
+     */
+    @Test
+    public void truncatedSnapshot() throws IOException {
+        try (ReplicaPlacement placement = ReplicaPlacement.init()) {
+            for (int i = 1; i <= 3; i++) {
+                placement.addNodeWithAttributes(i, List.of("az=us-" + i), Collections.emptyList(),
+                                                Collections.emptyList());
+            }
+            placement.addDatabase("db1", 3, "");
+            placement.placeReplicas();
+
+            final Path file = Files.createTempFile("placement", ".snapshot");
+            try {
+                placement.saveSnapshot(file);
+                final byte[] bytes = Files.readAllBytes(file);
+                Files.write(file, Arrays.copyOf(bytes, bytes.length / 2));
+                final IOException e = assertThrows(IOException.class, () -> ReplicaPlacement.fromSnapshot(file));
+                assertTrue(e.getMessage().startsWith("Truncated or corrupt placement snapshot"));
+            } finally {
+                Files.delete(file);
+            }
+        }
+    }
+
+    /*
+     * Migration relieves the most overloaded node first, moving its hottest replicas, at most one replica per
+     * range and at most maxMoves replicas per round
+     */
+    @Test
+    public void migrationMoveBudget() {
+        try (ReplicaPlacement placement = ReplicaPlacement.init()) {
+            placement.addNodeWithAttributes(1, List.of("az=us-1"), Collections.emptyList(), Collections.emptyList());
+            placement.addNodeWithAttributes(2, List.of("az=us-2"), Collections.emptyList(), Collections.emptyList());
+            placement.addDatabase("db1", 2, "");
+            placement.addDatabase("db2", 2, "");
+            placement.placeReplicas(); // Every node holds a replica of both databases
+            placement.addNodeWithAttributes(3, List.of("az=us-3"), Collections.emptyList(), Collections.emptyList());
+            placement.addNodeWithAttributes(4, List.of("az=us-4"), Collections.emptyList(), Collections.emptyList());
+            final ReplicaRecord db1OnNode1 = replicaOn(placement, "db1", 1);
+            final ReplicaRecord db1OnNode2 = replicaOn(placement, "db1", 2);
+            placement.recordReplicaQps(db1OnNode1.getId(), 90);
+            placement.recordReplicaQps(db1OnNode2.getId(), 60);
+            placement.updateQpsForDb("db2", 50);
+            placement.flushQpsTelemetry(); // Node 1 serves 140 qps, node 2 serves 110 qps
+
+            // Only the hottest replica of node 1 moves, and node 2 has to wait for the next round
+            final Map<Integer, Integer> nodesBefore = placement.getReplicaState().intoMap(Tables.REPLICA.ID,
+                                                                                          Tables.REPLICA.CURRENT_NODE);
+            placement.migrateReplicasOnOverloadedNodes(100, 1);
+            assertEquals(Set.of(db1OnNode1.getId()), movedReplicas(placement, nodesBefore));
+            assertTrue(placement.hasOverloadedNodes(100));
+
+            // Both nodes holding a replica of db1 are overloaded, but only one of them may move in a round
+            final int db1MovedTo = placement.getReplicaState().intoMap(Tables.REPLICA.ID,
+                                                                       Tables.REPLICA.CURRENT_NODE)
+                                            .get(db1OnNode1.getId());
+            placement.setNodeCapacity(2, LoadDimension.DISK_MB, 400);
+            placement.setNodeCapacity(db1MovedTo, LoadDimension.DISK_MB, 400);
+            placement.updateRangeLoad(db1OnNode1.getRangeId(), LoadDimension.DISK_MB, 500);
+            final Map<Integer, Integer> nodesBeforeSecondRound = placement.getReplicaState()
+                    .intoMap(Tables.REPLICA.ID, Tables.REPLICA.CURRENT_NODE);
+            placement.migrateReplicasOnOverloadedNodes(100);
+            assertEquals(Set.of(db1OnNode2.getId()), movedReplicas(placement, nodesBeforeSecondRound));
+            assertTrue(placement.hasOverloadedNodes(100));
+        }
+    }
+
+    /*
+     * A replica only moves if some other node has room for it in every dimension, not just in the one its
+     * current node is overloaded in
+     */
+    @Test
+    public void migrationNeedsHeadroom() {
+        try (ReplicaPlacement placement = ReplicaPlacement.init()) {
+            placement.addNodeWithAttributes(1, List.of("az=us-1"), Collections.emptyList(), Collections.emptyList());
+            placement.addNodeWithAttributes(2, List.of("az=us-2"), Collections.emptyList(), Collections.emptyList());
+            placement.addDatabase("db1", 2, "");
+            placement.addDatabase("db2", 2, "");
+            placement.placeReplicas(); // Every node holds a replica of both databases
+            placement.addNodeWithAttributes(3, List.of("az=us-3"), Collections.emptyList(), Collections.emptyList());
+            placement.setNodeCapacity(3, LoadDimension.DISK_MB, 100);
+            final ReplicaRecord db1OnNode1 = replicaOn(placement, "db1", 1);
+            final ReplicaRecord db2OnNode1 = replicaOn(placement, "db2", 1);
+            placement.updateRangeLoad(db1OnNode1.getRangeId(), LoadDimension.DISK_MB, 500);
+            placement.updateRangeLoad(db2OnNode1.getRangeId(), LoadDimension.DISK_MB, 500);
+            placement.recordReplicaQps(db1OnNode1.getId(), 70);
+            placement.recordReplicaQps(db2OnNode1.getId(), 50);
+            placement.flushQpsTelemetry(); // Node 1 serves 120 qps
+
+            // Node 3 is the only node without a replica of db1 or db2, and has the qps to spare for either,
+            // but no room for their disk usage
+            final Map<Integer, Integer> nodesBefore = placement.getReplicaState().intoMap(Tables.REPLICA.ID,
+                                                                                          Tables.REPLICA.CURRENT_NODE);
+            placement.migrateReplicasOnOverloadedNodes(100);
+            assertEquals(Set.of(), movedReplicas(placement, nodesBefore));
+
+            placement.setNodeCapacity(3, LoadDimension.DISK_MB, 1000);
+            placement.migrateReplicasOnOverloadedNodes(100);
+            assertEquals(Set.of(db1OnNode1.getId()), movedReplicas(placement, nodesBefore));
+            assertEquals(3, replicaOn(placement, "db1", 3).getCurrentNode());
+        }
+    }
+
+    private static ReplicaRecord replicaOn(final ReplicaPlacement placement, final String database,
+                                           final int node) {
+        return placement.getReplicaRangesForDb(database).stream().filter(r -> r.getCurrentNode() == node)
+                        .findFirst().orElseThrow();
+    }
+
+    private static Set<Integer> movedReplicas(final ReplicaPlacement placement,
+                                              final Map<Integer, Integer> nodesBefore) {
+        return placement.getReplicaState().stream()
+                        .filter(r -> !r.getCurrentNode().equals(nodesBefore.get(r.getId())))
+                        .map(ReplicaRecord::getId)
+                        .collect(Collectors.toSet());
     }
 
     @Test
     public void rebalanceByQps() {
-        final ReplicaPlacement placement = ReplicaPlacement.init();
-        placement.addNodeWithAttributes(1, List.of("az=us-1"), Collections.emptyList(), Collections.emptyList());
-        placement.addNodeWithAttributes(2, List.of("az=us-1"), Collections.emptyList(), Collections.emptyList());
-        placement.addNodeWithAttributes(3, List.of("az=us-1"), Collections.emptyList(), Collections.emptyList());
-        placement.addNodeWithAttributes(4, List.of("az=us-2"), Collections.emptyList(), Collections.emptyList());
-        placement.addNodeWithAttributes(5, List.of("az=us-3"), Collections.emptyList(), Collections.emptyList());
-        placement.addNodeWithAttributes(6, List.of("az=us-4"), Collections.emptyList(), Collections.emptyList());
-        placement.addNodeWithAttributes(7, List.of("az=us-4"), Collections.emptyList(), Collections.emptyList());
-        placement.addNodeWithAttributes(8, List.of("az=us-4"), Collections.emptyList(), Collections.emptyList());
-        placement.bootstrap();
-        // Place DB1 and record allocations
-        placement.addDatabase("db1", 5, ""); // should be spread across all AZs
-        placement.addDatabase("db2", 5, ""); // should be spread across all AZs
-        placement.addDatabase("db3", 5, ""); // should be spread across all AZs
-        placement.placeReplicas();
-        placement.addDatabase("db4", 3, "[\"+az=us-1\"]"); // should be mapped to us-1
-        placement.placeReplicas();
-
-        // Add some load to replicas of db2. This should cause some nodes in us-1 to be overloaded.
-        placement.updateQpsForDb("db4", 70);
-        placement.migrateReplicasOnOverloadedNodes(100);
-        placement.qpsPerNode().forEach(r -> assertTrue(r.get(1, BigDecimal.class).intValue() <= 100));
+        try (ReplicaPlacement placement = ReplicaPlacement.init()) {
+            placement.addNodeWithAttributes(1, List.of("az=us-1"), Collections.emptyList(), Collections.emptyList());
+            placement.addNodeWithAttributes(2, List.of("az=us-1"), Collections.emptyList(), Collections.emptyList());
+            placement.addNodeWithAttributes(3, List.of("az=us-1"), Collections.emptyList(), Collections.emptyList());
+            placement.addNodeWithAttributes(4, List.of("az=us-2"), Collections.emptyList(), Collections.emptyList());
+            placement.addNodeWithAttributes(5, List.of("az=us-3"), Collections.emptyList(), Collections.emptyList());
+            placement.addNodeWithAttributes(6, List.of("az=us-4"), Collections.emptyList(), Collections.emptyList());
+            placement.addNodeWithAttributes(7, List.of("az=us-4"), Collections.emptyList(), Collections.emptyList());
+            placement.addNodeWithAttributes(8, List.of("az=us-4"), Collections.emptyList(), Collections.emptyList());
+            placement.bootstrap();
+            // Place DB1 and record allocations
+            placement.addDatabase("db1", 5, ""); // should be spread across all AZs
+            placement.addDatabase("db2", 5, ""); // should be spread across all AZs
+            placement.addDatabase("db3", 5, ""); // should be spread across all AZs
+            placement.placeReplicas();
+            placement.addDatabase("db4", 3, "[\"+az=us-1\"]"); // should be mapped to us-1
+            placement.placeReplicas();
+
+            // Add some load to replicas of db2. This should cause some nodes in us-1 to be overloaded.
+            placement.updateQpsForDb("db4", 70);
+            placement.migrateReplicasOnOverloadedNodes(100);
+            placement.qpsPerNode().forEach(r -> assertTrue(r.get(1, BigDecimal.class).intValue() <= 100));
+        }
     }
 }
\ No newline at end of file